@@ -0,0 +1,120 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures detection latency and accuracy against the detection size, using the full resolution
+ * detection as the reference. Run it on a device with a folder of photos containing faces:
+ *
+ * adb shell am instrument -w -e imageDir /sdcard/faces -e class \
+ *     com.example.anu.emojifyme.utils.DetectionSizeBenchmark \
+ *     com.example.anu.emojifyme.test/android.support.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+public class DetectionSizeBenchmark {
+
+    private static final String TAG = DetectionSizeBenchmark.class.getSimpleName();
+
+    private static final int[] DETECTION_SIZES = {320, 480, 640, 960, 1280};
+
+    @Test
+    public void detectionSizeTradeoff() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        List<Bitmap> bitmaps = loadImages(InstrumentationRegistry.getArguments().getString("imageDir"));
+        assumeTrue("No images to benchmark", !bitmaps.isEmpty());
+
+        // Warm the detector up so the first measurement does not include loading the models
+        Emojifier.detectFaces(context, bitmaps.get(0));
+
+        List<List<DetectedFace>> references = new ArrayList<>();
+        long referenceNanos = 0;
+        for (Bitmap bitmap : bitmaps) {
+            long start = System.nanoTime();
+            references.add(Emojifier.detectFaces(context, bitmap));
+            referenceNanos += System.nanoTime() - start;
+        }
+        Log.i(TAG, String.format("full resolution : %.1f ms/image",
+                referenceNanos / 1e6 / bitmaps.size()));
+
+        for (int detectionSize : DETECTION_SIZES) {
+            long nanos = 0;
+            int referenceFaces = 0;
+            int matchedFaces = 0;
+            int matchedEmojis = 0;
+
+            for (int i = 0; i < bitmaps.size(); i++) {
+                Bitmap bitmap = bitmaps.get(i);
+                long start = System.nanoTime();
+                List<DetectedFace> faces = Emojifier.detectFaces(context, bitmap, detectionSize);
+                nanos += System.nanoTime() - start;
+
+                float faceScale = Emojifier.getFaceScale(bitmap, detectionSize);
+                List<DetectedFace> reference = references.get(i);
+                referenceFaces += reference.size();
+                for (int r = 0; r < reference.size(); r++) {
+                    DetectedFace match = findMatch(reference.get(r), faces, faceScale);
+                    if (match != null) {
+                        matchedFaces++;
+                        if (Emojifier.whichEmoji(match) == Emojifier.whichEmoji(reference.get(r))) {
+                            matchedEmojis++;
+                        }
+                    }
+                }
+            }
+
+            Log.i(TAG, String.format("detection size %d : %.1f ms/image, recall %.3f, same emoji %.3f",
+                    detectionSize, nanos / 1e6 / bitmaps.size(),
+                    ratio(matchedFaces, referenceFaces), ratio(matchedEmojis, referenceFaces)));
+        }
+    }
+
+    /**
+     * returns the face whose center, mapped back to full resolution, lies within the
+     * reference face, or null
+     */
+    private static DetectedFace findMatch(DetectedFace reference, List<DetectedFace> faces,
+                                          float faceScale) {
+        for (DetectedFace face : faces) {
+            float centerX = (face.getLeft() + face.getWidth() / 2) * faceScale;
+            float centerY = (face.getTop() + face.getHeight() / 2) * faceScale;
+            if (centerX >= reference.getLeft()
+                    && centerX <= reference.getLeft() + reference.getWidth()
+                    && centerY >= reference.getTop()
+                    && centerY <= reference.getTop() + reference.getHeight()) {
+                return face;
+            }
+        }
+        return null;
+    }
+
+    private static double ratio(int count, int total) {
+        return total == 0 ? 1 : (double) count / total;
+    }
+
+    private static List<Bitmap> loadImages(String imageDir) {
+        List<Bitmap> bitmaps = new ArrayList<>();
+        File[] files = imageDir == null ? null : new File(imageDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Bitmap bitmap = BitmapUtils.resamplePic(file.getAbsolutePath(), 4096, 4096);
+                if (bitmap != null) {
+                    bitmaps.add(bitmap);
+                }
+            }
+        }
+        return bitmaps;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.media.ExifInterface;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the time to save an emojified photo at full resolution decoded as a whole and encoded
+ * by Bitmap.compress against decoded and encoded band by band. Run it on a device with a folder
+ * of photos stored upright:
+ *
+ * adb shell am instrument -w -e imageDir /sdcard/photos -e class \
+ *     com.example.anu.emojifyme.utils.RenderBenchmark \
+ *     com.example.anu.emojifyme.test/android.support.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+public class RenderBenchmark {
+
+    private static final String TAG = RenderBenchmark.class.getSimpleName();
+
+    private static final int QUALITY = 85;
+    private static final int REPEATS = 3;
+
+    @Test
+    public void wholeAgainstBands() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        String imageDir = InstrumentationRegistry.getArguments().getString("imageDir");
+        File[] files = imageDir == null ? null : new File(imageDir).listFiles();
+        assumeTrue("No images to benchmark", files != null && files.length > 0);
+
+        for (File file : files) {
+            String imagePath = file.getAbsolutePath();
+            Bitmap overview = BitmapUtils.resamplePic(imagePath,
+                    Emojifier.DEFAULT_DETECTION_SIZE, Emojifier.DEFAULT_DETECTION_SIZE);
+            if (overview == null) {
+                continue;
+            }
+            List<DetectedFace> faces = Emojifier.detectFaces(context, overview);
+            EmojifiedScene scene = Emojifier.describeScene(imagePath,
+                    ExifInterface.ORIENTATION_NORMAL, faces, overview.getWidth());
+            BitmapPool.getInstance().put(overview);
+
+            CountingStream whole = new CountingStream();
+            CountingStream bands = new CountingStream();
+            long wholeNanos = 0;
+            long bandNanos = 0;
+            for (int r = 0; r < REPEATS; r++) {
+                long start = System.nanoTime();
+                TiledEmojifier.renderWhole(context, scene, whole, QUALITY, 1);
+                wholeNanos += System.nanoTime() - start;
+                start = System.nanoTime();
+                TiledEmojifier.renderBands(context, scene, bands, QUALITY);
+                bandNanos += System.nanoTime() - start;
+            }
+            Log.i(TAG, String.format("%s, %d faces : whole %.1f ms %d KB, bands %.1f ms %d KB",
+                    file.getName(), faces.size(), wholeNanos / 1e6 / REPEATS,
+                    whole.mCount / REPEATS / 1024, bandNanos / 1e6 / REPEATS,
+                    bands.mCount / REPEATS / 1024));
+        }
+    }
+
+    /**
+     * drops the encoded bytes, so only rendering and encoding are measured
+     */
+    private static final class CountingStream extends OutputStream {
+
+        private long mCount;
+
+        @Override
+        public void write(int b) throws IOException {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the speedup of detecting faces on overlapping tiles in parallel against the number of
+ * faces in the picture, using the detection on the whole picture as the reference. Run it on a
+ * device with a folder of group photos:
+ *
+ * adb shell am instrument -w -e imageDir /sdcard/crowds -e class \
+ *     com.example.anu.emojifyme.utils.StripedDetectionBenchmark \
+ *     com.example.anu.emojifyme.test/android.support.test.runner.AndroidJUnitRunner
+ */
+@RunWith(AndroidJUnit4.class)
+public class StripedDetectionBenchmark {
+
+    private static final String TAG = StripedDetectionBenchmark.class.getSimpleName();
+
+    private static final int DETECTION_SIZE = 2048;
+    private static final int[] PARALLELISMS = {1, 2, 4};
+    private static final int REPEATS = 3;
+
+    @Test
+    public void speedupAgainstFaceCount() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        List<Bitmap> bitmaps = loadImages(InstrumentationRegistry.getArguments().getString("imageDir"));
+        assumeTrue("No images to benchmark", !bitmaps.isEmpty());
+
+        FaceDetectionBackend backend = new VisionFaceDetectionBackend(context);
+        // Warm up as many detectors as tiles detected at once, so no measurement loads the models
+        StripedFaceDetectionBackend warmUp = new StripedFaceDetectionBackend(backend, 2, 2, 4);
+        warmUp.detect(bitmaps.get(0));
+
+        for (Bitmap bitmap : bitmaps) {
+            long referenceNanos = 0;
+            List<DetectedFace> reference = null;
+            for (int r = 0; r < REPEATS; r++) {
+                long start = System.nanoTime();
+                reference = backend.detect(bitmap);
+                referenceNanos += System.nanoTime() - start;
+            }
+
+            StringBuilder line = new StringBuilder(String.format("%2d faces, %dx%d : %.1f ms",
+                    reference.size(), bitmap.getWidth(), bitmap.getHeight(),
+                    referenceNanos / 1e6 / REPEATS));
+            for (int parallelism : PARALLELISMS) {
+                StripedFaceDetectionBackend striped =
+                        new StripedFaceDetectionBackend(backend, 2, 2, parallelism);
+                long nanos = 0;
+                List<DetectedFace> faces = null;
+                for (int r = 0; r < REPEATS; r++) {
+                    long start = System.nanoTime();
+                    faces = striped.detect(bitmap);
+                    nanos += System.nanoTime() - start;
+                }
+                line.append(String.format(", %d threads : %.2fx speedup, %d faces, recall %.3f",
+                        parallelism, (double) referenceNanos / nanos, faces.size(),
+                        recall(reference, faces)));
+            }
+            Log.i(TAG, line.toString());
+        }
+    }
+
+    /**
+     * returns the share of the reference faces matched by a face overlapping it enough to be
+     * taken for the same face
+     */
+    private static double recall(List<DetectedFace> reference, List<DetectedFace> faces) {
+        if (reference.isEmpty()) {
+            return 1;
+        }
+        int matched = 0;
+        for (DetectedFace referenceFace : reference) {
+            for (DetectedFace face : faces) {
+                if (StripedFaceDetectionBackend.getOverlap(referenceFace, face)
+                        > StripedFaceDetectionBackend.MAX_OVERLAP) {
+                    matched++;
+                    break;
+                }
+            }
+        }
+        return (double) matched / reference.size();
+    }
+
+    private static List<Bitmap> loadImages(String imageDir) {
+        List<Bitmap> bitmaps = new ArrayList<>();
+        File[] files = imageDir == null ? null : new File(imageDir).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Bitmap bitmap = BitmapUtils.resamplePic(file.getAbsolutePath(),
+                        DETECTION_SIZE, DETECTION_SIZE);
+                if (bitmap != null) {
+                    bitmaps.add(bitmap);
+                }
+            }
+        }
+        return bitmaps;
+    }
+}
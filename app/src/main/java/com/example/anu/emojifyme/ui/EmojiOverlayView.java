@@ -0,0 +1,57 @@
+package com.example.anu.emojifyme.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.example.anu.emojifyme.utils.LiveEmojifier;
+
+/**
+ * View drawn over the camera preview, showing the emojis of the latest emojified frame.
+ */
+public class EmojiOverlayView extends View {
+
+    private volatile LiveEmojifier.Overlay mOverlay;
+
+    public EmojiOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    /**
+     * Shows the emojis of a new frame, can be called from any thread. Their sprites are picked
+     * on the calling thread, which should be the processing thread rather than the main one.
+     *
+     * @param overlay  The emojis of the frame
+     * @param mirrored Whether the preview is mirrored, as for the front camera
+     */
+    public void setOverlay(LiveEmojifier.Overlay overlay, boolean mirrored) {
+        overlay.pickSprites(getContext(), (float) getWidth() / overlay.getFrameWidth(), mirrored);
+        mOverlay = overlay;
+        postInvalidate();
+    }
+
+    /**
+     * Removes the emojis, can be called from any thread.
+     */
+    public void clear() {
+        mOverlay = null;
+        postInvalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+
+        LiveEmojifier.Overlay overlay = mOverlay;
+        if (overlay == null) {
+            return;
+        }
+
+        /**
+         * the preview is stretched over the whole view, map the frame the same way
+         */
+        overlay.draw(canvas, (float) getWidth() / overlay.getFrameWidth(),
+                (float) getHeight() / overlay.getFrameHeight());
+    }
+}
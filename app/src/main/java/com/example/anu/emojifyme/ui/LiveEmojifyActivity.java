@@ -0,0 +1,305 @@
+package com.example.anu.emojifyme.ui;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.widget.Toast;
+
+import com.example.anu.emojifyme.R;
+import com.example.anu.emojifyme.utils.LiveEmojifier;
+import com.example.anu.emojifyme.utils.VisionFaceDetectionBackend;
+
+import java.io.IOException;
+import java.util.List;
+
+import butterknife.BindView;
+import butterknife.ButterKnife;
+import timber.log.Timber;
+
+/**
+ * Shows the camera preview with an emoji over every face, updated on every frame.
+ */
+public class LiveEmojifyActivity extends AppCompatActivity implements SurfaceHolder.Callback,
+        Camera.PreviewCallback, LiveEmojifier.Listener {
+
+    @BindView(R.id.preview_surface)
+    SurfaceView previewSurface;
+    @BindView(R.id.emoji_overlay)
+    EmojiOverlayView emojiOverlay;
+
+    private static final int REQUEST_CAMERA_PERMISSION = 30;
+
+    /**
+     * preview size asked from the camera, large enough to classify faces at a steady frame rate
+     */
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+
+    /**
+     * preview frame rate asked from the camera, in frames per second
+     */
+    private static final int PREVIEW_FPS = 30;
+
+    private volatile Camera camera;
+    private LiveEmojifier liveEmojifier;
+    private boolean mirrored;
+    private boolean surfaceReady;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_live);
+        ButterKnife.bind(this);
+
+        previewSurface.getHolder().addCallback(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        startCameraIfReady();
+    }
+
+    @Override
+    protected void onPause() {
+        stopCamera();
+        super.onPause();
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        surfaceReady = true;
+        startCameraIfReady();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        surfaceReady = false;
+        stopCamera();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        if (requestCode != REQUEST_CAMERA_PERMISSION) {
+            return;
+        }
+        if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+            startCameraIfReady();
+        } else {
+            /**
+             * there is nothing to show without the camera
+             */
+            Toast.makeText(this, R.string.permission_denied, Toast.LENGTH_SHORT).show();
+            finish();
+        }
+    }
+
+    /**
+     * method to start the preview once the surface exists and the camera permission is granted
+     */
+    private void startCameraIfReady() {
+        if (!surfaceReady || camera != null) {
+            return;
+        }
+
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) !=
+                PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.CAMERA}, REQUEST_CAMERA_PERMISSION);
+            return;
+        }
+
+        try {
+            startCamera(previewSurface.getHolder());
+        } catch (IOException | RuntimeException e) {
+            Timber.e(e, "Could not start the camera");
+            stopCamera();
+            Toast.makeText(this, R.string.camera_error, Toast.LENGTH_SHORT).show();
+            finish();
+        }
+    }
+
+    /**
+     * method to open the camera, preferably the front one, and emojify its preview frames
+     */
+    private void startCamera(SurfaceHolder holder) throws IOException {
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        int cameraId = findCamera(cameraInfo);
+        mirrored = cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+
+        Camera openedCamera = Camera.open(cameraId);
+        camera = openedCamera;
+
+        /**
+         * ask for small NV21 frames at a steady frame rate
+         */
+        Camera.Parameters parameters = openedCamera.getParameters();
+        Camera.Size previewSize = choosePreviewSize(parameters.getSupportedPreviewSizes());
+        parameters.setPreviewSize(previewSize.width, previewSize.height);
+        int[] fpsRange = chooseFpsRange(parameters.getSupportedPreviewFpsRange());
+        if (fpsRange != null) {
+            parameters.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
+        parameters.setPreviewFormat(ImageFormat.NV21);
+        openedCamera.setParameters(parameters);
+        int rotation = setDisplayOrientation(openedCamera, cameraInfo);
+
+        /**
+         * frames are written into the buffers of the emojifier, which hands them back once
+         * they are processed or replaced by a newer frame
+         */
+        liveEmojifier = new LiveEmojifier(new VisionFaceDetectionBackend(this),
+                previewSize.width, previewSize.height, rotation, this);
+        openedCamera.setPreviewCallbackWithBuffer(this);
+        openedCamera.setPreviewDisplay(holder);
+        liveEmojifier.start();
+        openedCamera.startPreview();
+    }
+
+    /**
+     * method to stop the preview and the processing thread, and release the camera
+     */
+    private void stopCamera() {
+        Camera openedCamera = camera;
+        if (openedCamera == null) {
+            return;
+        }
+
+        openedCamera.stopPreview();
+        openedCamera.setPreviewCallbackWithBuffer(null);
+        if (liveEmojifier != null) {
+            liveEmojifier.stop();
+            liveEmojifier = null;
+        }
+        camera = null;
+        openedCamera.release();
+        emojiOverlay.clear();
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (liveEmojifier != null) {
+            liveEmojifier.onFrame(data);
+        }
+    }
+
+    @Override
+    public void onFrameBufferAvailable(byte[] buffer) {
+        Camera openedCamera = camera;
+        if (openedCamera != null) {
+            openedCamera.addCallbackBuffer(buffer);
+        }
+    }
+
+    @Override
+    public void onFrameEmojified(LiveEmojifier.Overlay overlay) {
+        emojiOverlay.setOverlay(overlay, mirrored);
+    }
+
+    /**
+     * method to find the front camera, or the first camera if there is no front one
+     *
+     * @param cameraInfo set to the information of the chosen camera
+     * @return the id of the chosen camera
+     */
+    private static int findCamera(Camera.CameraInfo cameraInfo) {
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                return i;
+            }
+        }
+        Camera.getCameraInfo(0, cameraInfo);
+        return 0;
+    }
+
+    /**
+     * method to pick the supported preview size closest to the requested one
+     */
+    private static Camera.Size choosePreviewSize(List<Camera.Size> sizes) {
+        Camera.Size bestSize = sizes.get(0);
+        int bestDifference = Integer.MAX_VALUE;
+        for (Camera.Size size : sizes) {
+            int difference = Math.abs(size.width - PREVIEW_WIDTH)
+                    + Math.abs(size.height - PREVIEW_HEIGHT);
+            if (difference < bestDifference) {
+                bestSize = size;
+                bestDifference = difference;
+            }
+        }
+        return bestSize;
+    }
+
+    /**
+     * method to pick the supported frame rate range closest to a steady {@link #PREVIEW_FPS}
+     *
+     * @return the range, or null if the camera does not report any
+     */
+    private static int[] chooseFpsRange(List<int[]> ranges) {
+        if (ranges == null) {
+            return null;
+        }
+
+        int targetFps = PREVIEW_FPS * 1000;
+        int[] bestRange = null;
+        int bestDifference = Integer.MAX_VALUE;
+        for (int[] range : ranges) {
+            int difference = Math.abs(targetFps - range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX])
+                    + Math.abs(targetFps - range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX]);
+            if (difference < bestDifference) {
+                bestRange = range;
+                bestDifference = difference;
+            }
+        }
+        return bestRange;
+    }
+
+    /**
+     * method to rotate the preview upright for the current display rotation
+     *
+     * @return the quarter turns making the preview frames upright
+     */
+    private int setDisplayOrientation(Camera openedCamera, Camera.CameraInfo cameraInfo) {
+        int degrees = 0;
+        switch (getWindowManager().getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+        }
+
+        int angle;
+        int displayAngle;
+        if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            angle = (cameraInfo.orientation + degrees) % 360;
+            /**
+             * the front camera preview is mirrored
+             */
+            displayAngle = (360 - angle) % 360;
+        } else {
+            angle = (cameraInfo.orientation - degrees + 360) % 360;
+            displayAngle = angle;
+        }
+        openedCamera.setDisplayOrientation(displayAngle);
+        return angle / 90;
+    }
+}
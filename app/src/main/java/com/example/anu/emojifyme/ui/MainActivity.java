@@ -5,6 +5,7 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.annotation.NonNull;
@@ -16,13 +17,20 @@ import android.support.v7.app.AppCompatActivity;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.example.anu.emojifyme.BuildConfig;
 import com.example.anu.emojifyme.R;
+import com.example.anu.emojifyme.utils.BitmapPool;
 import com.example.anu.emojifyme.utils.BitmapUtils;
-import com.example.anu.emojifyme.utils.Emojifier;
+import com.example.anu.emojifyme.utils.EmojifiedDrawable;
+import com.example.anu.emojifyme.utils.EmojifiedScene;
+import com.example.anu.emojifyme.utils.EmojifyMetrics;
+import com.example.anu.emojifyme.utils.EmojifyPipeline;
+import com.example.anu.emojifyme.utils.ImageSaver;
 
 import java.io.File;
 import java.io.IOException;
@@ -32,7 +40,7 @@ import butterknife.ButterKnife;
 import butterknife.OnClick;
 import timber.log.Timber;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements EmojifyPipeline.Callback {
 
     @BindView(R.id.image_view)
     ImageView imageView;
@@ -40,6 +48,8 @@ public class MainActivity extends AppCompatActivity {
     TextView titleTextView;
     @BindView(R.id.emojify_button)
     Button emojifyButton;
+    @BindView(R.id.live_button)
+    Button liveButton;
     @BindView(R.id.clear_button)
     FloatingActionButton clearButton;
     @BindView(R.id.save_button)
@@ -48,12 +58,18 @@ public class MainActivity extends AppCompatActivity {
     FloatingActionButton shareButton;
     @BindView(R.id.activity_main)
     RelativeLayout activityMain;
+    @BindView(R.id.progress_bar)
+    ProgressBar progressBar;
 
     private static final int REQUEST_STORAGE_PERMISSION = 10;
     private static final int REQUEST_IMAGE_CAPTURE = 20;
     private String mImageFilePath;
     private static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
+    private static final String METRICS_FILE_NAME = "metrics.json";
     private Bitmap bitmapImage;
+    private EmojifiedScene emojifiedScene;
+    private ImageSaver.Result savedResult;
+    private EmojifyPipeline emojifyPipeline;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,9 +78,56 @@ public class MainActivity extends AppCompatActivity {
         ButterKnife.bind(this);
 
         /**
-         * setup timber
+         * setup timber, only debug builds log
          */
-        Timber.plant(new Timber.DebugTree());
+        if (BuildConfig.DEBUG && Timber.treeCount() == 0) {
+            Timber.plant(new Timber.DebugTree());
+        }
+
+        /**
+         * measure the pipeline in debug builds, the numbers are exported when the app is left
+         */
+        EmojifyMetrics.setEnabled(BuildConfig.DEBUG);
+
+        emojifyPipeline = new EmojifyPipeline(this);
+
+        /**
+         * let the bitmap pool release its bitmaps when memory runs low
+         */
+        BitmapPool.getInstance(this);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        /**
+         * export the metrics of the session off the main thread
+         */
+        final File cacheDir = getExternalCacheDir();
+        if (EmojifyMetrics.isEnabled() && cacheDir != null) {
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File metricsFile = new File(cacheDir, METRICS_FILE_NAME);
+                    try {
+                        EmojifyMetrics.writeJson(metricsFile);
+                        Timber.d("Metrics exported to " + metricsFile);
+                    } catch (IOException e) {
+                        Timber.e(e, "Could not export the metrics");
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        /**
+         * stop processing, the result could not be shown anymore
+         */
+        emojifyPipeline.shutdown();
+        super.onDestroy();
     }
 
     /**
@@ -192,30 +255,69 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * method to process the image and set to ImageView
+     * method to process the image in the background, the result is set to the ImageView
+     * in {@link #onEmojified(EmojifiedDrawable)}
      */
     private void processImage() {
         /**
-         * resample the save dimage to fit to the ImageView
+         * resample the saved image to the ImageView bounds, detect faces and overlay emojis
+         * off the main thread
          */
-        bitmapImage = BitmapUtils.resamplePic(this, mImageFilePath);
+        emojifyButton.setVisibility(View.GONE);
+        liveButton.setVisibility(View.GONE);
+        titleTextView.setVisibility(View.GONE);
+        progressBar.setVisibility(View.VISIBLE);
+        emojifyPipeline.process(mImageFilePath, imageView.getWidth(), imageView.getHeight(), this);
+    }
+
+    @Override
+    public void onStageStarted(EmojifyPipeline.Stage stage) {
+        Timber.d("Emojify stage : " + stage);
+    }
+
+    @Override
+    public void onEmojified(EmojifiedDrawable drawable) {
+        progressBar.setVisibility(View.GONE);
 
         /**
-         * detect faces and overlay emojis
+         * toast a message if no faces is detected
          */
-        bitmapImage = Emojifier.detectFacesAndOverlayEmoji(this, bitmapImage);
+        if (drawable.getScene().getFaceCount() == 0) {
+            Toast.makeText(this, R.string.no_face_detected, Toast.LENGTH_SHORT).show();
+        }
 
-        imageView.setImageBitmap(bitmapImage);
+        /**
+         * the emojis are drawn over the photo at the size of the view, they are only
+         * composited into the photo if it is saved
+         */
+        imageView.setImageDrawable(drawable);
 
+        /**
+         * the previous image goes back to the pool only once the view stopped drawing it,
+         * background users of the pool reconfigure and erase what they take
+         */
+        releaseImage();
+        bitmapImage = drawable.getBitmap();
+        emojifiedScene = drawable.getScene();
 
         toggleViewVisibility();
     }
 
+    @Override
+    public void onError(Throwable error) {
+        progressBar.setVisibility(View.GONE);
+        emojifyButton.setVisibility(View.VISIBLE);
+        liveButton.setVisibility(View.VISIBLE);
+        titleTextView.setVisibility(View.VISIBLE);
+        Toast.makeText(this, R.string.error, Toast.LENGTH_SHORT).show();
+    }
+
     /**
      * method to toggle the visibility of views
      */
     private void toggleViewVisibility() {
         emojifyButton.setVisibility(View.GONE);
+        liveButton.setVisibility(View.GONE);
         titleTextView.setVisibility(View.GONE);
         saveButton.setVisibility(View.VISIBLE);
         shareButton.setVisibility(View.VISIBLE);
@@ -228,21 +330,37 @@ public class MainActivity extends AppCompatActivity {
      * @param view clear image button
      */
     public void clearImage(View view) {
+        emojifyPipeline.cancel();
+
         /**
          * clear the image and toggle visibility of views
          */
         imageView.setImageResource(0);
+        releaseImage();
 
         emojifyButton.setVisibility(View.VISIBLE);
+        liveButton.setVisibility(View.VISIBLE);
         titleTextView.setVisibility(View.VISIBLE);
         shareButton.setVisibility(View.GONE);
         saveButton.setVisibility(View.GONE);
         clearButton.setVisibility(View.GONE);
 
         /**
-         * delete temporary image file
+         * delete temporary image file, once the saves still reading it are done
          */
-        BitmapUtils.deleteImageFile(this, mImageFilePath);
+        ImageSaver.deleteAfterSaves(new File(mImageFilePath));
+    }
+
+    /**
+     * method to give the displayed image back to the bitmap pool, saving does not use it
+     */
+    private void releaseImage() {
+        if (bitmapImage != null) {
+            BitmapPool.getInstance(this).put(bitmapImage);
+        }
+        bitmapImage = null;
+        emojifiedScene = null;
+        savedResult = null;
     }
 
     /**
@@ -253,14 +371,28 @@ public class MainActivity extends AppCompatActivity {
     public void saveMe(View view) {
 
         /**
-         * delete image path file
+         * the image was saved already, there is nothing new to save
          */
-        BitmapUtils.deleteImageFile(this, mImageFilePath);
+        if (savedResult != null) {
+            showSavedMessage(savedResult);
+            return;
+        }
 
         /**
-         * save image
+         * save image off the main thread
          */
-        BitmapUtils.saveImage(this, bitmapImage);
+        saveImage(new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(ImageSaver.Result result) {
+                showSavedMessage(result);
+            }
+
+            @Override
+            public void onSaveFailed(Exception error) {
+                Toast.makeText(MainActivity.this, R.string.save_error,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
     }
 
     /**
@@ -270,28 +402,90 @@ public class MainActivity extends AppCompatActivity {
      */
     public void shareMe(View view) {
         /**
-         * delete temporary image file
+         * share the saved image as it is, if it was saved already
          */
-        BitmapUtils.deleteImageFile(this, mImageFilePath);
+        if (savedResult != null) {
+            BitmapUtils.shareImage(this, savedResult.getPath());
+            return;
+        }
 
         /**
-         * save the image
+         * save the image off the main thread, then share the saved file
          */
-        BitmapUtils.saveImage(this, bitmapImage);
+        saveImage(new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(ImageSaver.Result result) {
+                showSavedMessage(result);
+                BitmapUtils.shareImage(MainActivity.this, result.getPath());
+            }
+
+            @Override
+            public void onSaveFailed(Exception error) {
+                Toast.makeText(MainActivity.this, R.string.save_error,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * method to save the displayed image off the main thread at full resolution, remembering
+     * where it was saved
+     *
+     * @param callback receives the outcome on the main thread
+     */
+    private void saveImage(final ImageSaver.Callback callback) {
+        final String imageFilePath = mImageFilePath;
+        ImageSaver.Callback rememberingCallback = new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(ImageSaver.Result result) {
+                /**
+                 * only remember the result while the same photo is displayed
+                 */
+                if (emojifiedScene != null && imageFilePath != null
+                        && imageFilePath.equals(mImageFilePath)) {
+                    savedResult = result;
+                }
+                callback.onImageSaved(result);
+            }
+
+            @Override
+            public void onSaveFailed(Exception error) {
+                callback.onSaveFailed(error);
+            }
+        };
 
         /**
-         * share image
+         * without faces the captured photo is copied as it is, with its EXIF data, otherwise
+         * the emojis are composited into the captured photo and encoded straight to the file
          */
-        BitmapUtils.shareImage(this, mImageFilePath
-        );
+        if (emojifiedScene.getFaceCount() == 0) {
+            ImageSaver.copyAsync(this, new File(emojifiedScene.getSourcePath()),
+                    rememberingCallback);
+        } else {
+            ImageSaver.renderAsync(this, emojifiedScene, rememberingCallback);
+        }
     }
 
-    @OnClick({R.id.emojify_button, R.id.clear_button, R.id.save_button, R.id.share_button})
+    /**
+     * method to show where the image was saved
+     *
+     * @param result the outcome of the save
+     */
+    private void showSavedMessage(ImageSaver.Result result) {
+        Timber.d("Saved " + result.getBytesWritten() + " bytes to " + result.getPath());
+        Toast.makeText(this, getString(R.string.saved_message, result.getPath()),
+                Toast.LENGTH_SHORT).show();
+    }
+
+    @OnClick({R.id.emojify_button, R.id.live_button, R.id.clear_button, R.id.save_button, R.id.share_button})
     public void onViewClicked(View view) {
         switch (view.getId()) {
             case R.id.emojify_button:
                 launchCamera();
                 break;
+            case R.id.live_button:
+                startActivity(new Intent(this, LiveEmojifyActivity.class));
+                break;
             case R.id.clear_button:
                 clearImage(view);
                 break;
@@ -0,0 +1,537 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Emojifies a list of images, resampling, detecting, overlaying and saving each one on a pool
+ * with one worker per core.
+ *
+ * At most maxDecodedBitmaps images are in memory at once: the next image is only handed to a
+ * worker once a previous one has been saved. Every processed image is appended to a journal
+ * named after the batch, and starting a batch with the same id again skips the images that
+ * were already saved, so a batch resumes where it stopped if the process was killed.
+ *
+ * Images emojified before, by any batch, with the same settings are copied from the
+ * {@link EmojifyResultCache} instead of being decoded, detected and encoded again.
+ *
+ * Emojified images are encoded and saved by an {@link ImageEncoder}, freeing the worker for the
+ * next image. An image keeps its place among the maxDecodedBitmaps until it is saved.
+ */
+public class BatchEmojifier {
+
+    /**
+     * Receives the result of every image and of the whole batch, always on the main thread
+     */
+    public interface Listener {
+
+        void onImageEmojified(String imagePath, String savedImagePath, int faceCount);
+
+        void onImageFailed(String imagePath, Throwable error);
+
+        void onBatchFinished(Stats stats);
+    }
+
+    /**
+     * default size an image has to fit in before faces are detected and emojis drawn
+     */
+    public static final int DEFAULT_TARGET_SIZE = 2048;
+
+    /**
+     * target size keeping images at their full resolution, emojified band by band
+     */
+    public static final int FULL_RESOLUTION = 0;
+
+    private static final int FULL_RESOLUTION_QUALITY = 90;
+
+    private static final String JOURNAL_DIR = "batch";
+    private static final String JOURNAL_SUCCEEDED = "OK";
+    private static final String JOURNAL_FAILED = "FAILED";
+    private static final String JOURNAL_SEPARATOR = "\t";
+
+    private final Context mContext;
+    private final File mJournalFile;
+    private final int mMaxDecodedBitmaps;
+    private final int mWorkerCount = Runtime.getRuntime().availableProcessors();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final EmojifyResultCache mResultCache;
+
+    private volatile int mTargetSize = DEFAULT_TARGET_SIZE;
+    private volatile ImageSaver.Options mSaveOptions = ImageSaver.Options.DEFAULT;
+    private volatile boolean mCancelled;
+    private Thread mCoordinator;
+
+    /**
+     * @param context           called context
+     * @param batchId           identifies the batch, starting the same id again resumes it
+     * @param maxDecodedBitmaps the number of images allowed in memory at once
+     */
+    public BatchEmojifier(Context context, String batchId, int maxDecodedBitmaps) {
+        mContext = context.getApplicationContext();
+        mJournalFile = new File(new File(mContext.getFilesDir(), JOURNAL_DIR), batchId + ".journal");
+        mMaxDecodedBitmaps = Math.max(1, maxDecodedBitmaps);
+        mResultCache = EmojifyResultCache.getInstance(mContext);
+    }
+
+    /**
+     * Sets the size images have to fit in before being emojified.
+     *
+     * @param targetSize The maximum width and height in pixels, or {@link #FULL_RESOLUTION}
+     */
+    public void setTargetSize(int targetSize) {
+        mTargetSize = targetSize;
+    }
+
+    /**
+     * Sets how emojified images are encoded, e.g. {@link ImageSaver.Options#forTargetSize(long)}
+     * for exports that have to fit in a size. Images emojified at full resolution are always
+     * saved as JPEG.
+     *
+     * @param saveOptions The format and quality to save images with
+     */
+    public void setSaveOptions(ImageSaver.Options saveOptions) {
+        mSaveOptions = saveOptions;
+    }
+
+    /**
+     * Lists the images of a directory, sorted by name so a resumed batch sees the same order.
+     *
+     * @param directory The directory holding the images
+     * @return The paths of the images
+     */
+    public static List<String> listImages(File directory) {
+        List<String> imagePaths = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return imagePaths;
+        }
+
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName().toLowerCase();
+            if (file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")
+                    || name.endsWith(".png") || name.endsWith(".webp"))) {
+                imagePaths.add(file.getAbsolutePath());
+            }
+        }
+        return imagePaths;
+    }
+
+    /**
+     * Starts emojifying the images on a background thread, skipping the ones this batch
+     * already saved.
+     *
+     * @param imagePaths The paths of the images to emojify
+     * @param listener   Receives the result of every image
+     */
+    public synchronized void start(final List<String> imagePaths, final Listener listener) {
+        if (mCoordinator != null) {
+            throw new IllegalStateException("Batch already started");
+        }
+        mCoordinator = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runBatch(imagePaths, listener);
+            }
+        }, "BatchEmojifier");
+        mCoordinator.start();
+    }
+
+    /**
+     * Stops handing out images. The ones already being processed are finished and journaled.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Forgets which images the batch saved, once the batch is over and will not be resumed.
+     */
+    public void deleteJournal() {
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            Timber.e("Could not delete " + mJournalFile);
+        }
+    }
+
+    private void runBatch(List<String> imagePaths, final Listener listener) {
+        final Stats stats = new Stats();
+        final long start = System.nanoTime();
+        final Set<String> completed = readCompletedImages();
+        final Semaphore decodePermits = new Semaphore(mMaxDecodedBitmaps);
+        ExecutorService workers = Executors.newFixedThreadPool(mWorkerCount);
+        // encoding more images at once than can be decoded would leave threads idle
+        final ImageEncoder encoder = new ImageEncoder(mContext,
+                Math.min(mWorkerCount, mMaxDecodedBitmaps));
+
+        BufferedWriter journal = null;
+        try {
+            File journalDir = mJournalFile.getParentFile();
+            if (!journalDir.exists() && !journalDir.mkdirs()) {
+                throw new IOException("Could not create " + journalDir);
+            }
+            final BufferedWriter journalWriter = new BufferedWriter(new FileWriter(mJournalFile, true));
+            journal = journalWriter;
+
+            for (final String imagePath : imagePaths) {
+                if (completed.contains(imagePath)) {
+                    stats.mSkipped.incrementAndGet();
+                    continue;
+                }
+
+                // Wait for a decoded image to be released before handing out the next one
+                decodePermits.acquire();
+                if (mCancelled) {
+                    decodePermits.release();
+                    break;
+                }
+
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean encoding = false;
+                        try {
+                            encoding = processImage(imagePath, journalWriter, stats, listener,
+                                    encoder, decodePermits);
+                        } finally {
+                            if (!encoding) {
+                                decodePermits.release();
+                            }
+                        }
+                    }
+                });
+            }
+
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            // every image being encoded holds a permit until it is saved
+            decodePermits.acquire(mMaxDecodedBitmaps);
+        } catch (IOException e) {
+            Timber.e(e, "Could not open the batch journal");
+            stats.abort();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stats.abort();
+        } finally {
+            workers.shutdownNow();
+            encoder.shutdown();
+            BitmapUtils.closeQuietly(journal);
+        }
+
+        stats.mElapsedNanos = System.nanoTime() - start;
+        Timber.d("Batch finished : %d emojified, %d cached, %d failed, %d skipped, %.2f images/s",
+                stats.getSucceeded(), stats.getCached(), stats.getFailed(), stats.getSkipped(),
+                stats.getImagesPerSecond());
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBatchFinished(stats);
+            }
+        });
+    }
+
+    /**
+     * emojifies the image and hands it to the encoder, returns true if the image is being
+     * encoded, its decode permit then being released once it is saved
+     */
+    private boolean processImage(final String imagePath, final BufferedWriter journal,
+                                 final Stats stats, final Listener listener,
+                                 ImageEncoder encoder, final Semaphore decodePermits) {
+        EmojifyMetrics.beginTrace("batch");
+        try {
+            int targetSize = mTargetSize;
+            if (targetSize == FULL_RESOLUTION) {
+                processImageTiled(imagePath, journal, stats, listener);
+                return false;
+            }
+
+            // An image emojified before with the same settings is copied from the cache
+            ImageSaver.Options saveOptions = mSaveOptions;
+            EncodedImage image = EncodedImage.read(imagePath);
+            final String contentHash = image.getContentHash();
+            final String variant = targetSize + "/" + saveOptions.getKey();
+            if (copyCachedOutput(imagePath, contentHash, variant, saveOptions.getFormats(),
+                    journal, stats, listener)) {
+                return false;
+            }
+
+            Bitmap bitmap = image.decode(targetSize, targetSize);
+            if (bitmap == null) {
+                throw new IOException("Could not decode " + imagePath);
+            }
+
+            EmojifyResultCache.CachedFaces detectedFaces = mResultCache.getOrDetectFaces(mContext,
+                    bitmap, contentHash, Emojifier.DEFAULT_DETECTION_SIZE);
+            List<DetectedFace> faces = detectedFaces.getFaces();
+            final int faceCount = faces.size();
+            if (faceCount > 0) {
+                bitmap = Emojifier.overlayEmojis(mContext, bitmap, faces,
+                        Emojifier.classifyFaces(faces),
+                        detectedFaces.getFaceScale(bitmap.getWidth()));
+            }
+
+            encoder.encode(bitmap, saveOptions, new ImageEncoder.Callback() {
+                @Override
+                public void onImageSaved(Bitmap image, ImageSaver.Result result) {
+                    try {
+                        BitmapPool.getInstance().put(image);
+                        mResultCache.putOutput(getOutputKey(contentHash, variant,
+                                result.getFormat()), new File(result.getPath()));
+                        onImageEmojified(imagePath, result.getPath(), faceCount, journal, stats,
+                                listener);
+                    } finally {
+                        decodePermits.release();
+                    }
+                }
+
+                @Override
+                public void onSaveFailed(Bitmap image, Exception error) {
+                    try {
+                        BitmapPool.getInstance().put(image);
+                        onImageFailed(imagePath, error, journal, stats, listener);
+                    } finally {
+                        decodePermits.release();
+                    }
+                }
+            });
+            return true;
+        } catch (IOException | RuntimeException e) {
+            onImageFailed(imagePath, e, journal, stats, listener);
+            return false;
+        } finally {
+            EmojifyMetrics.endTrace();
+        }
+    }
+
+    /**
+     * the format is part of the key, an image may be saved in any format its options allow
+     */
+    private static String getOutputKey(String contentHash, String variant,
+                                       Bitmap.CompressFormat format) {
+        return EmojifyResultCache.getOutputKey(contentHash, Emojifier.DEFAULT_DETECTION_SIZE,
+                variant + "/" + format);
+    }
+
+    /**
+     * saves the output cached for the image, returns false if it is not cached
+     */
+    private boolean copyCachedOutput(String imagePath, String contentHash, String variant,
+                                     Bitmap.CompressFormat[] formats, BufferedWriter journal,
+                                     Stats stats, Listener listener) throws IOException {
+        EmojifyResultCache.CachedFaces cachedFaces = mResultCache.getFaces(
+                EmojifyResultCache.getFacesKey(contentHash, Emojifier.DEFAULT_DETECTION_SIZE));
+        if (cachedFaces == null) {
+            return false;
+        }
+
+        for (Bitmap.CompressFormat format : formats) {
+            String extension = ImageSaver.getExtension(format);
+            File tempFile = ImageSaver.createTempFile(extension);
+            if (!mResultCache.copyOutput(getOutputKey(contentHash, variant, format), tempFile)) {
+                tempFile.delete();
+                continue;
+            }
+
+            File imageFile = ImageSaver.publish(tempFile, extension);
+            String savedImagePath = imageFile.getAbsolutePath();
+            BitmapUtils.galleryAddPic(mContext, savedImagePath);
+            stats.mCached.incrementAndGet();
+            onImageEmojified(imagePath, savedImagePath, cachedFaces.getFaces().size(), journal,
+                    stats, listener);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * emojifies the image at full resolution without ever decoding it as a whole
+     */
+    private void processImageTiled(final String imagePath, BufferedWriter journal, Stats stats,
+                                   Listener listener) throws IOException {
+        final int[] faceCount = new int[1];
+        String savedImagePath = ImageSaver.stream(mContext, new ImageSaver.StreamingContent() {
+            @Override
+            void writeTo(OutputStream out) throws IOException {
+                faceCount[0] = TiledEmojifier.emojify(mContext, imagePath, out,
+                        FULL_RESOLUTION_QUALITY);
+            }
+        }, ".jpg").getPath();
+        onImageEmojified(imagePath, savedImagePath, faceCount[0], journal, stats, listener);
+    }
+
+    private void onImageEmojified(final String imagePath, final String savedImagePath,
+                                  final int faceCount, BufferedWriter journal, Stats stats,
+                                  final Listener listener) {
+        appendToJournal(journal, JOURNAL_SUCCEEDED, imagePath);
+        stats.mSucceeded.incrementAndGet();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onImageEmojified(imagePath, savedImagePath, faceCount);
+            }
+        });
+    }
+
+    private void onImageFailed(final String imagePath, final Throwable error,
+                               BufferedWriter journal, Stats stats, final Listener listener) {
+        Timber.e(error, "Failed to emojify " + imagePath);
+        appendToJournal(journal, JOURNAL_FAILED, imagePath);
+        stats.mFailed.incrementAndGet();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onImageFailed(imagePath, error);
+            }
+        });
+    }
+
+    private static void appendToJournal(BufferedWriter journal, String status, String imagePath) {
+        synchronized (journal) {
+            try {
+                journal.write(status + JOURNAL_SEPARATOR + imagePath);
+                journal.newLine();
+                journal.flush();
+            } catch (IOException e) {
+                Timber.e(e, "Could not write the batch journal");
+            }
+        }
+    }
+
+    /**
+     * returns the images the journal records as saved, failed ones are retried
+     */
+    private Set<String> readCompletedImages() {
+        Set<String> completed = new HashSet<>();
+        if (!mJournalFile.exists()) {
+            return completed;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournalFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(JOURNAL_SEPARATOR);
+                // A line cut short by a crash has no separator and is ignored
+                if (separator > 0 && line.substring(0, separator).equals(JOURNAL_SUCCEEDED)) {
+                    completed.add(line.substring(separator + 1));
+                }
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Could not read the batch journal");
+        } finally {
+            BitmapUtils.closeQuietly(reader);
+        }
+        return completed;
+    }
+
+    /**
+     * Counters of a batch
+     */
+    public static class Stats {
+
+        private final AtomicInteger mSucceeded = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final AtomicInteger mSkipped = new AtomicInteger();
+        private final AtomicInteger mCached = new AtomicInteger();
+        private volatile long mElapsedNanos;
+        private volatile boolean mAborted;
+
+        public int getSucceeded() {
+            return mSucceeded.get();
+        }
+
+        public int getFailed() {
+            return mFailed.get();
+        }
+
+        /**
+         * @return The number of images skipped because a previous run already saved them
+         */
+        public int getSkipped() {
+            return mSkipped.get();
+        }
+
+        /**
+         * @return The number of emojified images copied from the {@link EmojifyResultCache}
+         */
+        public int getCached() {
+            return mCached.get();
+        }
+
+        /**
+         * Adds the counters of another batch, e.g. to total the chunks of a background job.
+         * The total is aborted if the other batch was.
+         */
+        void add(Stats stats) {
+            add(stats.getSucceeded(), stats.getFailed(), stats.getSkipped(), stats.getCached(),
+                    stats.mElapsedNanos);
+            if (stats.mAborted) {
+                abort();
+            }
+        }
+
+        /**
+         * Marks the batch as stopped on an error before going through its images.
+         */
+        void abort() {
+            mAborted = true;
+        }
+
+        synchronized void add(int succeeded, int failed, int skipped, int cached,
+                              long elapsedNanos) {
+            mSucceeded.addAndGet(succeeded);
+            mFailed.addAndGet(failed);
+            mSkipped.addAndGet(skipped);
+            mCached.addAndGet(cached);
+            mElapsedNanos += elapsedNanos;
+        }
+
+        /**
+         * @return The time spent processing the images, in nanoseconds
+         */
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return Whether the batch stopped on an error before going through its images, such as
+         * its journal not opening. Images it did not get to are not counted as failed.
+         */
+        public boolean isAborted() {
+            return mAborted;
+        }
+
+        /**
+         * @return The number of images processed per second, failed ones included
+         */
+        public double getImagesPerSecond() {
+            long elapsedNanos = mElapsedNanos;
+            if (elapsedNanos == 0) {
+                return 0;
+            }
+            return (getSucceeded() + getFailed()) / (elapsedNanos / 1e9);
+        }
+    }
+}
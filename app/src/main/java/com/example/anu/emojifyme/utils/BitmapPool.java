@@ -0,0 +1,372 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import timber.log.Timber;
+
+/**
+ * Pool of mutable bitmaps shared by the decode, scale and composite stages, so repeated
+ * captures reuse the same few allocations instead of churning the heap.
+ *
+ * Released bitmaps are kept in size classes, four per power of two of their allocation size,
+ * and handed out again to be decoded into through inBitmap or reconfigured to the requested
+ * size. A bitmap is only handed out for a request needing at least half of its memory, so a
+ * small request never pins a large allocation. Before KitKat a bitmap can neither be
+ * reconfigured nor decoded into at another size, and only bitmaps of the exact size are reused.
+ *
+ * The pool is bounded in bytes, least recently released bitmaps are evicted first, and it is
+ * trimmed when the system asks the app to release memory.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+
+    /**
+     * fraction of the heap the pooled bitmaps are allowed to use
+     */
+    private static final int MEMORY_FRACTION = 8;
+
+    /**
+     * size classes per power of two are 1 << SUB_CLASS_BITS
+     */
+    private static final int SUB_CLASS_BITS = 2;
+
+    /**
+     * smallest size class, bitmaps below are not worth pooling
+     */
+    static final int MIN_SIZE_CLASS = 4096;
+
+    /**
+     * a pooled bitmap is handed out for requests needing at least 1 / MAX_OVERSIZE of it
+     */
+    private static final int MAX_OVERSIZE = 2;
+
+    private static BitmapPool sInstance;
+
+    /**
+     * KitKat and above, bitmaps can be reconfigured and decoded into at any smaller size
+     */
+    private final boolean mReconfigurable;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mSizeClasses = new TreeMap<>();
+    /**
+     * every pooled bitmap, least recently released first
+     */
+    private final LinkedHashSet<Bitmap> mReleaseOrder = new LinkedHashSet<>();
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private long mMaxBytes;
+    private long mSize;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    BitmapPool(long maxBytes, boolean reconfigurable) {
+        mMaxBytes = maxBytes;
+        mReconfigurable = reconfigurable;
+    }
+
+    /**
+     * Returns the pool shared by the whole app.
+     *
+     * @return The bitmap pool
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / MEMORY_FRACTION,
+                    Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the pool shared by the whole app, registering it for memory trim callbacks.
+     *
+     * @param context called context
+     * @return The bitmap pool
+     */
+    public static synchronized BitmapPool getInstance(Context context) {
+        boolean registered = sInstance != null;
+        BitmapPool pool = getInstance();
+        if (!registered) {
+            context.getApplicationContext().registerComponentCallbacks(pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Sets how many bytes of bitmaps the pool keeps, evicting bitmaps if it holds more.
+     *
+     * @param maxBytes The byte budget of the pool
+     */
+    public synchronized void setMaxSize(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Returns a pooled bitmap a picture of the given size can be decoded into through inBitmap.
+     * Its size and content are left as they are.
+     *
+     * @param width  The width of the decoded picture
+     * @param height The height of the decoded picture
+     * @param config The config of the decoded picture
+     * @return A pooled bitmap, or null if none fits
+     */
+    public Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        return take(width, height, config, false);
+    }
+
+    /**
+     * Returns a pooled bitmap a region of the given size can be decoded into through inBitmap
+     * by a BitmapRegionDecoder. Unlike BitmapFactory, it does not reconfigure the bitmap but
+     * decodes into its top left corner at its own width, so the bitmap has to be at least as
+     * wide and as tall as the region, in the same config. Its size and content are left as
+     * they are.
+     *
+     * @param width  The width of the decoded region
+     * @param height The height of the decoded region
+     * @param config The config of the decoded region
+     * @return A pooled bitmap, or null if none fits
+     */
+    public Bitmap getRegionReusable(int width, int height, Bitmap.Config config) {
+        return take(width, height, config, true);
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config,
+                                     boolean region) {
+        int byteCount = getByteCount(width, height, config);
+        int minSizeClass = getSizeClass(byteCount);
+        long maxSizeClass = (long) byteCount * MAX_OVERSIZE;
+
+        Map.Entry<Integer, ArrayDeque<Bitmap>> sizeClass = mSizeClasses.ceilingEntry(minSizeClass);
+        for (; sizeClass != null && sizeClass.getKey() <= maxSizeClass;
+             sizeClass = mSizeClasses.higherEntry(sizeClass.getKey())) {
+            for (Iterator<Bitmap> bitmaps = sizeClass.getValue().iterator(); bitmaps.hasNext(); ) {
+                Bitmap bitmap = bitmaps.next();
+                if (fits(bitmap, width, height, config, byteCount, region)) {
+                    bitmaps.remove();
+                    if (sizeClass.getValue().isEmpty()) {
+                        mSizeClasses.remove(sizeClass.getKey());
+                    }
+                    mReleaseOrder.remove(bitmap);
+                    mSize -= getAllocationByteCount(bitmap);
+                    mHits++;
+                    return bitmap;
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Returns a transparent mutable bitmap of the given size, reusing a pooled one if possible.
+     *
+     * @param width  The width of the bitmap
+     * @param height The height of the bitmap
+     * @param config The config of the bitmap
+     * @return The bitmap, to be given back with {@link #put(Bitmap)} once it is not used anymore
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config) {
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.eraseColor(0);
+        return bitmap;
+    }
+
+    /**
+     * Returns a mutable copy of the bitmap scaled to the given size, with bilinear filtering.
+     *
+     * @param source The bitmap to scale
+     * @param width  The width of the copy
+     * @param height The height of the copy
+     * @return The scaled copy, to be given back with {@link #put(Bitmap)}
+     */
+    public Bitmap scale(Bitmap source, int width, int height) {
+        Bitmap scaled = get(width, height, getConfig(source));
+        new Canvas(scaled).drawBitmap(source, null, new Rect(0, 0, width, height), mScalePaint);
+        return scaled;
+    }
+
+    /**
+     * Returns a mutable copy of the bitmap.
+     *
+     * @param source The bitmap to copy
+     * @return The copy, to be given back with {@link #put(Bitmap)}
+     */
+    public Bitmap copy(Bitmap source) {
+        Bitmap copy = get(source.getWidth(), source.getHeight(), getConfig(source));
+        new Canvas(copy).drawBitmap(source, 0, 0, null);
+        return copy;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. It must not be used by the caller anymore.
+     *
+     * @param bitmap The bitmap, recycled if it can not be pooled
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mReleaseOrder.contains(bitmap)) {
+            return;
+        }
+        int byteCount = getAllocationByteCount(bitmap);
+        if (!bitmap.isMutable() || byteCount < MIN_SIZE_CLASS || byteCount > mMaxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+
+        int sizeClass = getSizeClass(byteCount);
+        ArrayDeque<Bitmap> bitmaps = mSizeClasses.get(sizeClass);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mSizeClasses.put(sizeClass, bitmaps);
+        }
+        bitmaps.addFirst(bitmap);
+        mReleaseOrder.add(bitmap);
+        mSize += byteCount;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Recycles the least recently released bitmaps until the pool holds at most the given size.
+     *
+     * @param maxBytes The size to trim to
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Bitmap> releaseOrder = mReleaseOrder.iterator();
+        while (mSize > maxBytes && releaseOrder.hasNext()) {
+            Bitmap bitmap = releaseOrder.next();
+            releaseOrder.remove();
+            int byteCount = getAllocationByteCount(bitmap);
+            int sizeClass = getSizeClass(byteCount);
+            ArrayDeque<Bitmap> bitmaps = mSizeClasses.get(sizeClass);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                mSizeClasses.remove(sizeClass);
+            }
+            mSize -= byteCount;
+            mEvictions++;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Recycles every pooled bitmap.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The bytes of the pooled bitmaps
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of requests served by a pooled bitmap
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return The number of requests no pooled bitmap fitted
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * @return The number of bitmaps recycled to stay within the budget
+     */
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Rounds a byte count down to its size class, four size classes per power of two.
+     *
+     * @param byteCount The allocation size of a bitmap
+     * @return The largest size class the byte count holds
+     */
+    static int getSizeClass(int byteCount) {
+        if (byteCount <= MIN_SIZE_CLASS) {
+            return MIN_SIZE_CLASS;
+        }
+        int exponent = 31 - Integer.numberOfLeadingZeros(byteCount);
+        int step = 1 << (exponent - SUB_CLASS_BITS);
+        return byteCount / step * step;
+    }
+
+    private boolean fits(Bitmap bitmap, int width, int height, Bitmap.Config config,
+                         int byteCount, boolean region) {
+        if (!mReconfigurable) {
+            return bitmap.getWidth() == width && bitmap.getHeight() == height
+                    && bitmap.getConfig() == config;
+        }
+        if (region) {
+            return bitmap.getConfig() == config && bitmap.getWidth() >= width
+                    && bitmap.getHeight() >= height;
+        }
+        return getAllocationByteCount(bitmap) >= byteCount;
+    }
+
+    private static int getByteCount(int width, int height, Bitmap.Config config) {
+        int bytesPerPixel;
+        if (config == Bitmap.Config.ALPHA_8) {
+            bytesPerPixel = 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            bytesPerPixel = 2;
+        } else {
+            bytesPerPixel = 4;
+        }
+        return width * height * bytesPerPixel;
+    }
+
+    private int getAllocationByteCount(Bitmap bitmap) {
+        return mReconfigurable ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private static Bitmap.Config getConfig(Bitmap bitmap) {
+        return bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        Timber.d("Trimming bitmap pool of %d bytes, level : %d, hits %d, misses %d, evictions %d",
+                mSize, level, mHits, mMisses, mEvictions);
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
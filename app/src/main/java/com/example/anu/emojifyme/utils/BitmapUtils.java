@@ -20,8 +20,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Environment;
+import android.support.media.ExifInterface;
 import android.support.v4.content.FileProvider;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
@@ -29,14 +34,15 @@ import android.widget.Toast;
 
 import com.example.anu.emojifyme.R;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 
+import timber.log.Timber;
+
 public class BitmapUtils {
 
     private static final String FILE_PROVIDER_AUTHORITY = "com.example.android.fileprovider";
@@ -50,30 +56,225 @@ public class BitmapUtils {
      * @return The resampled bitmap
      */
     public static Bitmap resamplePic(Context context, String imagePath) {
+        DisplayMetrics metrics = getDisplayMetrics(context);
+        return resamplePic(imagePath, metrics.widthPixels, metrics.heightPixels);
+    }
 
-        // Get device screen size information
+    /**
+     * @param context The application context.
+     * @return The device screen size information
+     */
+    static DisplayMetrics getDisplayMetrics(Context context) {
         DisplayMetrics metrics = new DisplayMetrics();
         WindowManager manager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
         manager.getDefaultDisplay().getMetrics(metrics);
+        return metrics;
+    }
+
+    /**
+     * Resamples the captured photo to fit the given size, e.g. the bounds of the ImageView.
+     *
+     * The photo is subsampled by a power of two while decoding, so it is never decoded at full
+     * resolution, and then scaled down to exactly fit the target size. Photos without alpha are
+     * decoded as RGB_565. Both the subsampled and the scaled bitmaps come from the
+     * {@link BitmapPool}, give the returned bitmap back to it once it is not used anymore.
+     *
+     * @param imagePath The path of the photo to be resampled.
+     * @param targetW   The width the photo has to fit in.
+     * @param targetH   The height the photo has to fit in.
+     * @return The resampled bitmap, or null if the photo could not be decoded
+     */
+    public static Bitmap resamplePic(String imagePath, int targetW, int targetH) {
+        return resamplePic(imagePath, null, targetW, targetH);
+    }
+
+    /**
+     * Resamples a photo already read into memory, see {@link #resamplePic(String, int, int)}.
+     *
+     * @param data    The encoded photo.
+     * @param targetW The width the photo has to fit in.
+     * @param targetH The height the photo has to fit in.
+     * @return The resampled bitmap, or null if the photo could not be decoded
+     */
+    public static Bitmap resamplePic(byte[] data, int targetW, int targetH) {
+        return resamplePic(null, data, targetW, targetH);
+    }
 
-        int targetH = metrics.heightPixels;
-        int targetW = metrics.widthPixels;
+    private static Bitmap resamplePic(String imagePath, byte[] data, int targetW, int targetH) {
 
         // Get the dimensions of the original bitmap
         BitmapFactory.Options bmOptions = new BitmapFactory.Options();
         bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(imagePath, bmOptions);
+        decode(imagePath, data, bmOptions);
         int photoW = bmOptions.outWidth;
         int photoH = bmOptions.outHeight;
+        if (photoW <= 0 || photoH <= 0) {
+            return null;
+        }
 
-        // Determine how much to scale down the image
-        int scaleFactor = Math.min(photoW / targetW, photoH / targetH);
+        // Determine the size the photo is displayed at
+        float scale = Math.min(1f, Math.min((float) targetW / photoW, (float) targetH / photoH));
+        int fitW = Math.max(1, Math.round(photoW * scale));
+        int fitH = Math.max(1, Math.round(photoH * scale));
 
-        // Decode the image file into a Bitmap sized to fill the View
+        // Decode the image file subsampled as much as possible while staying above the fit size
         bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
+        bmOptions.inSampleSize = calculateInSampleSize(photoW, photoH, fitW, fitH);
+        bmOptions.inPreferredConfig = hasAlpha(bmOptions.outMimeType)
+                ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        bmOptions.inMutable = true;
+
+        long decodeStart = EmojifyMetrics.startTimer();
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap reusable = pool.getReusable(divideRoundingUp(photoW, bmOptions.inSampleSize),
+                divideRoundingUp(photoH, bmOptions.inSampleSize), bmOptions.inPreferredConfig);
+        if (canReuse(reusable, bmOptions)) {
+            bmOptions.inBitmap = reusable;
+        } else {
+            pool.put(reusable);
+        }
+        Bitmap decoded;
+        try {
+            decoded = decode(imagePath, data, bmOptions);
+        } catch (IllegalArgumentException e) {
+            // The bitmap could not be reused, decode into a new one
+            bmOptions.inBitmap = null;
+            decoded = decode(imagePath, data, bmOptions);
+        }
+        if (decoded == null && bmOptions.inBitmap != null) {
+            pool.put(bmOptions.inBitmap);
+        }
+        if (decoded != null && EmojifyMetrics.isEnabled()) {
+            EmojifyMetrics.record(EmojifyMetrics.Metric.DECODED_BYTES, decoded.getByteCount());
+            EmojifyMetrics.record(EmojifyMetrics.Metric.SAMPLE_SIZE, bmOptions.inSampleSize);
+        }
+        if (decoded == null || (decoded.getWidth() == fitW && decoded.getHeight() == fitH)) {
+            EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.RESAMPLE, decodeStart);
+            return decoded;
+        }
+
+        // Scale the subsampled bitmap down to the exact size and keep it for the next decode
+        Bitmap resampled = pool.scale(decoded, fitW, fitH);
+        pool.put(decoded);
+        EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.RESAMPLE, decodeStart);
+        return resampled;
+    }
+
+    private static Bitmap decode(String imagePath, byte[] data, BitmapFactory.Options options) {
+        return data != null ? BitmapFactory.decodeByteArray(data, 0, data.length, options)
+                : BitmapFactory.decodeFile(imagePath, options);
+    }
+
+    /**
+     * Turns a decoded photo upright according to its EXIF orientation. The rotated bitmap comes
+     * from the {@link BitmapPool} and the given one is given back to it.
+     *
+     * @param bitmap      The decoded photo
+     * @param orientation The EXIF orientation of the photo, one of the ExifInterface constants
+     * @return The upright photo, the given bitmap itself if it already is
+     */
+    public static Bitmap applyExifOrientation(Bitmap bitmap, int orientation) {
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                return bitmap;
+        }
+
+        // Move the turned photo back to the origin
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap.Config config = bitmap.getConfig() != null
+                ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap upright = pool.get(Math.round(bounds.width()), Math.round(bounds.height()), config);
+        new Canvas(upright).drawBitmap(bitmap, matrix, null);
+        pool.put(bitmap);
+        return upright;
+    }
+
+    /**
+     * Returns whether a photo in the given EXIF orientation is stored sideways, its width and
+     * height swapped.
+     *
+     * @param orientation The EXIF orientation of the photo
+     * @return True for the orientations turning the photo by 90 degrees
+     */
+    public static boolean isSideways(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_90
+                || orientation == ExifInterface.ORIENTATION_TRANSVERSE
+                || orientation == ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * Returns the largest power of two the photo can be subsampled by while staying at least
+     * as big as the requested size.
+     *
+     * @param photoW The width of the photo.
+     * @param photoH The height of the photo.
+     * @param reqW   The requested width.
+     * @param reqH   The requested height.
+     * @return The sample size, at least 1
+     */
+    static int calculateInSampleSize(int photoW, int photoH, int reqW, int reqH) {
+        int inSampleSize = 1;
+        while (photoW / (inSampleSize * 2) >= reqW && photoH / (inSampleSize * 2) >= reqH) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
 
-        return BitmapFactory.decodeFile(imagePath);
+    private static boolean hasAlpha(String mimeType) {
+        return mimeType == null || !mimeType.equals("image/jpeg");
+    }
+
+    /**
+     * Checks whether the bitmap can be decoded into with the given options.
+     */
+    private static boolean canReuse(Bitmap candidate, BitmapFactory.Options options) {
+        if (candidate == null || candidate.isRecycled() || !candidate.isMutable()) {
+            return false;
+        }
+
+        int width = divideRoundingUp(options.outWidth, options.inSampleSize);
+        int height = divideRoundingUp(options.outHeight, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // Before KitKat, only bitmaps of the exact same size can be reused
+            return candidate.getWidth() == width && candidate.getHeight() == height
+                    && options.inSampleSize == 1;
+        }
+
+        int bytesPerPixel = options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        return candidate.getAllocationByteCount() >= width * height * bytesPerPixel;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
     }
 
     /**
@@ -123,7 +324,7 @@ public class BitmapUtils {
      *
      * @param imagePath The path of the saved image
      */
-    private static void galleryAddPic(Context context, String imagePath) {
+    public static void galleryAddPic(Context context, String imagePath) {
         Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
         File f = new File(imagePath);
         Uri contentUri = Uri.fromFile(f);
@@ -133,51 +334,101 @@ public class BitmapUtils {
 
 
     /**
-     * Helper method for saving the image.
+     * Helper method for saving the image. It blocks while the image is encoded and written,
+     * prefer {@link ImageSaver#saveAsync} on the main thread.
      *
      * @param context The application context.
      * @param image   The image to be saved.
-     * @return The path of the saved image.
+     * @return The path of the saved image, or null if it could not be saved.
      */
     public static String saveImage(Context context, Bitmap image) {
 
         String savedImagePath = null;
-
-        // Create the new file in the external storage
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
-                Locale.getDefault()).format(new Date());
-        String imageFileName = "JPEG_" + timeStamp + ".jpg";
-        File storageDir = new File(
-                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
-                        + "/Emojify");
-        boolean success = true;
-        if (!storageDir.exists()) {
-            success = storageDir.mkdirs();
-        }
-
-        // Save the new Bitmap
-        if (success) {
-            File imageFile = new File(storageDir, imageFileName);
-            savedImagePath = imageFile.getAbsolutePath();
-            try {
-                OutputStream fOut = new FileOutputStream(imageFile);
-                image.compress(Bitmap.CompressFormat.JPEG, 100, fOut);
-                fOut.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            // Add the image to the system gallery
-            galleryAddPic(context, savedImagePath);
+        try {
+            savedImagePath = ImageSaver.save(context, image, ImageSaver.Options.DEFAULT).getPath();
 
             // Show a Toast with the save location
             String savedMessage = context.getString(R.string.saved_message, savedImagePath);
             Toast.makeText(context, savedMessage, Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Timber.e(e, "Could not save the image");
+            Toast.makeText(context, R.string.save_error, Toast.LENGTH_SHORT).show();
         }
 
         return savedImagePath;
     }
 
+    /**
+     * Returns the directory emojified images are saved in, creating it if needed.
+     *
+     * @return The storage directory
+     * @throws IOException Thrown if the directory could not be created
+     */
+    public static File getStorageDir() throws IOException {
+        File storageDir = new File(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES)
+                        + "/Emojify");
+        if (!storageDir.exists() && !storageDir.mkdirs()) {
+            throw new IOException("Could not create " + storageDir);
+        }
+        return storageDir;
+    }
+
+    /**
+     * Returns a new image file in the Emojify storage directory, named after its format and the
+     * current time, without creating it. A counter is appended when several images are saved
+     * within the same second. The name is only free until another image is saved, see
+     * {@link ImageSaver#publish(File, String)}.
+     *
+     * @param extension The extension of the file, including the dot.
+     * @return The new image file
+     * @throws IOException Thrown if the storage directory could not be created
+     */
+    public static File getNewImageFile(String extension) throws IOException {
+        File storageDir = getStorageDir();
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
+                Locale.getDefault()).format(new Date());
+        String prefix = getImageFilePrefix(extension);
+        File imageFile = new File(storageDir, prefix + timeStamp + extension);
+        for (int i = 1; imageFile.exists(); i++) {
+            imageFile = new File(storageDir, prefix + timeStamp + "_" + i + extension);
+        }
+        return imageFile;
+    }
+
+    /**
+     * Returns the start of the name of an image file, after its format.
+     *
+     * @param extension The extension of the file, including the dot.
+     * @return The prefix of the name
+     */
+    static String getImageFilePrefix(String extension) {
+        if (".webp".equalsIgnoreCase(extension)) {
+            return "WEBP_";
+        }
+        if (".png".equalsIgnoreCase(extension)) {
+            return "PNG_";
+        }
+        return "JPEG_";
+    }
+
+    /**
+     * Closes a stream after a failure or once it was only read, when an error closing it
+     * changes nothing but is still worth a log line.
+     *
+     * @param closeable The stream to close, may be null
+     */
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.w(e, "Could not close %s", closeable);
+        }
+    }
+
     /**
      * Helper method for sharing an image.
      *
@@ -0,0 +1,211 @@
+package com.example.anu.emojifyme.utils;
+
+/**
+ * A face found by a {@link FaceDetectionBackend}, independent of the library that found it.
+ */
+public final class DetectedFace {
+
+    private final int mId;
+    private final float mLeft;
+    private final float mTop;
+    private final float mWidth;
+    private final float mHeight;
+    private final float mSmilingProbability;
+    private final float mLeftEyeOpenProbability;
+    private final float mRightEyeOpenProbability;
+    private final float mEulerZ;
+    private final float mLeftEyeX;
+    private final float mLeftEyeY;
+    private final float mRightEyeX;
+    private final float mRightEyeY;
+
+    /**
+     * @param id                      The tracking id, the same for a face on every frame it is on
+     * @param left                    The left edge of the face
+     * @param top                     The top edge of the face
+     * @param width                   The width of the face
+     * @param height                  The height of the face
+     * @param smilingProbability      The probability that the person is smiling, negative if
+     *                                it could not be computed
+     * @param leftEyeOpenProbability  The probability that the left eye is open, negative if
+     *                                it could not be computed
+     * @param rightEyeOpenProbability The probability that the right eye is open, negative if
+     *                                it could not be computed
+     */
+    public DetectedFace(int id, float left, float top, float width, float height,
+                        float smilingProbability, float leftEyeOpenProbability,
+                        float rightEyeOpenProbability) {
+        this(id, left, top, width, height, smilingProbability, leftEyeOpenProbability,
+                rightEyeOpenProbability, 0, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+    }
+
+    /**
+     * @param id                      The tracking id, the same for a face on every frame it is on
+     * @param left                    The left edge of the face
+     * @param top                     The top edge of the face
+     * @param width                   The width of the face
+     * @param height                  The height of the face
+     * @param smilingProbability      The probability that the person is smiling, negative if
+     *                                it could not be computed
+     * @param leftEyeOpenProbability  The probability that the left eye is open, negative if
+     *                                it could not be computed
+     * @param rightEyeOpenProbability The probability that the right eye is open, negative if
+     *                                it could not be computed
+     * @param eulerZ                  The counter-clockwise rotation of the face within the
+     *                                picture, in degrees
+     * @param leftEyeX                The horizontal position of the left eye of the person,
+     *                                NaN if it was not found
+     * @param leftEyeY                The vertical position of the left eye of the person,
+     *                                NaN if it was not found
+     * @param rightEyeX               The horizontal position of the right eye of the person,
+     *                                NaN if it was not found
+     * @param rightEyeY               The vertical position of the right eye of the person,
+     *                                NaN if it was not found
+     */
+    public DetectedFace(int id, float left, float top, float width, float height,
+                        float smilingProbability, float leftEyeOpenProbability,
+                        float rightEyeOpenProbability, float eulerZ, float leftEyeX,
+                        float leftEyeY, float rightEyeX, float rightEyeY) {
+        mId = id;
+        mLeft = left;
+        mTop = top;
+        mWidth = width;
+        mHeight = height;
+        mSmilingProbability = smilingProbability;
+        mLeftEyeOpenProbability = leftEyeOpenProbability;
+        mRightEyeOpenProbability = rightEyeOpenProbability;
+        mEulerZ = eulerZ;
+        mLeftEyeX = leftEyeX;
+        mLeftEyeY = leftEyeY;
+        mRightEyeX = rightEyeX;
+        mRightEyeY = rightEyeY;
+    }
+
+    /**
+     * @param id The new id
+     * @return The same face with another id
+     */
+    public DetectedFace withId(int id) {
+        return new DetectedFace(id, mLeft, mTop, mWidth, mHeight, mSmilingProbability,
+                mLeftEyeOpenProbability, mRightEyeOpenProbability, mEulerZ, mLeftEyeX, mLeftEyeY,
+                mRightEyeX, mRightEyeY);
+    }
+
+    /**
+     * @param dx The horizontal offset
+     * @param dy The vertical offset
+     * @return The same face moved by the offset, landmarks included
+     */
+    public DetectedFace offset(float dx, float dy) {
+        return new DetectedFace(mId, mLeft + dx, mTop + dy, mWidth, mHeight, mSmilingProbability,
+                mLeftEyeOpenProbability, mRightEyeOpenProbability, mEulerZ, mLeftEyeX + dx,
+                mLeftEyeY + dy, mRightEyeX + dx, mRightEyeY + dy);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public float getLeft() {
+        return mLeft;
+    }
+
+    public float getTop() {
+        return mTop;
+    }
+
+    public float getWidth() {
+        return mWidth;
+    }
+
+    public float getHeight() {
+        return mHeight;
+    }
+
+    public float getSmilingProbability() {
+        return mSmilingProbability;
+    }
+
+    public float getLeftEyeOpenProbability() {
+        return mLeftEyeOpenProbability;
+    }
+
+    public float getRightEyeOpenProbability() {
+        return mRightEyeOpenProbability;
+    }
+
+    public float getEulerZ() {
+        return mEulerZ;
+    }
+
+    /**
+     * @return Whether both eyes were found, so the face can be placed by its landmarks
+     */
+    public boolean hasEyes() {
+        return !Float.isNaN(mLeftEyeX) && !Float.isNaN(mLeftEyeY)
+                && !Float.isNaN(mRightEyeX) && !Float.isNaN(mRightEyeY);
+    }
+
+    public float getLeftEyeX() {
+        return mLeftEyeX;
+    }
+
+    public float getLeftEyeY() {
+        return mLeftEyeY;
+    }
+
+    public float getRightEyeX() {
+        return mRightEyeX;
+    }
+
+    public float getRightEyeY() {
+        return mRightEyeY;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DetectedFace)) return false;
+        DetectedFace face = (DetectedFace) o;
+        return mId == face.mId
+                && Float.compare(mLeft, face.mLeft) == 0
+                && Float.compare(mTop, face.mTop) == 0
+                && Float.compare(mWidth, face.mWidth) == 0
+                && Float.compare(mHeight, face.mHeight) == 0
+                && Float.compare(mSmilingProbability, face.mSmilingProbability) == 0
+                && Float.compare(mLeftEyeOpenProbability, face.mLeftEyeOpenProbability) == 0
+                && Float.compare(mRightEyeOpenProbability, face.mRightEyeOpenProbability) == 0
+                && Float.compare(mEulerZ, face.mEulerZ) == 0
+                && Float.compare(mLeftEyeX, face.mLeftEyeX) == 0
+                && Float.compare(mLeftEyeY, face.mLeftEyeY) == 0
+                && Float.compare(mRightEyeX, face.mRightEyeX) == 0
+                && Float.compare(mRightEyeY, face.mRightEyeY) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mId;
+        result = 31 * result + Float.floatToIntBits(mLeft);
+        result = 31 * result + Float.floatToIntBits(mTop);
+        result = 31 * result + Float.floatToIntBits(mWidth);
+        result = 31 * result + Float.floatToIntBits(mHeight);
+        result = 31 * result + Float.floatToIntBits(mSmilingProbability);
+        result = 31 * result + Float.floatToIntBits(mLeftEyeOpenProbability);
+        result = 31 * result + Float.floatToIntBits(mRightEyeOpenProbability);
+        result = 31 * result + Float.floatToIntBits(mEulerZ);
+        result = 31 * result + Float.floatToIntBits(mLeftEyeX);
+        result = 31 * result + Float.floatToIntBits(mLeftEyeY);
+        result = 31 * result + Float.floatToIntBits(mRightEyeX);
+        result = 31 * result + Float.floatToIntBits(mRightEyeY);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "DetectedFace{id=" + mId + ", box=" + mLeft + "," + mTop + " " + mWidth + "x" + mHeight
+                + ", smiling=" + mSmilingProbability + ", leftEyeOpen=" + mLeftEyeOpenProbability
+                + ", rightEyeOpen=" + mRightEyeOpenProbability + ", eulerZ=" + mEulerZ
+                + ", eyes=" + mLeftEyeX + "," + mLeftEyeY + " " + mRightEyeX + "," + mRightEyeY
+                + "}";
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Draws all the emojis of a picture onto a single canvas.
+ *
+ * A mutable background is drawn on in place, otherwise exactly one mutable copy of it is made,
+ * so memory stays at one full size frame no matter how many faces are in the picture.
+ */
+public class EmojiCompositor {
+
+    private static final float EMOJI_SCALE_FACTOR = .9f;
+
+    private final Bitmap mResultBitmap;
+    private final Canvas mCanvas;
+
+    /**
+     * reused for every emoji, so drawing a face does not allocate
+     */
+    private final RectF mEmojiBounds = new RectF();
+    private final float[] mEmojiEdges = new float[4];
+    private final Matrix mEmojiMatrix = new Matrix();
+
+    /**
+     * smooths the edges of turned emojis, upright ones are drawn without a paint
+     */
+    private final Paint mRotatedPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * @param backgroundBitmap The original picture
+     */
+    public EmojiCompositor(Bitmap backgroundBitmap) {
+        this(backgroundBitmap, 0, 0);
+    }
+
+    /**
+     * Draws on a tile of a larger picture. Faces are given in the coordinates of the picture.
+     *
+     * @param tileBitmap The tile of the original picture
+     * @param left       The left edge of the tile in the picture
+     * @param top        The top edge of the tile in the picture
+     */
+    public EmojiCompositor(Bitmap tileBitmap, int left, int top) {
+        mResultBitmap = obtainMutableBitmap(tileBitmap);
+        mCanvas = new Canvas(mResultBitmap);
+        mCanvas.translate(-left, -top);
+    }
+
+    /**
+     * Returns a bitmap that can be drawn on, copying the given one only if it is immutable.
+     *
+     * @param bitmap The original picture
+     * @return The given bitmap if it is mutable, otherwise a single mutable copy of it
+     */
+    static Bitmap obtainMutableBitmap(Bitmap bitmap) {
+        if (bitmap.isMutable()) {
+            return bitmap;
+        }
+
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        return bitmap.copy(config, true);
+    }
+
+    /**
+     * Returns the width the emoji is drawn at for a face of the given width.
+     *
+     * @param faceWidth The width of the detected face
+     * @return The width of the emoji
+     */
+    public static int getEmojiWidth(float faceWidth) {
+        return (int) (faceWidth * EMOJI_SCALE_FACTOR);
+    }
+
+    /**
+     * Draws the emoji over the face, scaled to match the width of the face.
+     *
+     * @param emojiBitmap The chosen emoji
+     * @param faceX       The left edge of the detected face
+     * @param faceY       The top edge of the detected face
+     * @param faceWidth   The width of the detected face
+     * @param faceHeight  The height of the detected face
+     */
+    public void drawEmoji(Bitmap emojiBitmap, float faceX, float faceY, float faceWidth, float faceHeight) {
+        getEmojiBounds(emojiBitmap.getWidth(), emojiBitmap.getHeight(), faceX, faceY, faceWidth,
+                faceHeight, mEmojiEdges);
+        mEmojiBounds.set(mEmojiEdges[0], mEmojiEdges[1], mEmojiEdges[2], mEmojiEdges[3]);
+
+        // Scale the emoji while drawing it instead of allocating a scaled copy
+        mCanvas.drawBitmap(emojiBitmap, null, mEmojiBounds, null);
+    }
+
+    /**
+     * Draws the emoji of a face where the placement puts it, turned with the face.
+     *
+     * @param emojiBitmap The chosen emoji
+     * @param placement   The placement of the emojis of all the faces
+     * @param index       The index of the face
+     */
+    public void drawEmoji(Bitmap emojiBitmap, EmojiPlacement placement, int index) {
+        placement.getMatrix(index, emojiBitmap, mEmojiMatrix);
+        mCanvas.drawBitmap(emojiBitmap, mEmojiMatrix,
+                placement.isRotated(index) ? mRotatedPaint : null);
+    }
+
+    /**
+     * Computes where an emoji of the given size is drawn over the face.
+     *
+     * @param emojiWidth  The width of the chosen emoji
+     * @param emojiHeight The height of the chosen emoji
+     * @param faceX       The left edge of the detected face
+     * @param faceY       The top edge of the detected face
+     * @param faceWidth   The width of the detected face
+     * @param faceHeight  The height of the detected face
+     * @param bounds      Set to the left, top, right and bottom edges of the emoji
+     */
+    public static void getEmojiBounds(int emojiWidth, int emojiHeight, float faceX, float faceY,
+                                      float faceWidth, float faceHeight, float[] bounds) {
+
+        // Determine the size of the emoji to match the width of the face and preserve aspect ratio
+        int newEmojiWidth = getEmojiWidth(faceWidth);
+        int newEmojiHeight = (int) (emojiHeight * newEmojiWidth / emojiWidth * EMOJI_SCALE_FACTOR);
+
+        // Determine the emoji position so it best lines up with the face
+        float emojiPositionX = (faceX + faceWidth / 2) - newEmojiWidth / 2;
+        float emojiPositionY = (faceY + faceHeight / 2) - newEmojiHeight / 3;
+
+        bounds[0] = emojiPositionX;
+        bounds[1] = emojiPositionY;
+        bounds[2] = emojiPositionX + newEmojiWidth;
+        bounds[3] = emojiPositionY + newEmojiHeight;
+    }
+
+    /**
+     * @return The final bitmap, including the emojis over the faces
+     */
+    public Bitmap getResultBitmap() {
+        return mResultBitmap;
+    }
+}
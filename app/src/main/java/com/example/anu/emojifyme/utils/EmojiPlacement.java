@@ -0,0 +1,251 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import java.util.List;
+
+/**
+ * Where the emojis of a picture are drawn: the bounds and rotation of the emoji of every face,
+ * computed for all the faces at once in a single pass over float arrays.
+ *
+ * A face whose eyes were found gets its emoji centered just below the eyes and turned with the
+ * line between them, so the eyes of the emoji sit on the eyes of the face. Any other face gets
+ * its emoji over its bounding box as {@link EmojiCompositor#getEmojiBounds} places it, turned by
+ * the Euler Z angle of the face. Either way the emoji keeps the size picked from the width of
+ * the face, so placing a face costs the same whatever was detected on it.
+ */
+public final class EmojiPlacement {
+
+    /**
+     * height of the eyes in the emoji sprites, relative to the height of the sprite
+     */
+    static final float EYE_LINE = .4f;
+
+    /**
+     * rotations smaller than this, in degrees, are dropped, so emojis over upright faces are
+     * drawn axis aligned
+     */
+    static final float MIN_ROTATION = 2f;
+
+    /**
+     * floats describing a face and its sprite in the packed geometry
+     */
+    static final int GEOMETRY_STRIDE = 11;
+
+    private static final int FACE_X = 0;
+    private static final int FACE_Y = 1;
+    private static final int FACE_WIDTH = 2;
+    private static final int FACE_HEIGHT = 3;
+    private static final int EULER_Z = 4;
+    private static final int LEFT_EYE_X = 5;
+    private static final int LEFT_EYE_Y = 6;
+    private static final int RIGHT_EYE_X = 7;
+    private static final int RIGHT_EYE_Y = 8;
+    private static final int SPRITE_WIDTH = 9;
+    private static final int SPRITE_HEIGHT = 10;
+
+    private final int mCount;
+
+    /**
+     * left, top, right and bottom edges of every emoji before it is turned
+     */
+    private final float[] mEdges;
+
+    /**
+     * clockwise rotation of every emoji about its center, in degrees
+     */
+    private final float[] mRotations;
+
+    EmojiPlacement(int count, float[] edges, float[] rotations) {
+        mCount = count;
+        mEdges = edges;
+        mRotations = rotations;
+    }
+
+    /**
+     * Places the emojis of all the faces.
+     *
+     * @param faces     The detected faces
+     * @param faceScale The factor mapping the faces to the picture the emojis are drawn on
+     * @param sprites   The sprite of every face, null for a face without emoji
+     * @return The placement of every emoji, in the coordinates of the picture
+     */
+    public static EmojiPlacement place(List<DetectedFace> faces, float faceScale,
+                                       Bitmap[] sprites) {
+        int count = faces.size();
+        float[] geometry = new float[GEOMETRY_STRIDE * count];
+        for (int i = 0; i < count; i++) {
+            DetectedFace face = faces.get(i);
+            int offset = GEOMETRY_STRIDE * i;
+            geometry[offset + FACE_X] = face.getLeft() * faceScale;
+            geometry[offset + FACE_Y] = face.getTop() * faceScale;
+            geometry[offset + FACE_WIDTH] = face.getWidth() * faceScale;
+            geometry[offset + FACE_HEIGHT] = face.getHeight() * faceScale;
+            geometry[offset + EULER_Z] = face.getEulerZ();
+            geometry[offset + LEFT_EYE_X] = face.getLeftEyeX() * faceScale;
+            geometry[offset + LEFT_EYE_Y] = face.getLeftEyeY() * faceScale;
+            geometry[offset + RIGHT_EYE_X] = face.getRightEyeX() * faceScale;
+            geometry[offset + RIGHT_EYE_Y] = face.getRightEyeY() * faceScale;
+            if (sprites[i] != null) {
+                geometry[offset + SPRITE_WIDTH] = sprites[i].getWidth();
+                geometry[offset + SPRITE_HEIGHT] = sprites[i].getHeight();
+            }
+        }
+        return place(geometry, count);
+    }
+
+    /**
+     * Places the emojis of faces packed {@link #GEOMETRY_STRIDE} floats per face: left, top,
+     * width, height, Euler Z angle, left eye x and y, right eye x and y, sprite width and height.
+     * Eyes that were not found are NaN, a face without sprite has a sprite width of 0.
+     *
+     * @param geometry The packed faces
+     * @param count    The number of faces
+     * @return The placement of every emoji
+     */
+    static EmojiPlacement place(float[] geometry, int count) {
+        float[] edges = new float[4 * count];
+        float[] rotations = new float[count];
+        float[] bounds = new float[4];
+
+        for (int i = 0; i < count; i++) {
+            int offset = GEOMETRY_STRIDE * i;
+            int spriteWidth = (int) geometry[offset + SPRITE_WIDTH];
+            if (spriteWidth == 0) {
+                continue;
+            }
+
+            /**
+             * size the emoji from the width of the face, and place it over the bounding box
+             */
+            EmojiCompositor.getEmojiBounds(spriteWidth, (int) geometry[offset + SPRITE_HEIGHT],
+                    geometry[offset + FACE_X], geometry[offset + FACE_Y],
+                    geometry[offset + FACE_WIDTH], geometry[offset + FACE_HEIGHT], bounds);
+            float rotation = -geometry[offset + EULER_Z];
+
+            /**
+             * move the emoji onto the eyes of the face, turned with them. The person's right
+             * eye is on the left of the picture, eyes the other way round are not trusted
+             */
+            float eyesX = geometry[offset + LEFT_EYE_X] - geometry[offset + RIGHT_EYE_X];
+            float eyesY = geometry[offset + LEFT_EYE_Y] - geometry[offset + RIGHT_EYE_Y];
+            if (eyesX > 0 && !Float.isNaN(eyesY)) {
+                float eyesLength = (float) Math.hypot(eyesX, eyesY);
+                float cos = eyesX / eyesLength;
+                float sin = eyesY / eyesLength;
+                float halfWidth = (bounds[2] - bounds[0]) / 2;
+                float halfHeight = (bounds[3] - bounds[1]) / 2;
+                float below = (.5f - EYE_LINE) * 2 * halfHeight;
+                float centerX = (geometry[offset + LEFT_EYE_X] + geometry[offset + RIGHT_EYE_X])
+                        / 2 - sin * below;
+                float centerY = (geometry[offset + LEFT_EYE_Y] + geometry[offset + RIGHT_EYE_Y])
+                        / 2 + cos * below;
+                bounds[0] = centerX - halfWidth;
+                bounds[1] = centerY - halfHeight;
+                bounds[2] = centerX + halfWidth;
+                bounds[3] = centerY + halfHeight;
+                rotation = (float) Math.toDegrees(Math.atan2(eyesY, eyesX));
+            }
+
+            System.arraycopy(bounds, 0, edges, 4 * i, 4);
+            rotations[i] = Math.abs(rotation) < MIN_ROTATION ? 0 : rotation;
+        }
+        return new EmojiPlacement(count, edges, rotations);
+    }
+
+    /**
+     * @return The number of faces placed
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param index The index of the face
+     * @return Whether the emoji is turned, so it can not be drawn axis aligned
+     */
+    public boolean isRotated(int index) {
+        return mRotations[index] != 0;
+    }
+
+    /**
+     * @param index The index of the face
+     * @return The clockwise rotation of the emoji about its center, in degrees
+     */
+    public float getRotation(int index) {
+        return mRotations[index];
+    }
+
+    /**
+     * Computes the box holding the emoji once turned.
+     *
+     * @param index  The index of the face
+     * @param bounds Set to the left, top, right and bottom edges of the box
+     */
+    public void getBounds(int index, float[] bounds) {
+        float left = mEdges[4 * index];
+        float top = mEdges[4 * index + 1];
+        float right = mEdges[4 * index + 2];
+        float bottom = mEdges[4 * index + 3];
+        if (mRotations[index] == 0) {
+            bounds[0] = left;
+            bounds[1] = top;
+            bounds[2] = right;
+            bounds[3] = bottom;
+            return;
+        }
+
+        double radians = Math.toRadians(mRotations[index]);
+        float cos = (float) Math.abs(Math.cos(radians));
+        float sin = (float) Math.abs(Math.sin(radians));
+        float halfWidth = (right - left) / 2;
+        float halfHeight = (bottom - top) / 2;
+        float centerX = left + halfWidth;
+        float centerY = top + halfHeight;
+        float boxHalfWidth = cos * halfWidth + sin * halfHeight;
+        float boxHalfHeight = sin * halfWidth + cos * halfHeight;
+        bounds[0] = centerX - boxHalfWidth;
+        bounds[1] = centerY - boxHalfHeight;
+        bounds[2] = centerX + boxHalfWidth;
+        bounds[3] = centerY + boxHalfHeight;
+    }
+
+    /**
+     * Sets the matrix drawing the sprite of the face at its place.
+     *
+     * @param index  The index of the face
+     * @param sprite The sprite of the face
+     * @param matrix Set to the scale, translation and rotation of the sprite
+     */
+    public void getMatrix(int index, Bitmap sprite, Matrix matrix) {
+        float left = mEdges[4 * index];
+        float top = mEdges[4 * index + 1];
+        float right = mEdges[4 * index + 2];
+        float bottom = mEdges[4 * index + 3];
+        matrix.setScale((right - left) / sprite.getWidth(), (bottom - top) / sprite.getHeight());
+        matrix.postTranslate(left, top);
+        if (mRotations[index] != 0) {
+            matrix.postRotate(mRotations[index], (left + right) / 2, (top + bottom) / 2);
+        }
+    }
+
+    /**
+     * Draws the sprite of every face, through the same matrix.
+     *
+     * @param canvas  The canvas of the picture
+     * @param sprites The sprite of every face, null for a face without emoji
+     * @param matrix  Reused for every sprite
+     * @param paint   The paint the sprites are drawn with
+     */
+    public void draw(Canvas canvas, Bitmap[] sprites, Matrix matrix, Paint paint) {
+        for (int i = 0; i < mCount; i++) {
+            if (sprites[i] != null) {
+                getMatrix(i, sprites[i], matrix);
+                canvas.drawBitmap(sprites[i], matrix, paint);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Cache of the emoji sprites, so each drawable is decoded once and each scaled size is created once.
+ *
+ * Each drawable is built once into a mip chain of box filtered halvings. A sprite is scaled from
+ * the smallest level at least as wide as it, so the final filtered scale never shrinks by more
+ * than half and small sprites do not alias.
+ *
+ * Scaled sprites are keyed by emoji and a quantized width, and kept in an LRU bounded by their
+ * size in bytes. The cache is trimmed when the system asks the app to release memory.
+ */
+public class EmojiSpriteCache implements ComponentCallbacks2 {
+
+    /**
+     * sprite widths are rounded up to a multiple of this, so faces of almost the same size
+     * share one scaled sprite
+     */
+    private static final int WIDTH_QUANTUM = 16;
+
+    /**
+     * fraction of the heap the scaled sprites are allowed to use
+     */
+    private static final int MEMORY_FRACTION = 16;
+
+    /**
+     * version of the emoji drawables, to bump whenever a change makes cached outputs stale
+     */
+    public static final int SPRITE_SET_VERSION = 2;
+
+    private static EmojiSpriteCache sInstance;
+
+    private final Resources mResources;
+    /**
+     * mip chain of every emoji, the decoded drawable first
+     */
+    private final Bitmap[][] mMipChains = new Bitmap[Emojifier.Emoji.values().length][];
+    private final LruCache<Integer, Bitmap> mScaledEmojis;
+
+    private EmojiSpriteCache(Context context, int maxBytes) {
+        mResources = context.getResources();
+        mScaledEmojis = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by the whole app, registering it for memory trim callbacks.
+     *
+     * @param context called context
+     * @return The sprite cache
+     */
+    public static synchronized EmojiSpriteCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            int maxBytes = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+            sInstance = new EmojiSpriteCache(appContext, maxBytes);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the emoji scaled to at least the given width, preserving its aspect ratio.
+     *
+     * @param emoji The chosen emoji
+     * @param width The width the emoji is going to be drawn at
+     * @return The scaled emoji, or null if its drawable could not be decoded
+     */
+    public synchronized Bitmap getSprite(Emojifier.Emoji emoji, int width) {
+        int quantizedWidth = quantizeWidth(width);
+        Integer key = quantizedWidth * Emojifier.Emoji.values().length + emoji.ordinal();
+
+        Bitmap sprite = mScaledEmojis.get(key);
+        if (sprite != null) {
+            return sprite;
+        }
+
+        Bitmap[] mipChain = getMipChain(emoji);
+        if (mipChain == null) {
+            return null;
+        }
+        Bitmap level = mipChain[pickLevel(mipChain, quantizedWidth)];
+
+        int height = Math.max(1, level.getHeight() * quantizedWidth / level.getWidth());
+        // Sprites can still be drawn after they are evicted, so they are taken from the pool
+        // but never given back to it
+        sprite = BitmapPool.getInstance().scale(level, quantizedWidth, height);
+        mScaledEmojis.put(key, sprite);
+        return sprite;
+    }
+
+    /**
+     * Rounds the width up to the next multiple of {@link #WIDTH_QUANTUM}.
+     */
+    static int quantizeWidth(int width) {
+        return Math.max(1, (width + WIDTH_QUANTUM - 1) / WIDTH_QUANTUM) * WIDTH_QUANTUM;
+    }
+
+    /**
+     * Returns the index of the smallest level at least as wide as the sprite, or the largest
+     * level if the sprite is wider than all of them.
+     *
+     * @param mipChain The levels, each half as wide as the one before
+     * @param width    The width of the sprite
+     * @return The index of the level to scale the sprite from
+     */
+    static int pickLevel(Bitmap[] mipChain, int width) {
+        int level = 0;
+        while (level + 1 < mipChain.length && mipChain[level + 1].getWidth() >= width) {
+            level++;
+        }
+        return level;
+    }
+
+    private Bitmap[] getMipChain(Emojifier.Emoji emoji) {
+        Bitmap[] mipChain = mMipChains[emoji.ordinal()];
+        if (mipChain == null) {
+            Bitmap decodedEmoji = BitmapFactory.decodeResource(mResources, emoji.drawableRes);
+            if (decodedEmoji == null) {
+                return null;
+            }
+            mipChain = buildMipChain(decodedEmoji);
+            mMipChains[emoji.ordinal()] = mipChain;
+        }
+        return mipChain;
+    }
+
+    /**
+     * Halves the bitmap until the next level would be narrower than {@link #WIDTH_QUANTUM}.
+     *
+     * @param bitmap The full size emoji
+     * @return The levels, the given bitmap first
+     */
+    private static Bitmap[] buildMipChain(Bitmap bitmap) {
+        List<Bitmap> levels = new ArrayList<>();
+        levels.add(bitmap);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        BitmapPool pool = BitmapPool.getInstance();
+        while (width / 2 >= WIDTH_QUANTUM && height > 1) {
+            pixels = halve(pixels, width, height);
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            Bitmap level = pool.get(width, height, Bitmap.Config.ARGB_8888);
+            level.setPixels(pixels, 0, width, 0, 0, width, height);
+            levels.add(level);
+        }
+        return levels.toArray(new Bitmap[levels.size()]);
+    }
+
+    /**
+     * Box filters the pixels down to half their size, averaging every two by two block weighted
+     * by alpha so transparent pixels do not darken the edges. An odd last row or column is
+     * averaged with itself.
+     *
+     * @param pixels Pixels as returned by {@link Bitmap#getPixels}
+     * @param width  The width of the pixels
+     * @param height The height of the pixels
+     * @return The halved pixels, rounded up in size
+     */
+    static int[] halve(int[] pixels, int width, int height) {
+        int halfWidth = (width + 1) / 2;
+        int halfHeight = (height + 1) / 2;
+        int[] halved = new int[halfWidth * halfHeight];
+        for (int y = 0; y < halfHeight; y++) {
+            int row0 = 2 * y * width;
+            int row1 = Math.min(2 * y + 1, height - 1) * width;
+            for (int x = 0; x < halfWidth; x++) {
+                int column0 = 2 * x;
+                int column1 = Math.min(2 * x + 1, width - 1);
+                int p0 = pixels[row0 + column0];
+                int p1 = pixels[row0 + column1];
+                int p2 = pixels[row1 + column0];
+                int p3 = pixels[row1 + column1];
+
+                int a0 = p0 >>> 24;
+                int a1 = p1 >>> 24;
+                int a2 = p2 >>> 24;
+                int a3 = p3 >>> 24;
+                int alpha = a0 + a1 + a2 + a3;
+                if (alpha == 0) {
+                    continue;
+                }
+                int half = alpha / 2;
+                int red = (((p0 >> 16) & 0xff) * a0 + ((p1 >> 16) & 0xff) * a1
+                        + ((p2 >> 16) & 0xff) * a2 + ((p3 >> 16) & 0xff) * a3 + half) / alpha;
+                int green = (((p0 >> 8) & 0xff) * a0 + ((p1 >> 8) & 0xff) * a1
+                        + ((p2 >> 8) & 0xff) * a2 + ((p3 >> 8) & 0xff) * a3 + half) / alpha;
+                int blue = ((p0 & 0xff) * a0 + (p1 & 0xff) * a1
+                        + (p2 & 0xff) * a2 + (p3 & 0xff) * a3 + half) / alpha;
+                halved[y * halfWidth + x] = (alpha + 2) / 4 << 24 | red << 16 | green << 8 | blue;
+            }
+        }
+        return halved;
+    }
+
+    /**
+     * Drops every scaled sprite and mip chain.
+     */
+    public synchronized void clear() {
+        mScaledEmojis.evictAll();
+        BitmapPool pool = BitmapPool.getInstance();
+        for (int i = 0; i < mMipChains.length; i++) {
+            if (mMipChains[i] != null) {
+                // Levels are only read while scaling a sprite, so the halvings can be reused,
+                // the decoded drawable is immutable and is left to the garbage collector
+                for (int level = 1; level < mMipChains[i].length; level++) {
+                    pool.put(mMipChains[i][level]);
+                }
+                mMipChains[i] = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        Timber.d("Trimming emoji sprites, level : " + level);
+        if (level >= TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW
+                || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mScaledEmojis.trimToSize(mScaledEmojis.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
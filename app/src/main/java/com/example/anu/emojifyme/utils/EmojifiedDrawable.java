@@ -0,0 +1,124 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import java.util.List;
+
+/**
+ * Draws a photo with its emojis over it, without baking them into the photo.
+ *
+ * The photo is decoded at the size it is displayed at and the sprites are scaled for that size,
+ * so displaying an emojified photo needs no full size bitmap. The emojis are drawn over the photo
+ * on every draw, at the resolution of the view.
+ */
+public class EmojifiedDrawable extends Drawable {
+
+    private final Bitmap mBitmap;
+    private final EmojifiedScene mScene;
+    private final Bitmap[] mSprites;
+
+    /**
+     * where every emoji goes, in the coordinates of the bitmap
+     */
+    private final EmojiPlacement mPlacement;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * reused on every draw, so drawing does not allocate
+     */
+    private final Matrix mEmojiMatrix = new Matrix();
+
+    EmojifiedDrawable(Bitmap bitmap, EmojifiedScene scene, Bitmap[] sprites) {
+        mBitmap = bitmap;
+        mScene = scene;
+        mSprites = sprites;
+        mPlacement = EmojiPlacement.place(scene.getFaces(), scene.getFaceScale(bitmap.getWidth()),
+                sprites);
+    }
+
+    /**
+     * Picks the sprite of every face at the size of the photo, safe to call from a background
+     * thread so nothing is decoded or scaled while drawing.
+     *
+     * @param context called context
+     * @param bitmap  The upright photo, at the size it is displayed at
+     * @param scene   The faces and emojis of the photo
+     * @return The drawable
+     */
+    public static EmojifiedDrawable create(Context context, Bitmap bitmap, EmojifiedScene scene) {
+        EmojiSpriteCache spriteCache = EmojiSpriteCache.getInstance(context);
+        List<DetectedFace> faces = scene.getFaces();
+        Emojifier.Emoji[] emojis = scene.getEmojis();
+        float faceScale = scene.getFaceScale(bitmap.getWidth());
+        Bitmap[] sprites = new Bitmap[faces.size()];
+        for (int i = 0; i < sprites.length; i++) {
+            sprites[i] = spriteCache.getSprite(emojis[i],
+                    EmojiCompositor.getEmojiWidth(faces.get(i).getWidth() * faceScale));
+        }
+        return new EmojifiedDrawable(bitmap, scene, sprites);
+    }
+
+    /**
+     * @return The photo, without the emojis
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * @return The faces and emojis, to draw the photo again at another size
+     */
+    public EmojifiedScene getScene() {
+        return mScene;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        canvas.drawBitmap(mBitmap, null, bounds, mPaint);
+
+        // Map the coordinates of the bitmap to the bounds once for all the emojis
+        int saveCount = canvas.save();
+        canvas.translate(bounds.left, bounds.top);
+        canvas.scale((float) bounds.width() / mBitmap.getWidth(),
+                (float) bounds.height() / mBitmap.getHeight());
+        mPlacement.draw(canvas, mSprites, mEmojiMatrix, mPaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return mBitmap.hasAlpha() ? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.anu.emojifyme.utils;
+
+import android.support.media.ExifInterface;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What an emojified photo is made of: the photo it comes from, the faces detected in it and the
+ * emoji chosen for each face. Nothing is drawn until the photo is displayed or saved, at the
+ * size it is displayed or saved at.
+ */
+public final class EmojifiedScene {
+
+    private final String mSourcePath;
+    private final int mOrientation;
+    private final List<DetectedFace> mFaces;
+    private final Emojifier.Emoji[] mEmojis;
+    private final float mReferenceWidth;
+
+    /**
+     * @param sourcePath     The path of the photo
+     * @param orientation    The EXIF orientation of the photo
+     * @param faces          The faces, in the coordinates of the upright photo at the reference width
+     * @param emojis         The emoji of each face
+     * @param referenceWidth The width of the upright photo the faces were detected in
+     */
+    EmojifiedScene(String sourcePath, int orientation, List<DetectedFace> faces,
+                   Emojifier.Emoji[] emojis, float referenceWidth) {
+        mSourcePath = sourcePath;
+        mOrientation = orientation;
+        mFaces = Collections.unmodifiableList(faces);
+        mEmojis = emojis;
+        mReferenceWidth = referenceWidth;
+    }
+
+    /**
+     * @return The path of the photo
+     */
+    public String getSourcePath() {
+        return mSourcePath;
+    }
+
+    /**
+     * @return The EXIF orientation of the photo, ORIENTATION_NORMAL if it is stored upright
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * @return Whether the photo is stored upright, so its rows can be read as they are
+     */
+    public boolean isStoredUpright() {
+        return mOrientation == ExifInterface.ORIENTATION_NORMAL
+                || mOrientation == ExifInterface.ORIENTATION_UNDEFINED;
+    }
+
+    /**
+     * @return The detected faces
+     */
+    public List<DetectedFace> getFaces() {
+        return mFaces;
+    }
+
+    Emojifier.Emoji[] getEmojis() {
+        return mEmojis;
+    }
+
+    /**
+     * @return The number of faces, 0 if the photo is left unchanged
+     */
+    public int getFaceCount() {
+        return mFaces.size();
+    }
+
+    /**
+     * @param width The width of the upright picture the faces are drawn on
+     * @return The factor mapping the faces to that picture
+     */
+    public float getFaceScale(int width) {
+        return width / mReferenceWidth;
+    }
+}
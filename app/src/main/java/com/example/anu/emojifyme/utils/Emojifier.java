@@ -2,17 +2,12 @@ package com.example.anu.emojifyme.utils;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.util.Log;
-import android.util.SparseArray;
 import android.widget.Toast;
 
 import com.example.anu.emojifyme.R;
-import com.google.android.gms.common.data.BitmapTeleporter;
-import com.google.android.gms.vision.Frame;
-import com.google.android.gms.vision.face.Face;
-import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.List;
 
 import timber.log.Timber;
 
@@ -27,10 +22,80 @@ public class Emojifier {
     /**
      * Threshold constants for a person smiling, and and eye being open
      */
-    private static final double SMILING_PROB_THRESHOLD = .15;
-    private static final double EYE_OPEN_PROB_THRESHOLD = .15;
+    public static final double SMILING_PROB_THRESHOLD = .15;
+    public static final double EYE_OPEN_PROB_THRESHOLD = .15;
+
+    /**
+     * thresholds currently used, see {@link #setThresholds(double, double)}
+     */
+    private static volatile double sSmilingProbThreshold = SMILING_PROB_THRESHOLD;
+    private static volatile double sEyeOpenProbThreshold = EYE_OPEN_PROB_THRESHOLD;
+
+    /**
+     * bits of the emoji table index
+     */
+    private static final int SMILING = 4;
+    private static final int LEFT_EYE_CLOSED = 2;
+    private static final int RIGHT_EYE_CLOSED = 1;
 
-    private static final float EMOJI_SCALE_FACTOR = .9f;
+    /**
+     * emoji for every combination of smiling, left eye closed and right eye closed
+     */
+    private static final Emoji[] EMOJI_TABLE = {
+            Emoji.FROWN,
+            Emoji.RIGHT_WINK_FROWN,
+            Emoji.LEFT_WINK_FROWN,
+            Emoji.CLOSED_EYE_FROWN,
+            Emoji.SMILE,
+            Emoji.RIGHT_WINK,
+            Emoji.LEFT_WINK,
+            Emoji.CLOSED_EYE_SMILE
+    };
+
+    /**
+     * Long edge of the picture faces are detected on. Classification barely improves above it,
+     * while detection time grows with the number of pixels.
+     */
+    public static final int DEFAULT_DETECTION_SIZE = 640;
+
+    /**
+     * detection size meaning faces are detected on the full resolution picture
+     */
+    public static final int FULL_RESOLUTION = 0;
+
+    /**
+     * backend set with {@link #setDetectionBackend(FaceDetectionBackend)}, Mobile Vision if null
+     */
+    private static volatile FaceDetectionBackend sBackend;
+
+    /**
+     * method to replace the backend detecting faces, e.g. by a {@link ReplayFaceDetectionBackend}
+     * to run the pipeline without Play Services
+     * @param backend the backend, or null to detect faces with Mobile Vision again
+     */
+    public static void setDetectionBackend(FaceDetectionBackend backend){
+        sBackend = backend;
+    }
+
+    /**
+     * method to get the backend detecting faces
+     * @param context called context
+     * @return the backend set with {@link #setDetectionBackend(FaceDetectionBackend)}, or a
+     * Mobile Vision backend by default
+     */
+    public static FaceDetectionBackend getDetectionBackend(Context context){
+        FaceDetectionBackend backend = sBackend;
+        if (backend == null) {
+            synchronized (Emojifier.class) {
+                backend = sBackend;
+                if (backend == null) {
+                    backend = new VisionFaceDetectionBackend(context.getApplicationContext());
+                    sBackend = backend;
+                }
+            }
+        }
+        return backend;
+    }
 
     /**
      * method to detect faces
@@ -38,195 +103,262 @@ public class Emojifier {
      * @param bitmap bitmap of the picture in which to detect faces
      */
     public static Bitmap detectFacesAndOverlayEmoji(Context context, Bitmap bitmap){
-        /**
-         * create face detector, disable tracking and enable classifications
-         */
-        FaceDetector faceDetector = new FaceDetector.Builder(context)
-                .setTrackingEnabled(false)
-                .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
-                .build();
+        List<DetectedFace> faces = detectFaces(context, bitmap, DEFAULT_DETECTION_SIZE);
 
         /**
-         * build frame
+         * toast a message if no faces is detected
          */
-        Frame frame = new Frame.Builder().setBitmap(bitmap).build();
+        if (faces.isEmpty()) {
+            Toast.makeText(context, context.getResources().getString(R.string.no_face_detected), Toast.LENGTH_SHORT).show();
+            return bitmap;
+        }
+
+        return overlayEmojis(context, bitmap, faces, classifyFaces(faces),
+                getFaceScale(bitmap, DEFAULT_DETECTION_SIZE));
+    }
+
+    /**
+     * method to detect the faces in a picture, safe to call from a background thread
+     *
+     * Faces are detected on a copy of the picture downscaled so its long edge is at most
+     * detectionSize. The positions and sizes of the returned faces are relative to that copy,
+     * multiply them by {@link #getFaceScale(Bitmap, int)} to get back to the picture.
+     *
+     * @param context called context
+     * @param bitmap bitmap of the picture in which to detect faces
+     * @param detectionSize the long edge of the picture faces are detected on,
+     *                      or {@link #FULL_RESOLUTION}
+     * @return the detected faces
+     */
+    public static List<DetectedFace> detectFaces(Context context, Bitmap bitmap, int detectionSize){
+        float faceScale = getFaceScale(bitmap, detectionSize);
+        if (faceScale == 1f) {
+            return detectFaces(context, bitmap);
+        }
 
         /**
-         * detect faces and store in an array
+         * build the downscaled proxy and detect on it
          */
-        SparseArray<Face> faceSparseArray = faceDetector.detect(frame);
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap proxyBitmap = pool.scale(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() / faceScale)),
+                Math.max(1, Math.round(bitmap.getHeight() / faceScale)));
+        try {
+            return detectFaces(context, proxyBitmap);
+        } finally {
+            pool.put(proxyBitmap);
+        }
+    }
+
+    /**
+     * method to get the factor mapping faces detected with the given detection size back
+     * to the picture
+     * @param bitmap bitmap of the picture in which to detect faces
+     * @param detectionSize the long edge of the picture faces are detected on,
+     *                      or {@link #FULL_RESOLUTION}
+     * @return the factor, 1 if faces are detected on the picture itself
+     */
+    public static float getFaceScale(Bitmap bitmap, int detectionSize){
+        int longEdge = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (detectionSize == FULL_RESOLUTION || longEdge <= detectionSize) {
+            return 1f;
+        }
+        return (float) longEdge / detectionSize;
+    }
+
+    /**
+     * method to detect the faces in a picture at full resolution, safe to call from a
+     * background thread
+     * @param context called context
+     * @param bitmap bitmap of the picture in which to detect faces
+     * @return the detected faces
+     */
+    public static List<DetectedFace> detectFaces(Context context, Bitmap bitmap){
+        List<DetectedFace> faces = getDetectionBackend(context).detect(bitmap);
 
         /**
          * log the number of faces detected
          */
-        Timber.d("Number of faces detected : " + faceSparseArray.size());
+        Timber.d("Number of faces detected : " + faces.size());
+
+        return faces;
+    }
+
+    /**
+     * method to pick the emoji of every detected face
+     * @param faces the detected faces
+     * @return the emojis, in the same order as the faces
+     */
+    static Emoji[] classifyFaces(List<DetectedFace> faces){
+        Emoji[] emojis = new Emoji[faces.size()];
+        for (int i=0; i<emojis.length; i++){
+            long classifyStart = EmojifyMetrics.startTimer();
+            emojis[i] = whichEmoji(faces.get(i));
+            EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.CLASSIFY_FACE, classifyStart);
+        }
+        return emojis;
+    }
 
+    /**
+     * method to describe an emojified photo without drawing anything, the emojis are only
+     * drawn once the photo is displayed or saved, at that size
+     * @param sourcePath the path of the photo
+     * @param orientation the EXIF orientation of the photo
+     * @param faces the faces detected in the upright photo
+     * @param referenceWidth the width of the upright photo the faces were detected in
+     * @return the scene of the photo
+     */
+    public static EmojifiedScene describeScene(String sourcePath, int orientation,
+                                               List<DetectedFace> faces, float referenceWidth){
+        return new EmojifiedScene(sourcePath, orientation, faces, classifyFaces(faces),
+                referenceWidth);
+    }
+
+    /**
+     * method to draw the emojis over the faces, safe to call from a background thread
+     * @param context called context
+     * @param bitmap bitmap of the picture the faces were detected in
+     * @param faces the detected faces
+     * @param emojis the emoji of each face
+     * @param faceScale the factor mapping the faces to the picture, see
+     *                  {@link #getFaceScale(Bitmap, int)}
+     * @return the picture with the emojis over the faces
+     */
+    static Bitmap overlayEmojis(Context context, Bitmap bitmap, List<DetectedFace> faces,
+                                Emoji[] emojis, float faceScale){
         /**
-         * initialize the resultBitmap to original image
+         * all the emojis are drawn onto a single bitmap, so only one full size bitmap
+         * is ever allocated no matter how many faces are detected, and group photos are
+         * blended in int[] buffers in parallel rather than face after face on a canvas
          */
-        Bitmap resultBitmap = bitmap;
+        EmojiCompositor compositor = faces.size() >= PixelCompositor.MIN_FACES
+                ? new PixelCompositor(bitmap) : new EmojiCompositor(bitmap);
+        EmojiSpriteCache spriteCache = EmojiSpriteCache.getInstance(context);
 
         /**
-         * toast a message if no faces is detected
+         * bitmaps to hold the emojis, decoded and scaled only once per emoji and size
          */
-        if (faceSparseArray.size() == 0)
-            Toast.makeText(context, context.getResources().getString(R.string.no_face_detected), Toast.LENGTH_SHORT).show();
-        else {
-            for (int i=0; i<faceSparseArray.size(); i++){
-                Face face = faceSparseArray.valueAt(i);
-
-                /**
-                 * bitmap to hold the emoji
-                 */
-                Bitmap bitmapEmoji;
-
-                switch (whichEmoji(face)){
-                    case SMILE:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.smile);
-                        break;
-                    case FROWN:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.frown);
-                        break;
-                    case LEFT_WINK:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.leftwink);
-                        break;
-                    case RIGHT_WINK:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.rightwink);
-                        break;
-                    case LEFT_WINK_FROWN:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.leftwinkfrown);
-                        break;
-                    case RIGHT_WINK_FROWN:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.rightwinkfrown);
-                        break;
-                    case CLOSED_EYE_SMILE:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.closed_smile);
-                        break;
-                    case CLOSED_EYE_FROWN:
-                        bitmapEmoji = BitmapFactory.decodeResource(context.getResources(),
-                                R.drawable.closed_frown);
-                        break;
-                    default:
-                        bitmapEmoji = null;
-                        Toast.makeText(context, R.string.no_emoji, Toast.LENGTH_SHORT).show();
-                }
+        Bitmap[] sprites = new Bitmap[faces.size()];
+        for (int i=0; i<faces.size(); i++){
+            sprites[i] = spriteCache.getSprite(emojis[i],
+                    EmojiCompositor.getEmojiWidth(faces.get(i).getWidth() * faceScale));
+            if (sprites[i] == null) {
+                Timber.e("No emoji found for " + emojis[i].name());
+            }
+        }
 
-                // Add the emojiBitmap to the proper position in the original image
-                resultBitmap = addBitmapToFace(resultBitmap, bitmapEmoji, face);
+        /**
+         * place all the emojis on the landmarks of their face at once, then draw them
+         */
+        EmojiPlacement placement = EmojiPlacement.place(faces, faceScale, sprites);
+        for (int i=0; i<sprites.length; i++){
+            if (sprites[i] != null) {
+                long compositeStart = EmojifyMetrics.startTimer();
+                compositor.drawEmoji(sprites[i], placement, i);
+                EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.COMPOSITE_FACE, compositeStart);
             }
         }
 
-        faceDetector.release();
-        return resultBitmap;
+        return compositor.getResultBitmap();
     }
 
     /**
      * method to log the classification probabilities
      * it logs the probability of each eye being open and that the person is smiling
      */
-    public static Emoji whichEmoji(Face face){
-        Timber.d("smiimg : " + face.getIsSmilingProbability());
-        Timber.d("left eye open : " + face.getIsLeftEyeOpenProbability());
-        Timber.d("right eye open : " + face.getIsRightEyeOpenProbability());
+    public static Emoji whichEmoji(DetectedFace face){
+        return whichEmoji(face.getSmilingProbability(), face.getLeftEyeOpenProbability(),
+                face.getRightEyeOpenProbability());
+    }
 
+    /**
+     * method to pick the emoji from the classification probabilities of a face
+     * @param smilingProb the probability that the person is smiling
+     * @param leftEyeOpenProb the probability that the left eye is open
+     * @param rightEyeOpenProb the probability that the right eye is open
+     * @return the emoji matching the facial expression
+     */
+    static Emoji whichEmoji(float smilingProb, float leftEyeOpenProb, float rightEyeOpenProb){
         /**
-         * variables to track the state of the facial expression based on the thresholds
+         * get the state of the facial expression based on the thresholds
          */
-        boolean isSmiling = face.getIsSmilingProbability() > SMILING_PROB_THRESHOLD;
-        boolean isLeftEyeClosed = face.getIsLeftEyeOpenProbability() < EYE_OPEN_PROB_THRESHOLD;
-        boolean isRightEyeClosed = face.getIsRightEyeOpenProbability() < EYE_OPEN_PROB_THRESHOLD;
-
-        // Determine and log the appropriate emoji
-        Emoji emoji;
+        Emoji emoji = getEmoji(smilingProb > sSmilingProbThreshold,
+                leftEyeOpenProb < sEyeOpenProbThreshold, rightEyeOpenProb < sEyeOpenProbThreshold);
 
         /**
-         * selects the appropriate emoji
+         * only build the log messages when they go somewhere, so nothing is allocated per face
+         * in release builds
          */
-        if(isSmiling) {
-            if (isLeftEyeClosed && !isRightEyeClosed) {
-                emoji = Emoji.LEFT_WINK;
-            }  else if(isRightEyeClosed && !isLeftEyeClosed){
-                emoji = Emoji.RIGHT_WINK;
-            } else if (isLeftEyeClosed){
-                emoji = Emoji.CLOSED_EYE_SMILE;
-            } else {
-                emoji = Emoji.SMILE;
-            }
-        } else {
-            if (isLeftEyeClosed && !isRightEyeClosed) {
-                emoji = Emoji.LEFT_WINK_FROWN;
-            }  else if(isRightEyeClosed && !isLeftEyeClosed){
-                emoji = Emoji.RIGHT_WINK_FROWN;
-            } else if (isLeftEyeClosed){
-                emoji = Emoji.CLOSED_EYE_FROWN;
-            } else {
-                emoji = Emoji.FROWN;
-            }
+        if (Timber.treeCount() > 0) {
+            Timber.d("smiimg : " + smilingProb);
+            Timber.d("left eye open : " + leftEyeOpenProb);
+            Timber.d("right eye open : " + rightEyeOpenProb);
+            Timber.d("emoji : " + emoji.name());
         }
-
-        Timber.d("emoji : " + emoji.name());
         return emoji;
     }
 
     /**
-     * enum class that contains all the possible emoji you can make
-     * (smiling, frowning, left wink, right wink, left wink frowning, right wink frowning, closed eye smiling, close eye frowning).
+     * method to pick the emoji of an already classified facial expression
+     * @param smiling whether the person is smiling
+     * @param leftEyeClosed whether the left eye is closed
+     * @param rightEyeClosed whether the right eye is closed
+     * @return the emoji matching the facial expression
      */
-    private enum Emoji{
-        SMILE,
-        FROWN,
-        LEFT_WINK,
-        RIGHT_WINK,
-        LEFT_WINK_FROWN,
-        RIGHT_WINK_FROWN,
-        CLOSED_EYE_SMILE,
-        CLOSED_EYE_FROWN
+    static Emoji getEmoji(boolean smiling, boolean leftEyeClosed, boolean rightEyeClosed){
+        /**
+         * pack the state of the facial expression into a table index
+         */
+        return EMOJI_TABLE[(smiling ? SMILING : 0)
+                | (leftEyeClosed ? LEFT_EYE_CLOSED : 0)
+                | (rightEyeClosed ? RIGHT_EYE_CLOSED : 0)];
     }
 
     /**
-     * Combines the original picture with the emoji bitmaps
-     *
-     * @param backgroundBitmap The original picture
-     * @param emojiBitmap      The chosen emoji
-     * @param face             The detected face
-     * @return The final bitmap, including the emojis over the faces
+     * @return the probability above which a person is smiling
      */
-    private static Bitmap addBitmapToFace(Bitmap backgroundBitmap, Bitmap emojiBitmap, Face face) {
-
-        // Initialize the results bitmap to be a mutable copy of the original image
-        Bitmap resultBitmap = Bitmap.createBitmap(backgroundBitmap.getWidth(),
-                backgroundBitmap.getHeight(), backgroundBitmap.getConfig());
-
-        // Scale the emoji so it looks better on the face
-        float scaleFactor = EMOJI_SCALE_FACTOR;
-
-        // Determine the size of the emoji to match the width of the face and preserve aspect ratio
-        int newEmojiWidth = (int) (face.getWidth() * scaleFactor);
-        int newEmojiHeight = (int) (emojiBitmap.getHeight() *
-                newEmojiWidth / emojiBitmap.getWidth() * scaleFactor);
+    static double getSmilingProbThreshold(){
+        return sSmilingProbThreshold;
+    }
 
+    /**
+     * @return the probability below which an eye is closed
+     */
+    static double getEyeOpenProbThreshold(){
+        return sEyeOpenProbThreshold;
+    }
 
-        // Scale the emoji
-        emojiBitmap = Bitmap.createScaledBitmap(emojiBitmap, newEmojiWidth, newEmojiHeight, false);
+    /**
+     * method to change the thresholds the emojis are picked with
+     * @param smilingProbThreshold above it a person is smiling
+     * @param eyeOpenProbThreshold below it an eye is closed
+     */
+    public static void setThresholds(double smilingProbThreshold, double eyeOpenProbThreshold){
+        sSmilingProbThreshold = smilingProbThreshold;
+        sEyeOpenProbThreshold = eyeOpenProbThreshold;
+    }
 
-        // Determine the emoji position so it best lines up with the face
-        float emojiPositionX =
-                (face.getPosition().x + face.getWidth() / 2) - emojiBitmap.getWidth() / 2;
-        float emojiPositionY =
-                (face.getPosition().y + face.getHeight() / 2) - emojiBitmap.getHeight() / 3;
+    /**
+     * enum class that contains all the possible emoji you can make
+     * (smiling, frowning, left wink, right wink, left wink frowning, right wink frowning, closed eye smiling, close eye frowning).
+     */
+    enum Emoji{
+        SMILE(R.drawable.smile),
+        FROWN(R.drawable.frown),
+        LEFT_WINK(R.drawable.leftwink),
+        RIGHT_WINK(R.drawable.rightwink),
+        LEFT_WINK_FROWN(R.drawable.leftwinkfrown),
+        RIGHT_WINK_FROWN(R.drawable.rightwinkfrown),
+        CLOSED_EYE_SMILE(R.drawable.closed_smile),
+        CLOSED_EYE_FROWN(R.drawable.closed_frown);
 
-        // Create the canvas and draw the bitmaps to it
-        Canvas canvas = new Canvas(resultBitmap);
-        canvas.drawBitmap(backgroundBitmap, 0, 0, null);
-        canvas.drawBitmap(emojiBitmap, emojiPositionX, emojiPositionY, null);
+        /**
+         * drawable holding the picture of the emoji
+         */
+        final int drawableRes;
 
-        return resultBitmap;
+        Emoji(int drawableRes) {
+            this.drawableRes = drawableRes;
+        }
     }
 }
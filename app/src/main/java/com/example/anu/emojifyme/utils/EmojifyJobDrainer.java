@@ -0,0 +1,180 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import timber.log.Timber;
+
+/**
+ * Drains the {@link EmojifyJobQueue} chunk by chunk on a background thread, until the queue is
+ * empty or the drain is stopped.
+ *
+ * Every chunk is emojified by its own {@link BatchEmojifier} and checkpointed once it is done.
+ * A stopped drain lets the batch finish the images being processed, which its journal records,
+ * and leaves the chunk at the head of the queue for the next drain.
+ */
+class EmojifyJobDrainer implements Runnable {
+
+    /**
+     * Receives the end of the drain, on the drain thread
+     */
+    interface Listener {
+
+        /**
+         * @param drained Whether the queue was drained, false if the drain was stopped or failed
+         * @param stats   The counters of the images processed by this drain, aborted if a chunk
+         *                could not be processed
+         */
+        void onDrainFinished(boolean drained, BatchEmojifier.Stats stats);
+    }
+
+    /**
+     * images of a chunk allowed in memory at once, kept low as the app may be in the background
+     */
+    private static final int MAX_DECODED_BITMAPS = 2;
+
+    /**
+     * drain started by {@link #drainNow(Context)}, on devices without a job scheduler
+     */
+    private static EmojifyJobDrainer sImmediateDrainer;
+
+    private final Context mContext;
+    private final EmojifyJobQueue mQueue;
+    private final Listener mListener;
+    private final BatchEmojifier.Stats mStats = new BatchEmojifier.Stats();
+
+    private volatile boolean mStopped;
+    private volatile BatchEmojifier mBatch;
+
+    EmojifyJobDrainer(Context context, Listener listener) {
+        mContext = context.getApplicationContext();
+        mQueue = EmojifyJobQueue.getInstance(mContext);
+        mListener = listener;
+    }
+
+    /**
+     * Drains the queue right away unless it is being drained, for devices without a job
+     * scheduler. The drain lasts as long as the process.
+     *
+     * @param context called context
+     */
+    static synchronized void drainNow(final Context context) {
+        if (sImmediateDrainer != null) {
+            return;
+        }
+        sImmediateDrainer = new EmojifyJobDrainer(context, new Listener() {
+            @Override
+            public void onDrainFinished(boolean drained, BatchEmojifier.Stats stats) {
+                synchronized (EmojifyJobDrainer.class) {
+                    sImmediateDrainer = null;
+                }
+                // Images enqueued while the last chunk was checkpointed
+                if (drained && !EmojifyJobQueue.getInstance(context).isEmpty()) {
+                    drainNow(context);
+                }
+            }
+        });
+        sImmediateDrainer.start();
+    }
+
+    /**
+     * Starts draining on a new thread.
+     */
+    void start() {
+        new Thread(this, "EmojifyJobDrainer").start();
+    }
+
+    /**
+     * Stops handing out chunks, and images of the current chunk.
+     */
+    void stop() {
+        mStopped = true;
+        BatchEmojifier batch = mBatch;
+        if (batch != null) {
+            batch.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean drained = false;
+        try {
+            while (!mStopped) {
+                EmojifyJobQueue.Chunk chunk = mQueue.nextChunk(EmojifyJobQueue.CHUNK_SIZE);
+                if (chunk == null) {
+                    drained = true;
+                    break;
+                }
+
+                BatchEmojifier batch = new BatchEmojifier(mContext, chunk.getBatchId(),
+                        MAX_DECODED_BITMAPS);
+                BatchEmojifier.Stats stats = emojify(batch, chunk);
+                if (mStopped) {
+                    // the journal of the batch keeps the images it saved until the chunk resumes
+                    break;
+                }
+                if (stats.isAborted()) {
+                    // the chunk stays at the head of the queue for the job to retry it later
+                    Timber.e("Emojify job aborted on chunk " + chunk.getBatchId());
+                    mStats.add(stats);
+                    break;
+                }
+
+                /**
+                 * checkpoint the chunk before forgetting its journal, a kill in between only
+                 * leaves a journal nobody reads
+                 */
+                mQueue.complete(chunk, stats);
+                batch.deleteJournal();
+                mStats.add(stats);
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Could not drain the job queue");
+            mStats.abort();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Timber.d("Emojify job %s : %d emojified, %d cached, %d failed, %d resumed, %.2f images/s",
+                drained ? "drained the queue" : "stopped", mStats.getSucceeded(),
+                mStats.getCached(), mStats.getFailed(), mStats.getSkipped(),
+                mStats.getImagesPerSecond());
+        mListener.onDrainFinished(drained, mStats);
+    }
+
+    /**
+     * runs the batch over the chunk and waits for it to finish
+     */
+    private BatchEmojifier.Stats emojify(BatchEmojifier batch, EmojifyJobQueue.Chunk chunk)
+            throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final BatchEmojifier.Stats[] result = new BatchEmojifier.Stats[1];
+        mBatch = batch;
+        if (mStopped) {
+            batch.cancel();
+        }
+        batch.start(chunk.getImagePaths(), new BatchEmojifier.Listener() {
+            @Override
+            public void onImageEmojified(String imagePath, String savedImagePath, int faceCount) {
+            }
+
+            @Override
+            public void onImageFailed(String imagePath, Throwable error) {
+            }
+
+            @Override
+            public void onBatchFinished(BatchEmojifier.Stats stats) {
+                result[0] = stats;
+                finished.countDown();
+            }
+        });
+        try {
+            finished.await();
+        } finally {
+            mBatch = null;
+        }
+        return result[0];
+    }
+}
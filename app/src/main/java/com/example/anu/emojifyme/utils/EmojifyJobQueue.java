@@ -0,0 +1,458 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.os.Build;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * A persistent queue of images to emojify in the background, e.g. a whole camera roll, drained
+ * chunk by chunk by {@link EmojifyJobService} while the device is idle or charging.
+ *
+ * Image paths are appended one per line to a queue file, so enqueueing costs one append however
+ * long the queue is, and a chunk is read by seeking straight to the first image not processed
+ * yet. A checkpoint file holds the generation of the queue file, the offset of that image and
+ * the counters of every job so far. It is replaced atomically once a chunk is done, so no
+ * completed chunk is handed out again.
+ *
+ * A chunk is emojified by a {@link BatchEmojifier} whose journal is named after the generation
+ * and offset of the chunk. After a kill the chunk is handed out again and the batch skips the
+ * images it already saved, so at most the images being processed are redone. Once the processed
+ * head of the queue file grows large, the rest is copied into the file of the next generation,
+ * which the checkpoint switches to atomically. A drained queue starts a new, empty generation.
+ */
+public class EmojifyJobQueue {
+
+    /**
+     * images emojified by a single {@link BatchEmojifier}, and redone at most after a kill
+     */
+    public static final int CHUNK_SIZE = 32;
+
+    /**
+     * the processed head of the queue file is dropped once it is at least this large and
+     * longer than the rest of the file
+     */
+    static final long COMPACT_BYTES = 1024 * 1024;
+
+    private static final String QUEUE_DIR = "emojify_queue";
+    private static final String QUEUE_FILE_PREFIX = "images.";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String CHUNK_BATCH_PREFIX = "queue-";
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static EmojifyJobQueue sInstance;
+
+    private final File mDirectory;
+    private final File mCheckpointFile;
+
+    /**
+     * generation of the queue file, bumped every time the queue moves to a new file
+     */
+    private int mGeneration;
+    private File mQueueFile;
+
+    /**
+     * offset in the queue file of the first image not processed yet
+     */
+    private long mHead;
+
+    /**
+     * counters of every chunk processed so far
+     */
+    private final BatchEmojifier.Stats mTotals = new BatchEmojifier.Stats();
+
+    EmojifyJobQueue(File directory) {
+        mDirectory = directory;
+        mCheckpointFile = new File(directory, CHECKPOINT_FILE);
+        readCheckpoint();
+        mQueueFile = getQueueFile(mGeneration);
+        deleteStaleFiles();
+    }
+
+    /**
+     * Returns the queue shared by the whole app, in its files directory.
+     *
+     * @param context called context
+     * @return The job queue
+     */
+    public static synchronized EmojifyJobQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EmojifyJobQueue(
+                    new File(context.getApplicationContext().getFilesDir(), QUEUE_DIR));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Adds images to the end of the queue, and schedules the queue to be drained.
+     *
+     * @param context    called context
+     * @param imagePaths The paths of the images to emojify
+     * @throws IOException Thrown if the queue could not be written
+     */
+    public static void enqueueAndSchedule(Context context, List<String> imagePaths)
+            throws IOException {
+        getInstance(context).enqueue(imagePaths);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            EmojifyJobService.schedule(context);
+        } else {
+            // Without a job scheduler the queue is drained right away, while the process lives
+            EmojifyJobDrainer.drainNow(context);
+        }
+    }
+
+    /**
+     * Adds images to the end of the queue.
+     *
+     * @param imagePaths The paths of the images to emojify
+     * @throws IOException Thrown if the queue could not be written
+     */
+    public synchronized void enqueue(List<String> imagePaths) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        dropPartialLine();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(mQueueFile, true), UTF_8));
+        try {
+            for (String imagePath : imagePaths) {
+                if (imagePath.indexOf('\n') >= 0 || imagePath.indexOf('\r') >= 0) {
+                    throw new IllegalArgumentException("Line break in " + imagePath);
+                }
+                writer.write(imagePath);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * cuts a line left without its line break by a crash while enqueueing, so the next paths are
+     * not appended to it. The enqueue writing that line never returned, so its caller never
+     * counted on it.
+     */
+    private void dropPartialLine() throws IOException {
+        if (!mQueueFile.exists()) {
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(mQueueFile, "rw");
+        try {
+            long length = file.length();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long end = length;
+            // Look for the last line break from the end of the file, a buffer at a time
+            while (end > mHead) {
+                int count = (int) Math.min(buffer.length, end - mHead);
+                file.seek(end - count);
+                file.readFully(buffer, 0, count);
+                int i = count - 1;
+                while (i >= 0 && buffer[i] != '\n') {
+                    i--;
+                }
+                if (i >= 0) {
+                    end = end - count + i + 1;
+                    break;
+                }
+                end -= count;
+            }
+            if (end != length) {
+                Timber.w("Dropping %d bytes of a path cut short in the queue", length - end);
+                file.setLength(end);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return Whether every image of the queue was processed
+     */
+    public synchronized boolean isEmpty() {
+        return mHead >= mQueueFile.length();
+    }
+
+    /**
+     * Reads the next images to process. They stay at the head of the queue until
+     * {@link #complete(Chunk, BatchEmojifier.Stats)} is called, so the same chunk is handed out
+     * again if the process dies first.
+     *
+     * @param maxImages The maximum number of images of the chunk
+     * @return The chunk, or null if the queue is empty
+     * @throws IOException Thrown if the queue could not be read
+     */
+    public synchronized Chunk nextChunk(int maxImages) throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+
+        List<String> imagePaths = new ArrayList<>(maxImages);
+        long length = mQueueFile.length();
+        long end = mHead;
+        InputStream in = new FileInputStream(mQueueFile);
+        try {
+            if (in.skip(mHead) != mHead) {
+                throw new IOException("The queue is shorter than its checkpoint");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+            String line;
+            while (imagePaths.size() < maxImages && (line = reader.readLine()) != null) {
+                long lineEnd = end + line.getBytes(UTF_8).length + 1;
+                // A line cut short by a crash while enqueueing has no line break and is dropped
+                if (lineEnd > length) {
+                    break;
+                }
+                end = lineEnd;
+                if (!line.isEmpty()) {
+                    imagePaths.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return end == mHead ? null : new Chunk(mGeneration, mHead, end, imagePaths);
+    }
+
+    /**
+     * Moves the head of the queue past a processed chunk and adds its counters to the totals.
+     *
+     * @param chunk The chunk returned by the last call to {@link #nextChunk(int)}
+     * @param stats The counters of the batch that processed it
+     * @throws IOException Thrown if the checkpoint could not be written
+     */
+    public synchronized void complete(Chunk chunk, BatchEmojifier.Stats stats) throws IOException {
+        if (chunk.mGeneration != mGeneration || chunk.mStart != mHead) {
+            throw new IllegalStateException("Chunk " + chunk.getBatchId()
+                    + " is not at the head of the queue");
+        }
+        mTotals.add(stats);
+
+        long length = mQueueFile.length();
+        if (chunk.mEnd >= length) {
+            // Nothing is left to process, the next import starts from a new, empty file
+            moveToGeneration(mGeneration + 1, length, length);
+        } else if (chunk.mEnd >= COMPACT_BYTES && chunk.mEnd > length - chunk.mEnd) {
+            moveToGeneration(mGeneration + 1, chunk.mEnd, length);
+        } else {
+            mHead = chunk.mEnd;
+            writeCheckpoint();
+        }
+    }
+
+    /**
+     * @return The counters of every job so far, images saved by a killed job are counted as
+     * skipped when the chunk is processed again
+     */
+    public synchronized BatchEmojifier.Stats getTotals() {
+        BatchEmojifier.Stats totals = new BatchEmojifier.Stats();
+        totals.add(mTotals);
+        return totals;
+    }
+
+    /**
+     * copies the images from head to the end of the queue file into the file of the given
+     * generation, then switches the checkpoint to it. A kill before the switch leaves a stale
+     * file, deleted the next time the queue is opened
+     */
+    private void moveToGeneration(int generation, long head, long length) throws IOException {
+        File queueFile = getQueueFile(generation);
+        if (head < length) {
+            InputStream in = new FileInputStream(mQueueFile);
+            OutputStream out = null;
+            try {
+                if (in.skip(head) != head) {
+                    throw new IOException("The queue is shorter than its checkpoint");
+                }
+                FileOutputStream fileOut = new FileOutputStream(queueFile);
+                out = fileOut;
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                // The checkpoint switches to the file, it must be complete on disk first
+                fileOut.getFD().sync();
+                out.close();
+                out = null;
+            } catch (IOException e) {
+                BitmapUtils.closeQuietly(out);
+                queueFile.delete();
+                throw e;
+            } finally {
+                in.close();
+            }
+        }
+
+        File oldQueueFile = mQueueFile;
+        int oldGeneration = mGeneration;
+        long oldHead = mHead;
+        mGeneration = generation;
+        mHead = 0;
+        mQueueFile = queueFile;
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            mGeneration = oldGeneration;
+            mHead = oldHead;
+            mQueueFile = oldQueueFile;
+            queueFile.delete();
+            throw e;
+        }
+        oldQueueFile.delete();
+        Timber.d("Job queue moved to generation %d, dropping its first %d bytes", generation,
+                head);
+    }
+
+    private File getQueueFile(int generation) {
+        return new File(mDirectory, QUEUE_FILE_PREFIX + generation);
+    }
+
+    /**
+     * the highest generation of the queue files in the directory, 0 if there is none
+     */
+    private int findLatestGeneration() {
+        int latest = 0;
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return latest;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(QUEUE_FILE_PREFIX)) {
+                try {
+                    latest = Math.max(latest,
+                            Integer.parseInt(name.substring(QUEUE_FILE_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    Timber.w("Unexpected file %s in the job queue", name);
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * deletes the queue files of other generations, left over by a kill
+     */
+    private void deleteStaleFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(QUEUE_FILE_PREFIX) && !file.equals(mQueueFile)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void writeCheckpoint() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        File tempFile = new File(mCheckpointFile.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        Writer writer = new OutputStreamWriter(out, UTF_8);
+        try {
+            writer.write(mGeneration + " " + mHead + " " + mTotals.getSucceeded() + " "
+                    + mTotals.getFailed() + " " + mTotals.getSkipped() + " "
+                    + mTotals.getCached() + " " + mTotals.getElapsedNanos() + "\n");
+            writer.flush();
+            // Renamed before its content reaches the disk, a power loss could leave it empty
+            out.getFD().sync();
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(mCheckpointFile)) {
+            tempFile.delete();
+            throw new IOException("Could not replace " + mCheckpointFile);
+        }
+    }
+
+    private void readCheckpoint() {
+        if (!mCheckpointFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mCheckpointFile));
+            String line = reader.readLine();
+            String[] fields = line == null ? new String[0] : line.split(" ");
+            if (fields.length != 7) {
+                throw new IOException("Malformed checkpoint : " + line);
+            }
+            mGeneration = Integer.parseInt(fields[0]);
+            mHead = Long.parseLong(fields[1]);
+            mTotals.add(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                    Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+                    Long.parseLong(fields[6]));
+        } catch (IOException | NumberFormatException e) {
+            // The latest queue file holds the pending images, the checkpoint only ever points
+            // at it or at an older file. Starting it over redoes images, the result cache makes
+            // that cheap, but none is dropped
+            mGeneration = findLatestGeneration();
+            mHead = 0;
+            Timber.e(e, "Could not read the job queue checkpoint, starting over generation %d",
+                    mGeneration);
+        } finally {
+            BitmapUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Images handed out together from the head of the queue
+     */
+    public static final class Chunk {
+
+        private final int mGeneration;
+        private final long mStart;
+        private final long mEnd;
+        private final List<String> mImagePaths;
+
+        Chunk(int generation, long start, long end, List<String> imagePaths) {
+            mGeneration = generation;
+            mStart = start;
+            mEnd = end;
+            mImagePaths = Collections.unmodifiableList(imagePaths);
+        }
+
+        /**
+         * @return The paths of the images
+         */
+        public List<String> getImagePaths() {
+            return mImagePaths;
+        }
+
+        /**
+         * @return The id of the batch processing the chunk, the same every time the chunk is
+         * handed out
+         */
+        public String getBatchId() {
+            return CHUNK_BATCH_PREFIX + mGeneration + "-" + mStart;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.anu.emojifyme.utils;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the {@link EmojifyJobQueue} in the background while the device is idle or charging.
+ *
+ * Job constraints can only be combined with "and", so two persisted jobs are scheduled, one
+ * waiting for the charger and one for the device to be idle. Whichever starts first drains the
+ * queue, a job starting meanwhile joins the running drain. The drain stops once no running job
+ * is allowed to go on, and both jobs are scheduled again until the queue is empty.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class EmojifyJobService extends JobService implements EmojifyJobDrainer.Listener {
+
+    private static final int CHARGING_JOB_ID = 1;
+    private static final int IDLE_JOB_ID = 2;
+
+    private static final long BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final List<JobParameters> mJobs = new ArrayList<>();
+    private EmojifyJobDrainer mDrainer;
+
+    /**
+     * Schedules the jobs draining the queue, replacing the ones already scheduled.
+     *
+     * @param context called context
+     */
+    public static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        ComponentName service = new ComponentName(context, EmojifyJobService.class);
+        scheduler.schedule(new JobInfo.Builder(CHARGING_JOB_ID, service)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setBackoffCriteria(BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .build());
+        // idle jobs can not have a backoff, they run again at the next idle window
+        scheduler.schedule(new JobInfo.Builder(IDLE_JOB_ID, service)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build());
+    }
+
+    private static void cancel(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(CHARGING_JOB_ID);
+        scheduler.cancel(IDLE_JOB_ID);
+    }
+
+    @Override
+    public synchronized boolean onStartJob(JobParameters params) {
+        mJobs.add(params);
+        if (mDrainer == null) {
+            mDrainer = new EmojifyJobDrainer(this, this);
+            mDrainer.start();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean onStopJob(JobParameters params) {
+        mJobs.remove(params);
+        if (mJobs.isEmpty() && mDrainer != null) {
+            mDrainer.stop();
+        }
+        // The queue is not drained, run again once the constraints are met
+        return true;
+    }
+
+    @Override
+    public void onDrainFinished(boolean drained, BatchEmojifier.Stats stats) {
+        List<JobParameters> jobs;
+        synchronized (this) {
+            mDrainer = null;
+            jobs = new ArrayList<>(mJobs);
+            mJobs.clear();
+        }
+        // a chunk that could not be processed is retried after the backoff, not right away
+        boolean aborted = stats.isAborted();
+        for (JobParameters job : jobs) {
+            jobFinished(job, aborted);
+        }
+        if (aborted) {
+            return;
+        }
+
+        /**
+         * the finished jobs are dropped by the scheduler, so schedule them again unless
+         * there is nothing left to drain, including images enqueued during the last chunk
+         */
+        if (drained) {
+            cancel(this);
+        }
+        if (!drained || !EmojifyJobQueue.getInstance(this).isEmpty()) {
+            schedule(this);
+        }
+    }
+}
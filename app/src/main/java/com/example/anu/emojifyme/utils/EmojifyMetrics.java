@@ -0,0 +1,380 @@
+package com.example.anu.emojifyme.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Timers and counters around the hot path of the emojify pipeline, so performance can be measured
+ * in the field instead of guessed.
+ *
+ * Every {@link Metric} has a lock-free histogram giving its percentiles, and the most recent
+ * recordings are kept in a ring buffer tagged with the trace they belong to, see
+ * {@link #beginTrace(String)}. Everything can be exported as JSON.
+ *
+ * Metrics are disabled by default. While disabled, a timer costs a single volatile read and
+ * nothing is allocated.
+ */
+public final class EmojifyMetrics {
+
+    /**
+     * what a metric measures
+     */
+    public enum Unit {
+        NANOS("ns"),
+        BYTES("bytes"),
+        COUNT("count");
+
+        final String mSymbol;
+
+        Unit(String symbol) {
+            mSymbol = symbol;
+        }
+    }
+
+    /**
+     * the measured steps of the pipeline
+     */
+    public enum Metric {
+        RESAMPLE(Unit.NANOS),
+        DECODED_BYTES(Unit.BYTES),
+        SAMPLE_SIZE(Unit.COUNT),
+        DETECTOR_BUILD(Unit.NANOS),
+        DETECT(Unit.NANOS),
+        CLASSIFY_FACE(Unit.NANOS),
+        COMPOSITE_FACE(Unit.NANOS),
+        SAVE_ENCODE(Unit.NANOS),
+        SAVE_ENCODE_PASSES(Unit.COUNT),
+        SAVE_WRITE(Unit.NANOS),
+        SAVED_BYTES(Unit.BYTES),
+        LIVE_FRAME(Unit.NANOS);
+
+        final Unit mUnit;
+
+        Metric(Unit unit) {
+            mUnit = unit;
+        }
+    }
+
+    /**
+     * number of recordings kept in the ring buffer
+     */
+    static final int RECENT_EVENTS = 256;
+
+    /**
+     * returned by {@link #startTimer()} while metrics are disabled
+     */
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private static volatile boolean sEnabled;
+
+    private static final Histogram[] sHistograms = new Histogram[Metric.values().length];
+    private static final AtomicReferenceArray<Event> sRecentEvents =
+            new AtomicReferenceArray<>(RECENT_EVENTS);
+    private static final AtomicLong sEventCount = new AtomicLong();
+    private static final AtomicLong sTraceCount = new AtomicLong();
+    private static final ThreadLocal<Trace> sCurrentTrace = new ThreadLocal<>();
+
+    static {
+        for (int i = 0; i < sHistograms.length; i++) {
+            sHistograms[i] = new Histogram();
+        }
+    }
+
+    private EmojifyMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Starts timing a step, to be passed to {@link #stopTimer(Metric, long)}.
+     *
+     * @return The monotonic start time, or a marker ignored by stopTimer if metrics are disabled
+     */
+    public static long startTimer() {
+        return sEnabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Records the time elapsed since {@link #startTimer()}.
+     *
+     * @param metric     The timed step
+     * @param startNanos The value returned by startTimer
+     */
+    public static void stopTimer(Metric metric, long startNanos) {
+        if (startNanos != NOT_STARTED) {
+            record(metric, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a value, e.g. a duration measured by the caller or a number of bytes.
+     *
+     * @param metric The measured step
+     * @param value  The value, in the unit of the metric
+     */
+    public static void record(Metric metric, long value) {
+        if (!sEnabled) {
+            return;
+        }
+        sHistograms[metric.ordinal()].record(value);
+
+        Trace trace = sCurrentTrace.get();
+        long index = sEventCount.getAndIncrement();
+        sRecentEvents.set((int) (index % RECENT_EVENTS), new Event(metric, System.nanoTime(), value,
+                trace == null ? 0 : trace.mId, trace == null ? null : trace.mName));
+    }
+
+    /**
+     * Tags everything recorded on the calling thread with a new trace, until {@link #endTrace()}.
+     *
+     * @param name What is traced, e.g. "emojify"
+     */
+    public static void beginTrace(String name) {
+        if (sEnabled) {
+            sCurrentTrace.set(new Trace(sTraceCount.incrementAndGet(), name));
+        }
+    }
+
+    /**
+     * Ends the trace of the calling thread.
+     */
+    public static void endTrace() {
+        sCurrentTrace.remove();
+    }
+
+    /**
+     * @param metric The measured step
+     * @return The histogram of the values recorded for the step
+     */
+    public static Histogram getHistogram(Metric metric) {
+        return sHistograms[metric.ordinal()];
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static void reset() {
+        for (Histogram histogram : sHistograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < RECENT_EVENTS; i++) {
+            sRecentEvents.set(i, null);
+        }
+        sEventCount.set(0);
+        sTraceCount.set(0);
+    }
+
+    /**
+     * @return The percentiles of every metric and the most recent recordings, as JSON
+     */
+    public static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"enabled\":").append(sEnabled).append(",\"metrics\":{");
+        Metric[] metrics = Metric.values();
+        for (int i = 0; i < metrics.length; i++) {
+            Histogram histogram = sHistograms[i];
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(metrics[i].name()).append("\":{")
+                    .append("\"unit\":\"").append(metrics[i].mUnit.mSymbol).append('"')
+                    .append(",\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(String.format(Locale.US, "%.1f", histogram.getMean()))
+                    .append(",\"p50\":").append(histogram.getPercentile(50))
+                    .append(",\"p95\":").append(histogram.getPercentile(95))
+                    .append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append('}');
+        }
+        json.append("},\"recent\":[");
+
+        long end = sEventCount.get();
+        boolean first = true;
+        for (long index = Math.max(0, end - RECENT_EVENTS); index < end; index++) {
+            Event event = sRecentEvents.get((int) (index % RECENT_EVENTS));
+            if (event == null) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append("{\"metric\":\"").append(event.mMetric.name()).append('"')
+                    .append(",\"timeNanos\":").append(event.mTimeNanos)
+                    .append(",\"value\":").append(event.mValue);
+            if (event.mTraceId != 0) {
+                json.append(",\"trace\":").append(event.mTraceId)
+                        .append(",\"traceName\":\"").append(escape(event.mTraceName)).append('"');
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to the file, replacing it.
+     *
+     * @param file The file to write
+     * @throws IOException Thrown if the file could not be written
+     */
+    public static void writeJson(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < ' ') {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Lock-free histogram of non negative values, with buckets a power of two wide split in
+     * {@link #SUB_BUCKETS} linear sub-buckets, so percentiles are within 12.5% of the exact value.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(bucketOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * the largest value falling in the bucket
+         */
+        static long highestValueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public double getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : (double) mSum.get() / count;
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        /**
+         * @param percentile The percentile, from 0 to 100
+         * @return The value below which the given percentage of the recorded values fall, 0 if
+         * nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+    }
+
+    /**
+     * a recording kept in the ring buffer
+     */
+    private static final class Event {
+
+        final Metric mMetric;
+        final long mTimeNanos;
+        final long mValue;
+        final long mTraceId;
+        final String mTraceName;
+
+        Event(Metric metric, long timeNanos, long value, long traceId, String traceName) {
+            mMetric = metric;
+            mTimeNanos = timeNanos;
+            mValue = value;
+            mTraceId = traceId;
+            mTraceName = traceName;
+        }
+    }
+
+    private static final class Trace {
+
+        final long mId;
+        final String mName;
+
+        Trace(long id, String name) {
+            mId = id;
+            mName = name;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Runs decode, detect, classify and sprite scaling for a captured photo on a background thread,
+ * and delivers the result on the main thread. The faces detected in a photo are kept in the
+ * {@link EmojifyResultCache}, so opening the same photo again skips detection.
+ *
+ * Nothing is composited: the photo is decoded at the size it is displayed at and delivered as an
+ * {@link EmojifiedDrawable} drawing the emojis over it. Its {@link EmojifiedScene} composites the
+ * photo at full resolution only if it is saved.
+ *
+ * Only the latest photo matters: starting a new one cancels the previous one, and a cancelled
+ * photo stops at the next stage boundary without calling back. The callback is only weakly
+ * referenced, so a pending photo never keeps an activity alive.
+ */
+public class EmojifyPipeline {
+
+    /**
+     * the stages a photo goes through, in order
+     */
+    public enum Stage {
+        DECODE,
+        DETECT,
+        CLASSIFY,
+        SPRITES,
+        DISPLAY
+    }
+
+    /**
+     * Receives the progress and result of a photo, always on the main thread
+     */
+    public interface Callback {
+
+        void onStageStarted(Stage stage);
+
+        /**
+         * @param drawable the picture with the emojis over it, the number of faces of its scene
+         *                 is 0 if the picture was left unchanged
+         */
+        void onEmojified(EmojifiedDrawable drawable);
+
+        void onError(Throwable error);
+    }
+
+    /**
+     * at most one photo waits while another is processed, older waiting photos are dropped
+     */
+    private static final int MAX_QUEUED_JOBS = 1;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final EmojifyResultCache mResultCache;
+    private final BitmapPool mBitmapPool;
+    private Job mCurrentJob;
+    private volatile int mDetectionSize = Emojifier.DEFAULT_DETECTION_SIZE;
+
+    public EmojifyPipeline(Context context) {
+        mContext = context.getApplicationContext();
+        mResultCache = EmojifyResultCache.getInstance(mContext);
+        mBitmapPool = BitmapPool.getInstance(mContext);
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_JOBS), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "EmojifyPipeline");
+                    }
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Sets the long edge of the picture faces are detected on, for the next photos.
+     *
+     * @param detectionSize The long edge in pixels, or {@link Emojifier#FULL_RESOLUTION}
+     */
+    public void setDetectionSize(int detectionSize) {
+        mDetectionSize = detectionSize;
+    }
+
+    /**
+     * Emojifies the photo, cancelling the one currently being processed, if any.
+     *
+     * @param imagePath The path of the captured photo
+     * @param targetW   The width the photo is displayed at, 0 to use the screen size
+     * @param targetH   The height the photo is displayed at, 0 to use the screen size
+     * @param callback  Receives the progress and the result
+     */
+    public void process(String imagePath, int targetW, int targetH, Callback callback) {
+        cancel();
+        mCurrentJob = new Job(imagePath, targetW, targetH, callback);
+        mExecutor.execute(mCurrentJob);
+    }
+
+    /**
+     * Cancels the photo being processed. Its callback is not called anymore.
+     */
+    public void cancel() {
+        if (mCurrentJob != null) {
+            mCurrentJob.mCancelled = true;
+            mCurrentJob = null;
+        }
+    }
+
+    /**
+     * Cancels the current photo and stops the worker thread. The pipeline can not be used afterwards.
+     */
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private class Job implements Runnable {
+
+        private final String mImagePath;
+        private final int mTargetW;
+        private final int mTargetH;
+        private final WeakReference<Callback> mCallback;
+        private volatile boolean mCancelled;
+
+        Job(String imagePath, int targetW, int targetH, Callback callback) {
+            mImagePath = imagePath;
+            mTargetW = targetW;
+            mTargetH = targetH;
+            mCallback = new WeakReference<>(callback);
+        }
+
+        @Override
+        public void run() {
+            EmojifyMetrics.beginTrace("emojify");
+            Bitmap bitmap = null;
+            boolean delivered = false;
+            try {
+                if (!startStage(Stage.DECODE)) return;
+                // The photo is read once, then hashed and decoded upright from memory
+                EncodedImage image = readImage();
+                bitmap = mTargetW > 0 && mTargetH > 0
+                        ? image.decode(mTargetW, mTargetH) : image.decode(mContext);
+                if (bitmap == null) {
+                    throw new IllegalStateException("Could not decode " + mImagePath);
+                }
+
+                if (!startStage(Stage.DETECT)) return;
+                int detectionSize = mDetectionSize;
+                EmojifyResultCache.CachedFaces detectedFaces = mResultCache.getOrDetectFaces(
+                        mContext, bitmap, image.getContentHash(), detectionSize);
+                if (!startStage(Stage.CLASSIFY)) return;
+                EmojifiedScene scene = Emojifier.describeScene(mImagePath,
+                        image.getOrientation(), detectedFaces.getFaces(),
+                        detectedFaces.getReferenceWidth());
+
+                if (!startStage(Stage.SPRITES)) return;
+                EmojifiedDrawable drawable = EmojifiedDrawable.create(mContext, bitmap, scene);
+
+                if (!startStage(Stage.DISPLAY)) return;
+                deliverResult(drawable);
+                delivered = true;
+            } catch (final RuntimeException | OutOfMemoryError e) {
+                // A large capture may not fit in memory, the photo fails but the app goes on
+                Timber.e(e, "Failed to emojify " + mImagePath);
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Callback callback = getCallback();
+                        if (callback != null) {
+                            callback.onError(e);
+                        }
+                    }
+                });
+            } finally {
+                // A cancelled photo gives its bitmap back for the next one
+                if (!delivered && bitmap != null) {
+                    mBitmapPool.put(bitmap);
+                }
+                EmojifyMetrics.endTrace();
+            }
+        }
+
+        private EncodedImage readImage() {
+            try {
+                return EncodedImage.read(mImagePath);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read " + mImagePath, e);
+            }
+        }
+
+        /**
+         * reports the stage to the callback, returns false if the photo was cancelled meanwhile
+         */
+        private boolean startStage(final Stage stage) {
+            if (mCancelled || Thread.currentThread().isInterrupted()) {
+                Timber.d("Cancelled before " + stage);
+                return false;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = getCallback();
+                    if (callback != null) {
+                        callback.onStageStarted(stage);
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void deliverResult(final EmojifiedDrawable drawable) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    Callback callback = getCallback();
+                    if (callback != null) {
+                        callback.onEmojified(drawable);
+                    }
+                }
+            });
+        }
+
+        private void post(Runnable runnable) {
+            if (!mCancelled) {
+                mMainHandler.post(runnable);
+            }
+        }
+
+        /**
+         * returns the callback, or null if it is gone or the photo was cancelled
+         */
+        private Callback getCallback() {
+            return mCancelled ? null : mCallback.get();
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Disk cache of emojify results, so re-opening or re-saving the same picture skips face
+ * detection, and for a cached output compositing and encoding too.
+ *
+ * Entries are keyed by a hash of the content of the source picture combined with everything
+ * the result depends on: the detector version and detection size for the detected faces, plus
+ * the thresholds, the sprite set and the output settings for an encoded output, see
+ * {@link #getFacesKey(String, int)} and {@link #getOutputKey(String, int, String)}.
+ *
+ * Every entry is a file written to a temporary file and renamed into place. Additions, reads and
+ * removals are appended to a journal, which is replayed when the cache is opened so the least
+ * recently used order survives restarts. A crash at any point leaves at worst an entry the
+ * journal does not know about, which is deleted on the next open. Entries are evicted least
+ * recently used first once the cache grows over its size.
+ *
+ * I/O errors are logged and turn into cache misses, the cache never fails an emojify.
+ */
+public class EmojifyResultCache {
+
+    /**
+     * disk space the shared cache is allowed to use
+     */
+    private static final long MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final String CACHE_DIR = "emojify_results";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_TEMP_FILE = "journal.tmp";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * first line of the journal, an unknown header discards the whole cache
+     */
+    static final String JOURNAL_HEADER = "emojify-result-cache 1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    /**
+     * the journal is rewritten once it holds this many lines more than there are entries
+     */
+    private static final int MAX_REDUNDANT_OPS = 1000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * version of the frame faces are detected in, bumped when pictures started being turned
+     * upright from their EXIF orientation before detection
+     */
+    private static final int FRAME_VERSION = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static EmojifyResultCache sInstance;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final long mMaxBytes;
+
+    /**
+     * entry sizes in bytes, least recently used first
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, .75f, true);
+    private long mSize;
+    private int mRedundantOps;
+    private Writer mJournal;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    EmojifyResultCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mMaxBytes = maxBytes;
+        open();
+    }
+
+    /**
+     * Returns the cache shared by the whole app, in its cache directory.
+     *
+     * @param context called context
+     * @return The result cache
+     */
+    public static synchronized EmojifyResultCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIR);
+            sInstance = new EmojifyResultCache(directory, MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Hashes the content of a picture, the part of every key identifying the picture.
+     *
+     * @param file The picture
+     * @return The SHA-1 of the content, in hexadecimal
+     * @throws IOException Thrown if the picture could not be read
+     */
+    public static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hashes the content of a picture already read into memory, see {@link #hashFile(File)}.
+     *
+     * @param data The content of the picture
+     * @return The SHA-1 of the content, in hexadecimal
+     */
+    public static String hashBytes(byte[] data) {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param contentHash   The hash of the picture, see {@link #hashFile(File)}
+     * @param detectionSize The long edge faces are detected at
+     * @return The key of the faces detected in the picture
+     */
+    public static String getFacesKey(String contentHash, int detectionSize) {
+        return hashKey(contentHash + "/faces/" + FaceDetectorPool.DETECTOR_VERSION
+                + "/" + FRAME_VERSION + "/" + detectionSize);
+    }
+
+    /**
+     * @param contentHash   The hash of the picture, see {@link #hashFile(File)}
+     * @param detectionSize The long edge faces are detected at
+     * @param variant       Everything else the output depends on, e.g. its size and format
+     * @return The key of the emojified picture
+     */
+    public static String getOutputKey(String contentHash, int detectionSize, String variant) {
+        return hashKey(String.format(Locale.US, "%s/output/%d/%d/%d/%s/%s/%d/%s", contentHash,
+                FaceDetectorPool.DETECTOR_VERSION, FRAME_VERSION, detectionSize,
+                Emojifier.getSmilingProbThreshold(), Emojifier.getEyeOpenProbThreshold(),
+                EmojiSpriteCache.SPRITE_SET_VERSION, variant));
+    }
+
+    /**
+     * Returns the faces cached for the key.
+     *
+     * @param key The key, see {@link #getFacesKey(String, int)}
+     * @return The cached faces, or null if they are not cached
+     */
+    public CachedFaces getFaces(String key) {
+        File file = getEntryFile(key);
+        if (file == null) {
+            return null;
+        }
+
+        Reader reader = null;
+        try {
+            BufferedReader lines = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            reader = lines;
+            String referenceWidth = lines.readLine();
+            if (referenceWidth == null) {
+                throw new IOException("Empty entry");
+            }
+            List<List<DetectedFace>> frames = ReplayFaceDetectionBackend.readRecording(lines);
+            if (frames.size() != 1) {
+                throw new IOException("Expected 1 frame, got " + frames.size());
+            }
+            return new CachedFaces(frames.get(0), Float.parseFloat(referenceWidth));
+        } catch (IOException | NumberFormatException e) {
+            Timber.e(e, "Could not read cached faces " + key);
+            remove(key);
+            mHits.decrementAndGet();
+            mMisses.incrementAndGet();
+            return null;
+        } finally {
+            BitmapUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Returns the faces cached for the picture, or detects and caches them on a miss.
+     *
+     * @param context       called context
+     * @param bitmap        The decoded picture
+     * @param contentHash   The hash of the picture file, null to detect without caching
+     * @param detectionSize The long edge faces are detected at
+     * @return The faces, with the factor mapping them to the decoded picture
+     */
+    public CachedFaces getOrDetectFaces(Context context, Bitmap bitmap,
+                                        String contentHash, int detectionSize) {
+        String key = contentHash == null ? null : getFacesKey(contentHash, detectionSize);
+        if (key != null) {
+            CachedFaces cachedFaces = getFaces(key);
+            if (cachedFaces != null) {
+                Timber.d("Faces cached for " + contentHash);
+                return cachedFaces;
+            }
+        }
+
+        List<DetectedFace> faces = Emojifier.detectFaces(context, bitmap, detectionSize);
+        float referenceWidth = bitmap.getWidth() / Emojifier.getFaceScale(bitmap, detectionSize);
+        if (key != null) {
+            putFaces(key, faces, referenceWidth);
+        }
+        return new CachedFaces(faces, referenceWidth);
+    }
+
+    /**
+     * Caches the faces detected in a picture.
+     *
+     * @param key            The key, see {@link #getFacesKey(String, int)}
+     * @param faces          The detected faces
+     * @param referenceWidth The width of the picture the face coordinates are relative to
+     */
+    public void putFaces(String key, List<DetectedFace> faces, float referenceWidth) {
+        File tempFile = newTempFile(key);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile),
+                    "UTF-8"));
+            writer.write(Float.toString(referenceWidth));
+            writer.write('\n');
+            ReplayFaceDetectionBackend.writeRecording(
+                    Collections.singletonList(faces), writer);
+            writer.close();
+            writer = null;
+            commit(key, tempFile);
+        } catch (IOException e) {
+            Timber.e(e, "Could not cache faces " + key);
+            BitmapUtils.closeQuietly(writer);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Copies the cached emojified picture.
+     *
+     * @param key         The key, see {@link #getOutputKey(String, int, String)}
+     * @param destination Receives the cached picture
+     * @return True if the picture was cached and copied
+     */
+    public boolean copyOutput(String key, File destination) {
+        File file = getEntryFile(key);
+        if (file == null) {
+            return false;
+        }
+        try {
+            copyFile(file, destination);
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "Could not copy cached output " + key);
+            destination.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Caches an emojified picture.
+     *
+     * @param key     The key, see {@link #getOutputKey(String, int, String)}
+     * @param encoded The encoded picture, copied into the cache
+     */
+    public void putOutput(String key, File encoded) {
+        if (encoded.length() > mMaxBytes / 4) {
+            // Not worth evicting most of the cache for
+            return;
+        }
+        File tempFile = newTempFile(key);
+        try {
+            copyFile(encoded, tempFile);
+            commit(key, tempFile);
+        } catch (IOException e) {
+            Timber.e(e, "Could not cache output " + key);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param key The key of the entry
+     */
+    public synchronized void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+            new File(mDirectory, key).delete();
+            appendToJournal(REMOVE, key, -1);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear() {
+        for (String key : new ArrayList<>(mEntries.keySet())) {
+            remove(key);
+        }
+    }
+
+    /**
+     * @return The bytes used by the cached entries
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * returns the file of the entry, marking it as the most recently used, or null on a miss
+     */
+    private synchronized File getEntryFile(String key) {
+        if (mEntries.get(key) == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        appendToJournal(READ, key, -1);
+        return new File(mDirectory, key);
+    }
+
+    private File newTempFile(String key) {
+        return new File(mDirectory, key + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * renames a fully written entry into place, then journals it
+     */
+    private synchronized void commit(String key, File tempFile) throws IOException {
+        if (mJournal == null) {
+            throw new IOException("The cache is not open");
+        }
+        File file = new File(mDirectory, key);
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not rename " + tempFile + " to " + file);
+        }
+
+        long size = file.length();
+        Long previousSize = mEntries.put(key, size);
+        mSize += size - (previousSize == null ? 0 : previousSize);
+        appendToJournal(CLEAN, key, size);
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> entries = mEntries.entrySet().iterator();
+        while (mSize > mMaxBytes && entries.hasNext()) {
+            Map.Entry<String, Long> eldest = entries.next();
+            entries.remove();
+            mSize -= eldest.getValue();
+            new File(mDirectory, eldest.getKey()).delete();
+            appendToJournal(REMOVE, eldest.getKey(), -1);
+        }
+    }
+
+    private void appendToJournal(String op, String key, long size) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.write(size >= 0 ? op + " " + key + " " + size + "\n" : op + " " + key + "\n");
+            mJournal.flush();
+        } catch (IOException e) {
+            Timber.e(e, "Could not write the result cache journal");
+        }
+
+        mRedundantOps++;
+        if (mRedundantOps >= MAX_REDUNDANT_OPS && mRedundantOps >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * reads the journal back, then deletes every file it does not know about
+     */
+    private synchronized void open() {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Timber.e("Could not create " + mDirectory);
+            return;
+        }
+
+        if (mJournalFile.exists()) {
+            try {
+                readJournal();
+            } catch (IOException e) {
+                Timber.e(e, "Discarding the result cache");
+                mEntries.clear();
+            }
+        }
+
+        mSize = 0;
+        for (Iterator<Map.Entry<String, Long>> entries = mEntries.entrySet().iterator();
+             entries.hasNext(); ) {
+            Map.Entry<String, Long> entry = entries.next();
+            if (new File(mDirectory, entry.getKey()).length() != entry.getValue()) {
+                entries.remove();
+            } else {
+                mSize += entry.getValue();
+            }
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+
+        rebuildJournal();
+        trimToSize();
+    }
+
+    private void readJournal() throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(mJournalFile));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A line cut short by a crash is ignored
+                String[] fields = line.split(" ");
+                if (fields.length == 3 && fields[0].equals(CLEAN)) {
+                    try {
+                        mEntries.put(fields[1], Long.parseLong(fields[2]));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                } else if (fields.length == 2 && fields[0].equals(READ)) {
+                    mEntries.get(fields[1]);
+                } else if (fields.length == 2 && fields[0].equals(REMOVE)) {
+                    mEntries.remove(fields[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * writes a journal holding only the current entries, in least recently used order, and
+     * renames it over the previous one
+     */
+    private void rebuildJournal() {
+        BitmapUtils.closeQuietly(mJournal);
+        mJournal = null;
+
+        File tempFile = new File(mDirectory, JOURNAL_TEMP_FILE);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempFile));
+            writer.write(JOURNAL_HEADER + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(mJournalFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + mJournalFile);
+            }
+            mJournal = new BufferedWriter(new FileWriter(mJournalFile, true));
+            mRedundantOps = 0;
+        } catch (IOException e) {
+            Timber.e(e, "Could not write the result cache journal, the cache is disabled");
+            BitmapUtils.closeQuietly(writer);
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(source), BUFFER_SIZE);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String hashKey(String value) {
+        try {
+            return toHex(newDigest().digest(value.getBytes("UTF-8")));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Faces read from the cache
+     */
+    public static final class CachedFaces {
+
+        private final List<DetectedFace> mFaces;
+        private final float mReferenceWidth;
+
+        CachedFaces(List<DetectedFace> faces, float referenceWidth) {
+            mFaces = faces;
+            mReferenceWidth = referenceWidth;
+        }
+
+        public List<DetectedFace> getFaces() {
+            return mFaces;
+        }
+
+        /**
+         * @return The width of the picture the faces were detected in
+         */
+        public float getReferenceWidth() {
+            return mReferenceWidth;
+        }
+
+        /**
+         * @param width The width of the picture the faces are drawn on
+         * @return The factor mapping the cached faces to that picture
+         */
+        public float getFaceScale(int width) {
+            return width / mReferenceWidth;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.media.ExifInterface;
+import android.util.DisplayMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import timber.log.Timber;
+
+/**
+ * A picture file read into memory once, so hashing it, reading its EXIF orientation and decoding
+ * it do not each go back to storage.
+ */
+public class EncodedImage {
+
+    private final String mPath;
+    private final byte[] mData;
+    private String mContentHash;
+    private int mOrientation = -1;
+
+    EncodedImage(String path, byte[] data) {
+        mPath = path;
+        mData = data;
+    }
+
+    /**
+     * Reads the whole picture file.
+     *
+     * @param imagePath The path of the picture
+     * @return The encoded picture
+     * @throws IOException Thrown if the picture could not be read
+     */
+    public static EncodedImage read(String imagePath) throws IOException {
+        File file = new File(imagePath);
+        long length = file.length();
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Can not read " + imagePath + " of " + length + " bytes");
+        }
+
+        byte[] data = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read == -1) {
+                    throw new IOException(imagePath + " was truncated while reading it");
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return new EncodedImage(imagePath, data);
+    }
+
+    /**
+     * @return The path the picture was read from
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return The SHA-1 of the content, the same as {@link EmojifyResultCache#hashFile(File)}
+     */
+    public synchronized String getContentHash() {
+        if (mContentHash == null) {
+            mContentHash = EmojifyResultCache.hashBytes(mData);
+        }
+        return mContentHash;
+    }
+
+    /**
+     * @return Whether the picture is a JPEG, which can be saved as it is
+     */
+    public boolean isJpeg() {
+        return mData.length > 2 && (mData[0] & 0xff) == 0xff && (mData[1] & 0xff) == 0xd8;
+    }
+
+    /**
+     * @return The EXIF orientation of the picture, ORIENTATION_NORMAL if it has none
+     */
+    public synchronized int getOrientation() {
+        if (mOrientation == -1) {
+            mOrientation = ExifInterface.ORIENTATION_NORMAL;
+            if (isJpeg()) {
+                try {
+                    ExifInterface exif = new ExifInterface(new ByteArrayInputStream(mData));
+                    mOrientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                            ExifInterface.ORIENTATION_NORMAL);
+                } catch (IOException e) {
+                    Timber.e(e, "Could not read the EXIF orientation of " + mPath);
+                }
+            }
+        }
+        return mOrientation;
+    }
+
+    /**
+     * Decodes the picture upright, resampled to fit the screen.
+     *
+     * @param context The application context
+     * @return The upright bitmap from the {@link BitmapPool}, or null if it could not be decoded
+     */
+    public Bitmap decode(Context context) {
+        DisplayMetrics metrics = BitmapUtils.getDisplayMetrics(context);
+        return decode(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Decodes the picture upright, resampled to fit the given size, see
+     * {@link BitmapUtils#resamplePic(String, int, int)}.
+     *
+     * @param targetW The width the upright picture has to fit in
+     * @param targetH The height the upright picture has to fit in
+     * @return The upright bitmap from the {@link BitmapPool}, or null if it could not be decoded
+     */
+    public Bitmap decode(int targetW, int targetH) {
+        int orientation = getOrientation();
+        boolean sideways = BitmapUtils.isSideways(orientation);
+        Bitmap bitmap = BitmapUtils.resamplePic(mData, sideways ? targetH : targetW,
+                sideways ? targetW : targetH);
+        return bitmap == null ? null : BitmapUtils.applyExifOrientation(bitmap, orientation);
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+/**
+ * Finds the faces and their expressions in pictures and preview frames.
+ *
+ * The app detects faces with Mobile Vision, see {@link VisionFaceDetectionBackend}. Other
+ * backends, like {@link ReplayFaceDetectionBackend}, let the rest of the pipeline run off-device.
+ */
+public interface FaceDetectionBackend {
+
+    /**
+     * Detects the faces in a picture. Can be called from several threads at once.
+     *
+     * @param bitmap The picture
+     * @return The detected faces, in picture coordinates
+     */
+    List<DetectedFace> detect(Bitmap bitmap);
+
+    /**
+     * Detects the faces in a preview frame. Called from a single processing thread, a face keeps
+     * its id from one frame to the next.
+     *
+     * @param frame          The NV21 frame
+     * @param width          The width of the frame as delivered by the camera
+     * @param height         The height of the frame as delivered by the camera
+     * @param rotation       The quarter turns making the frame upright
+     * @param frameId        Increases by one for every processed frame
+     * @param timestampNanos When the frame was received, in {@link System#nanoTime()} time
+     * @param faces          The detected faces are added to it, in upright frame coordinates
+     */
+    void detectFrame(byte[] frame, int width, int height, int rotation, int frameId,
+                     long timestampNanos, List<DetectedFace> faces);
+
+    /**
+     * Releases what the backend holds once it is not used anymore.
+     */
+    void release();
+}
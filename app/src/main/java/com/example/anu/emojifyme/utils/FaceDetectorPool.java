@@ -0,0 +1,282 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.FaceDetector;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Keeps warm face detectors around, so the native models are not reloaded for every picture.
+ *
+ * Detectors are pooled per {@link Config}. A detector is handed to one caller at a time and goes
+ * back to the pool when the caller recycles it. Tracking detectors are released instead, as they
+ * remember the faces and frames of the stream they followed. Every idle detector is released once
+ * the app goes to the background.
+ */
+public class FaceDetectorPool implements ComponentCallbacks2 {
+
+    /**
+     * number of idle detectors kept for each configuration, enough for a
+     * {@link StripedFaceDetectionBackend} detecting on every core
+     */
+    private static final int MAX_IDLE_PER_CONFIG =
+            Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * version of the detector settings, to bump whenever a change makes cached faces stale
+     */
+    public static final int DETECTOR_VERSION = 2;
+
+    private static FaceDetectorPool sInstance;
+
+    private final Context mContext;
+    private final Map<Config, ArrayDeque<PooledDetector>> mIdleDetectors = new HashMap<>();
+
+    /**
+     * bumped by {@link #releaseAll()}, detectors handed out before are not pooled again
+     */
+    private int mGeneration;
+
+    private final AtomicLong mColdDetections = new AtomicLong();
+    private final AtomicLong mColdDetectionNanos = new AtomicLong();
+    private final AtomicLong mWarmDetections = new AtomicLong();
+    private final AtomicLong mWarmDetectionNanos = new AtomicLong();
+
+    private FaceDetectorPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the pool shared by the whole app, registering it for memory trim callbacks.
+     *
+     * @param context called context
+     * @return The detector pool
+     */
+    public static synchronized FaceDetectorPool getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new FaceDetectorPool(appContext);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Hands out a detector for the configuration, building a new one if none is idle.
+     * The caller owns it until {@link PooledDetector#recycle()} is called.
+     *
+     * @param config The detector configuration
+     * @return A detector nobody else is using
+     */
+    public PooledDetector acquire(Config config) {
+        int generation;
+        synchronized (mIdleDetectors) {
+            ArrayDeque<PooledDetector> idle = mIdleDetectors.get(config);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+            generation = mGeneration;
+        }
+
+        long buildStart = EmojifyMetrics.startTimer();
+        FaceDetector faceDetector = new FaceDetector.Builder(mContext)
+                .setTrackingEnabled(config.trackingEnabled)
+                .setClassificationType(config.classificationType)
+                .setLandmarkType(config.landmarkType)
+                .build();
+        EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.DETECTOR_BUILD, buildStart);
+        return new PooledDetector(this, config, generation, faceDetector);
+    }
+
+    private void recycle(PooledDetector detector) {
+        if (detector.mConfig.trackingEnabled) {
+            /** the next stream would start with the faces, ids and timestamps of this one */
+            detector.mFaceDetector.release();
+            return;
+        }
+        synchronized (mIdleDetectors) {
+            if (detector.mGeneration != mGeneration) {
+                /** handed out before the last releaseAll, the app was in the background since */
+                detector.mFaceDetector.release();
+                return;
+            }
+            ArrayDeque<PooledDetector> idle = mIdleDetectors.get(detector.mConfig);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                mIdleDetectors.put(detector.mConfig, idle);
+            }
+            if (idle.size() < MAX_IDLE_PER_CONFIG) {
+                idle.push(detector);
+                return;
+            }
+        }
+        detector.mFaceDetector.release();
+    }
+
+    /**
+     * Releases every idle detector. Detectors currently handed out are released when recycled,
+     * instead of going back to the pool.
+     */
+    public void releaseAll() {
+        synchronized (mIdleDetectors) {
+            mGeneration++;
+            for (ArrayDeque<PooledDetector> idle : mIdleDetectors.values()) {
+                for (PooledDetector detector : idle) {
+                    detector.mFaceDetector.release();
+                }
+            }
+            mIdleDetectors.clear();
+        }
+    }
+
+    private void recordDetection(boolean cold, long nanos) {
+        if (cold) {
+            mColdDetections.incrementAndGet();
+            mColdDetectionNanos.addAndGet(nanos);
+        } else {
+            mWarmDetections.incrementAndGet();
+            mWarmDetectionNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * @return The average latency in milliseconds of the first detection on a new detector
+     */
+    public double getAverageColdLatencyMillis() {
+        return averageMillis(mColdDetectionNanos.get(), mColdDetections.get());
+    }
+
+    /**
+     * @return The average latency in milliseconds of detections on an already used detector
+     */
+    public double getAverageWarmLatencyMillis() {
+        return averageMillis(mWarmDetectionNanos.get(), mWarmDetections.get());
+    }
+
+    private static double averageMillis(long totalNanos, long count) {
+        return count == 0 ? 0 : (double) totalNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            Timber.d("Releasing idle face detectors, cold : %.1f ms, warm : %.1f ms",
+                    getAverageColdLatencyMillis(), getAverageWarmLatencyMillis());
+            releaseAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        releaseAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * The settings a detector is built with
+     */
+    public static final class Config {
+
+        /**
+         * classifications and landmarks, the configuration used to pick and place the emojis
+         */
+        public static final Config CLASSIFICATION = new Config(
+                FaceDetector.ALL_CLASSIFICATIONS, false, FaceDetector.ALL_LANDMARKS);
+
+        /**
+         * classifications with faces followed across frames, the configuration of the live mode.
+         * Detectors of a tracking configuration are built for every stream, never pooled
+         */
+        public static final Config TRACKING = new Config(
+                FaceDetector.ALL_CLASSIFICATIONS, true, FaceDetector.NO_LANDMARKS);
+
+        final int classificationType;
+        final boolean trackingEnabled;
+        final int landmarkType;
+
+        public Config(int classificationType, boolean trackingEnabled, int landmarkType) {
+            this.classificationType = classificationType;
+            this.trackingEnabled = trackingEnabled;
+            this.landmarkType = landmarkType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Config)) return false;
+            Config config = (Config) o;
+            return classificationType == config.classificationType
+                    && trackingEnabled == config.trackingEnabled
+                    && landmarkType == config.landmarkType;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = classificationType;
+            result = 31 * result + (trackingEnabled ? 1 : 0);
+            result = 31 * result + landmarkType;
+            return result;
+        }
+    }
+
+    /**
+     * A detector handed out by the pool
+     */
+    public static final class PooledDetector {
+
+        private final FaceDetectorPool mPool;
+        private final Config mConfig;
+        private final int mGeneration;
+        private final FaceDetector mFaceDetector;
+        private boolean mWarm;
+
+        private PooledDetector(FaceDetectorPool pool, Config config, int generation,
+                               FaceDetector faceDetector) {
+            mPool = pool;
+            mConfig = config;
+            mGeneration = generation;
+            mFaceDetector = faceDetector;
+        }
+
+        /**
+         * Detects the faces in the frame, recording whether the detector was warm.
+         *
+         * @param frame The frame to detect faces in
+         * @return The detected faces
+         */
+        public SparseArray<Face> detect(Frame frame) {
+            long start = System.nanoTime();
+            SparseArray<Face> faces = mFaceDetector.detect(frame);
+            long nanos = System.nanoTime() - start;
+
+            mPool.recordDetection(!mWarm, nanos);
+            EmojifyMetrics.record(EmojifyMetrics.Metric.DETECT, nanos);
+            Timber.d("Face detection took %d ms (%s)",
+                    TimeUnit.NANOSECONDS.toMillis(nanos), mWarm ? "warm" : "cold");
+            mWarm = true;
+            return faces;
+        }
+
+        /**
+         * Gives the detector back to the pool. It must not be used afterwards.
+         */
+        public void recycle() {
+            mPool.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.anu.emojifyme.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the result of every tracked face from one frame to the next, so a face that barely moved
+ * is not classified again and its emoji stays where it was.
+ *
+ * The classification probabilities of a face are smoothed with an exponential moving average, and
+ * an expression only flips once the smoothed probability is past the threshold by a margin, so a
+ * probability hovering around a threshold does not make the emoji flicker. When the box and the
+ * probabilities of a face are within the configured deltas of the cached ones, the cached result
+ * is returned as is: its emoji is not picked again and, its box being unchanged, the same scaled
+ * sprite is drawn.
+ *
+ * Not thread safe, a cache is meant to be used by a single processing thread.
+ */
+public class FaceResultCache {
+
+    /**
+     * weight of a new probability in the moving average
+     */
+    public static final float DEFAULT_SMOOTHING = .5f;
+
+    /**
+     * how far past a threshold a smoothed probability has to go for the expression to flip
+     */
+    public static final float DEFAULT_HYSTERESIS = .05f;
+
+    /**
+     * how far a face can move, relative to its width, and still reuse its result
+     */
+    public static final float DEFAULT_BOX_DELTA = .05f;
+
+    /**
+     * how much the probabilities of a face can change and still reuse its result
+     */
+    public static final float DEFAULT_PROBABILITY_DELTA = .02f;
+
+    private final Map<Integer, FaceResult> mResults = new HashMap<>();
+    private float mSmoothing = DEFAULT_SMOOTHING;
+    private float mHysteresis = DEFAULT_HYSTERESIS;
+    private float mBoxDelta = DEFAULT_BOX_DELTA;
+    private float mProbabilityDelta = DEFAULT_PROBABILITY_DELTA;
+    private int mGeneration;
+
+    private long mReusedResults;
+    private long mUpdatedResults;
+
+    /**
+     * @param smoothing The weight of a new probability in the moving average, 1 to disable smoothing
+     */
+    public void setSmoothing(float smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Smoothing must be in (0, 1] : " + smoothing);
+        }
+        mSmoothing = smoothing;
+    }
+
+    /**
+     * @param hysteresis How far past a threshold a smoothed probability has to go for the
+     *                   expression to flip, 0 to disable hysteresis
+     */
+    public void setHysteresis(float hysteresis) {
+        mHysteresis = hysteresis;
+    }
+
+    /**
+     * @param boxDelta         How far a face can move, relative to its width, and still reuse its
+     *                         result
+     * @param probabilityDelta How much the probabilities of a face can change and still reuse
+     *                         its result
+     */
+    public void setMotionDeltas(float boxDelta, float probabilityDelta) {
+        mBoxDelta = boxDelta;
+        mProbabilityDelta = probabilityDelta;
+    }
+
+    /**
+     * Returns the result of a face found in the current frame, reusing the cached one if the face
+     * barely moved.
+     *
+     * @param faceId           The tracking id of the face
+     * @param left             The left edge of the face
+     * @param top              The top edge of the face
+     * @param width            The width of the face
+     * @param height           The height of the face
+     * @param smilingProb      The probability that the person is smiling
+     * @param leftEyeOpenProb  The probability that the left eye is open
+     * @param rightEyeOpenProb The probability that the right eye is open
+     * @return The result of the face, only valid until the next call for the same face
+     */
+    public FaceResult update(int faceId, float left, float top, float width, float height,
+                             float smilingProb, float leftEyeOpenProb, float rightEyeOpenProb) {
+        FaceResult result = mResults.get(faceId);
+        if (result == null) {
+            result = new FaceResult();
+            mResults.put(faceId, result);
+            result.reset(left, top, width, height, smilingProb, leftEyeOpenProb, rightEyeOpenProb);
+            mUpdatedResults++;
+        } else if (result.isCloseTo(left, top, width, height, smilingProb, leftEyeOpenProb,
+                rightEyeOpenProb, mBoxDelta, mProbabilityDelta)) {
+            mReusedResults++;
+        } else {
+            result.update(left, top, width, height, smilingProb, leftEyeOpenProb,
+                    rightEyeOpenProb, mSmoothing, mBoxDelta);
+            mUpdatedResults++;
+        }
+
+        /**
+         * pick the emoji again if the expression or the thresholds changed
+         */
+        result.classify(mHysteresis);
+        result.mGeneration = mGeneration;
+        return result;
+    }
+
+    /**
+     * Forgets the faces that were not updated since the previous call, to be called once every
+     * face of a frame was updated.
+     */
+    public void removeStale() {
+        for (Iterator<FaceResult> results = mResults.values().iterator(); results.hasNext(); ) {
+            if (results.next().mGeneration != mGeneration) {
+                results.remove();
+            }
+        }
+        mGeneration++;
+    }
+
+    /**
+     * Forgets every face.
+     */
+    public void clear() {
+        mResults.clear();
+    }
+
+    /**
+     * @return The number of faces that reused their previous result
+     */
+    public long getReusedResults() {
+        return mReusedResults;
+    }
+
+    /**
+     * @return The number of faces that had to be smoothed and classified again
+     */
+    public long getUpdatedResults() {
+        return mUpdatedResults;
+    }
+
+    /**
+     * The smoothed result of a tracked face
+     */
+    public static final class FaceResult {
+
+        private float mLeft;
+        private float mTop;
+        private float mWidth;
+        private float mHeight;
+
+        private float mSmilingProb;
+        private float mLeftEyeOpenProb;
+        private float mRightEyeOpenProb;
+
+        private boolean mSmiling;
+        private boolean mLeftEyeOpen;
+        private boolean mRightEyeOpen;
+        private boolean mClassified;
+        private boolean mProbabilitiesChanged;
+        private double mSmilingThreshold;
+        private double mEyeOpenThreshold;
+        private Emojifier.Emoji mEmoji;
+        private int mGeneration;
+
+        private void reset(float left, float top, float width, float height, float smilingProb,
+                           float leftEyeOpenProb, float rightEyeOpenProb) {
+            setBox(left, top, width, height);
+            mSmilingProb = smilingProb;
+            mLeftEyeOpenProb = leftEyeOpenProb;
+            mRightEyeOpenProb = rightEyeOpenProb;
+            mClassified = false;
+            mProbabilitiesChanged = true;
+        }
+
+        private void update(float left, float top, float width, float height, float smilingProb,
+                            float leftEyeOpenProb, float rightEyeOpenProb, float smoothing,
+                            float boxDelta) {
+            /**
+             * keep the box still while the face only jitters, so the emoji does not shake
+             */
+            if (!isBoxCloseTo(left, top, width, height, boxDelta)) {
+                setBox(left, top, width, height);
+            }
+
+            mSmilingProb = smooth(mSmilingProb, smilingProb, smoothing);
+            mLeftEyeOpenProb = smooth(mLeftEyeOpenProb, leftEyeOpenProb, smoothing);
+            mRightEyeOpenProb = smooth(mRightEyeOpenProb, rightEyeOpenProb, smoothing);
+            mProbabilitiesChanged = true;
+        }
+
+        private void setBox(float left, float top, float width, float height) {
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * the detector reports a negative probability when it could not compute it, keep the
+         * previous value then
+         */
+        private static float smooth(float smoothed, float probability, float smoothing) {
+            if (probability < 0) {
+                return smoothed;
+            }
+            if (smoothed < 0) {
+                return probability;
+            }
+            return smoothed + smoothing * (probability - smoothed);
+        }
+
+        private boolean isCloseTo(float left, float top, float width, float height,
+                                  float smilingProb, float leftEyeOpenProb,
+                                  float rightEyeOpenProb, float boxDelta,
+                                  float probabilityDelta) {
+            return isBoxCloseTo(left, top, width, height, boxDelta)
+                    && isProbabilityCloseTo(mSmilingProb, smilingProb, probabilityDelta)
+                    && isProbabilityCloseTo(mLeftEyeOpenProb, leftEyeOpenProb, probabilityDelta)
+                    && isProbabilityCloseTo(mRightEyeOpenProb, rightEyeOpenProb, probabilityDelta);
+        }
+
+        /**
+         * a probability close to the smoothed one would barely move the average, and an
+         * uncomputed one would not move it at all
+         */
+        private static boolean isProbabilityCloseTo(float smoothed, float probability,
+                                                    float probabilityDelta) {
+            return probability < 0 || Math.abs(probability - smoothed) <= probabilityDelta;
+        }
+
+        private boolean isBoxCloseTo(float left, float top, float width, float height,
+                                     float boxDelta) {
+            float maxMove = boxDelta * mWidth;
+            return Math.abs(left - mLeft) <= maxMove
+                    && Math.abs(top - mTop) <= maxMove
+                    && Math.abs(width - mWidth) <= maxMove
+                    && Math.abs(height - mHeight) <= maxMove;
+        }
+
+        private void classify(float hysteresis) {
+            double smilingThreshold = Emojifier.getSmilingProbThreshold();
+            double eyeOpenThreshold = Emojifier.getEyeOpenProbThreshold();
+            if (!mProbabilitiesChanged && smilingThreshold == mSmilingThreshold
+                    && eyeOpenThreshold == mEyeOpenThreshold) {
+                return;
+            }
+
+            /**
+             * a new face, or new thresholds, are classified without hysteresis
+             */
+            if (!mClassified || smilingThreshold != mSmilingThreshold
+                    || eyeOpenThreshold != mEyeOpenThreshold) {
+                hysteresis = 0;
+            }
+            mSmiling = isAbove(mSmilingProb, mSmiling, smilingThreshold, hysteresis);
+            mLeftEyeOpen = isAtLeast(mLeftEyeOpenProb, mLeftEyeOpen, eyeOpenThreshold, hysteresis);
+            mRightEyeOpen = isAtLeast(mRightEyeOpenProb, mRightEyeOpen, eyeOpenThreshold, hysteresis);
+            mEmoji = Emojifier.getEmoji(mSmiling, !mLeftEyeOpen, !mRightEyeOpen);
+
+            mSmilingThreshold = smilingThreshold;
+            mEyeOpenThreshold = eyeOpenThreshold;
+            mClassified = true;
+            mProbabilitiesChanged = false;
+        }
+
+        private static boolean isAbove(float probability, boolean wasAbove, double threshold,
+                                       float hysteresis) {
+            return wasAbove ? probability > threshold - hysteresis
+                    : probability > threshold + hysteresis;
+        }
+
+        private static boolean isAtLeast(float probability, boolean wasAtLeast, double threshold,
+                                         float hysteresis) {
+            return wasAtLeast ? probability >= threshold - hysteresis
+                    : probability >= threshold + hysteresis;
+        }
+
+        public float getLeft() {
+            return mLeft;
+        }
+
+        public float getTop() {
+            return mTop;
+        }
+
+        public float getWidth() {
+            return mWidth;
+        }
+
+        public float getHeight() {
+            return mHeight;
+        }
+
+        Emojifier.Emoji getEmoji() {
+            return mEmoji;
+        }
+    }
+}
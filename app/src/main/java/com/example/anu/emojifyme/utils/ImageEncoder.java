@@ -0,0 +1,116 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes and saves images on a bounded pool of background threads, so a batch compresses
+ * several images in parallel while its workers decode and emojify the next ones.
+ *
+ * At most one image per thread waits for an encoder. Beyond that the image is encoded on the
+ * thread handing it in, which slows a producer down instead of letting decoded bitmaps pile up.
+ */
+public class ImageEncoder {
+
+    /**
+     * Receives the outcome of an encode, on the thread that ran it
+     */
+    public interface Callback {
+
+        void onImageSaved(Bitmap image, ImageSaver.Result result);
+
+        void onSaveFailed(Bitmap image, Exception error);
+    }
+
+    private final Context mContext;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param context     called context
+     * @param parallelism the number of images encoded at once
+     */
+    public ImageEncoder(Context context, int parallelism) {
+        mContext = context.getApplicationContext();
+        int threads = Math.max(1, parallelism);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads), new EncoderThreadFactory(),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                        // the queue is full, encode on the calling thread
+                        task.run();
+                    }
+                });
+    }
+
+    /**
+     * Encodes and saves the image on the pool, or on the calling thread if the pool is busy.
+     *
+     * @param image    The image to be saved, it must not be recycled until the callback
+     * @param options  The format and quality to encode the image with
+     * @param callback Receives the outcome, once for every image
+     */
+    public void encode(final Bitmap image, final ImageSaver.Options options,
+                       final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ImageSaver.Result result;
+                try {
+                    result = ImageSaver.save(mContext, image, options);
+                } catch (IOException | RuntimeException e) {
+                    callback.onSaveFailed(image, e);
+                    return;
+                }
+                callback.onImageSaved(image, result);
+            }
+        });
+    }
+
+    /**
+     * Stops the threads once the images handed in so far are saved.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for the images handed in before {@link #shutdown()} to be saved.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     * @return false if the timeout elapsed first
+     * @throws InterruptedException Thrown if the calling thread was interrupted
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * creates background priority threads, encoding should not take the CPU from the UI
+     */
+    private static final class EncoderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageEncoder-" + mCount.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,793 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Saves emojified images to the Emojify storage directory.
+ *
+ * The image is encoded into memory first, then written through a file channel to a temporary
+ * file which is renamed into place, so a crash never leaves a truncated image in the gallery.
+ * {@link #saveAsync(Context, Bitmap, Options, Callback)} does all of it off the main thread.
+ * A picture left unchanged is copied as it is by {@link #copyAsync(Context, File, Callback)},
+ * keeping its quality and metadata without decoding and encoding it again. An emojified photo is
+ * composited at full resolution and encoded straight into the file by
+ * {@link #renderAsync(Context, EmojifiedScene, Callback)}.
+ *
+ * With {@link Options#forTargetSize(long)} the format and quality are picked per image for it to
+ * fit in a size, and {@link Options#withThumbnail(int)} adds a thumbnail encoded from the same
+ * bitmap. Batches encode several images at once through an {@link ImageEncoder}.
+ */
+public class ImageSaver {
+
+    private static final String TEMP_FILE_PREFIX = ".saving_";
+
+    /**
+     * held from picking the name of a saved image until the image is renamed to it
+     */
+    private static final Object sPublishLock = new Object();
+
+    /**
+     * qualities searched for an image to fit in a target size, below 40 blocking shows
+     */
+    private static final int MIN_QUALITY = 40;
+    private static final int MAX_QUALITY = 95;
+
+    private static final String THUMBNAIL_DIR = "thumbnails";
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ImageSaver");
+                }
+            });
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the outcome of an asynchronous save, on the main thread
+     */
+    public interface Callback {
+
+        void onImageSaved(Result result);
+
+        /**
+         * @param error The IOException of a failed read or write, or the RuntimeException of an
+         *              image that could not be encoded
+         */
+        void onSaveFailed(Exception error);
+    }
+
+    /**
+     * Saves the image on a background thread.
+     *
+     * @param context  The application context.
+     * @param image    The image to be saved, it must not be recycled until the save completes.
+     * @param options  The format and quality to encode the image with.
+     * @param callback Receives the outcome on the main thread, may be null
+     * @return A future completing with the same result
+     */
+    public static Future<Result> saveAsync(final Context context, final Bitmap image,
+                                           final Options options, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Task() {
+            @Override
+            public Result run() throws IOException {
+                return save(appContext, image, options);
+            }
+        }, callback);
+    }
+
+    /**
+     * Copies an encoded picture to the storage directory on a background thread.
+     *
+     * @param context  The application context.
+     * @param source   The picture to be copied, it must not be deleted until the copy completes.
+     * @param callback Receives the outcome on the main thread, may be null
+     * @return A future completing with the same result
+     */
+    public static Future<Result> copyAsync(final Context context, final File source,
+                                           final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Task() {
+            @Override
+            public Result run() throws IOException {
+                return copy(appContext, source);
+            }
+        }, callback);
+    }
+
+    /**
+     * Composites the photo of a scene at full resolution into a JPEG on a background thread.
+     *
+     * @param context  The application context.
+     * @param scene    The photo and its faces, the photo must not be deleted until the save
+     *                 completes.
+     * @param callback Receives the outcome on the main thread, may be null
+     * @return A future completing with the same result
+     */
+    public static Future<Result> renderAsync(final Context context, final EmojifiedScene scene,
+                                             final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(new Task() {
+            @Override
+            public Result run() throws IOException {
+                return render(appContext, scene, Options.DEFAULT.quality);
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes a file once the saves submitted so far are done, for a photo they may still read.
+     *
+     * @param file The file to delete
+     */
+    public static void deleteAfterSaves(final File file) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!file.delete()) {
+                    Timber.e("Could not delete " + file);
+                }
+            }
+        });
+    }
+
+    private static Future<Result> submit(final Task task, final Callback callback) {
+        return sExecutor.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws Exception {
+                try {
+                    final Result result = task.run();
+                    if (callback != null) {
+                        sMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onImageSaved(result);
+                            }
+                        });
+                    }
+                    return result;
+                } catch (final Exception e) {
+                    Timber.e(e, "Could not save the image");
+                    if (callback != null) {
+                        sMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onSaveFailed(e);
+                            }
+                        });
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the image on the calling thread, which should not be the main thread.
+     *
+     * @param context The application context.
+     * @param image   The image to be saved.
+     * @param options The format and quality to encode the image with.
+     * @return Where the image was saved and how long it took
+     * @throws IOException Thrown if the image could not be encoded or written
+     */
+    public static Result save(Context context, Bitmap image, Options options) throws IOException {
+
+        // Encode into memory, sized for a typical compression ratio to avoid regrowing
+        long encodeStart = System.nanoTime();
+        int initialSize = image.getWidth() * image.getHeight() / 8;
+        QualityEncoder encoder;
+        int encodePasses;
+        if (options.targetBytes > 0) {
+            encoder = pickFormat(image, initialSize, options.targetBytes);
+            searchQuality(encoder, options.targetBytes, MIN_QUALITY, MAX_QUALITY);
+            encodePasses = encoder.mPasses + (encoder.mOther != null ? encoder.mOther.mPasses : 0);
+        } else {
+            encoder = new QualityEncoder(image, options.format, initialSize);
+            encoder.encode(options.quality);
+            encoder.keep();
+            encodePasses = 1;
+        }
+        long encodeNanos = System.nanoTime() - encodeStart;
+        EmojifyMetrics.record(EmojifyMetrics.Metric.SAVE_ENCODE, encodeNanos);
+        EmojifyMetrics.record(EmojifyMetrics.Metric.SAVE_ENCODE_PASSES, encodePasses);
+
+        Result result = write(context, encoder.mKept, getExtension(encoder.mFormat),
+                encodeNanos);
+        result.mFormat = encoder.mFormat;
+        result.mQuality = encoder.mKeptQuality;
+        if (options.thumbnailSize > 0) {
+            result.mThumbnailPath = saveThumbnail(context, image, new File(result.getPath()),
+                    options.thumbnailSize);
+        }
+        Timber.d("Encoded as %s at quality %d in %d passes", result.mFormat, result.mQuality,
+                encodePasses);
+        return result;
+    }
+
+    /**
+     * Finds the highest quality whose encoding fits in the target size, with a binary search
+     * keeping the best fitting encoding so it never has to be encoded again. The lowest quality
+     * is kept when even it does not fit.
+     *
+     * @param probe       Encodes the image at a quality
+     * @param targetBytes The size the encoding has to fit in
+     * @param minQuality  The lowest quality to try
+     * @param maxQuality  The highest quality to try
+     * @return The quality of the kept encoding
+     * @throws IOException Thrown if the image could not be encoded
+     */
+    static int searchQuality(QualityProbe probe, long targetBytes, int minQuality,
+                             int maxQuality) throws IOException {
+        int low = minQuality;
+        int high = maxQuality;
+        int best = -1;
+        while (low <= high) {
+            int quality = (low + high) >>> 1;
+            if (probe.encode(quality) <= targetBytes) {
+                probe.keep();
+                best = quality;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+
+        // nothing fits, the last encoding tried is the lowest quality
+        if (best == -1) {
+            probe.keep();
+            best = minQuality;
+        }
+        return best;
+    }
+
+    /**
+     * encodes the image in every format it can be saved with at the quality the search starts
+     * with, and returns the encoder of the one compressing it best. Its encoding at that quality
+     * is remembered, so the search does not repeat it.
+     */
+    private static QualityEncoder pickFormat(Bitmap image, int initialSize, long targetBytes)
+            throws IOException {
+        QualityEncoder webp = new QualityEncoder(image, Bitmap.CompressFormat.WEBP, initialSize);
+        // JPEG would drop the transparency
+        if (image.hasAlpha()) {
+            return webp;
+        }
+
+        QualityEncoder jpeg = new QualityEncoder(image, Bitmap.CompressFormat.JPEG, initialSize);
+        int quality = (MIN_QUALITY + MAX_QUALITY) >>> 1;
+        long jpegSize = jpeg.encode(quality);
+        long webpSize = webp.encode(quality);
+        QualityEncoder picked = webpSize < jpegSize ? webp : jpeg;
+        picked.mOther = picked == webp ? jpeg : webp;
+        Timber.d("JPEG %d bytes, WebP %d bytes at quality %d for a target of %d bytes",
+                jpegSize, webpSize, quality, targetBytes);
+        return picked;
+    }
+
+    /**
+     * encodes a copy of the image fitting in size x size pixels into the thumbnail directory,
+     * returns its path, or null as the image itself was saved anyway
+     */
+    private static String saveThumbnail(Context context, Bitmap image, File imageFile,
+                                        int size) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        float scale = Math.min(1f, (float) size / Math.max(width, height));
+        Bitmap thumbnail = scale < 1f ? BitmapPool.getInstance().scale(image,
+                Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale)))
+                : image;
+
+        // Images saved in the same second only differ by their extension, which is kept
+        File thumbnailDir = new File(context.getFilesDir(), THUMBNAIL_DIR);
+        File thumbnailFile = new File(thumbnailDir, imageFile.getName() + ".jpg");
+        File tempFile = null;
+        try {
+            if (!thumbnailDir.exists() && !thumbnailDir.mkdirs()) {
+                throw new IOException("Could not create " + thumbnailDir);
+            }
+            tempFile = File.createTempFile(TEMP_FILE_PREFIX, ".jpg", thumbnailDir);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out)) {
+                    throw new IOException("Could not encode the thumbnail");
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(thumbnailFile)) {
+                throw new IOException("Could not rename " + tempFile + " to " + thumbnailFile);
+            }
+            return thumbnailFile.getAbsolutePath();
+        } catch (IOException e) {
+            Timber.e(e, "Could not save the thumbnail of " + imageFile);
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            return null;
+        } finally {
+            if (thumbnail != image) {
+                BitmapPool.getInstance().put(thumbnail);
+            }
+        }
+    }
+
+    /**
+     * Copies an encoded picture to the storage directory on the calling thread, which should not
+     * be the main thread.
+     *
+     * @param context The application context.
+     * @param source  The picture to be copied.
+     * @return Where the picture was saved and how long it took
+     * @throws IOException Thrown if the picture could not be read or written
+     */
+    public static Result copy(Context context, File source) throws IOException {
+        String name = source.getName();
+        int extension = name.lastIndexOf('.');
+        return write(context, new FileContent(source),
+                extension != -1 ? name.substring(extension) : ".jpg", 0);
+    }
+
+    /**
+     * Composites the photo of a scene at full resolution into a JPEG on the calling thread,
+     * which should not be the main thread. The JPEG is encoded band by band straight into the
+     * file, so its encoding time is part of the write time.
+     *
+     * @param context The application context.
+     * @param scene   The photo and its faces.
+     * @param quality The JPEG quality, from 1 to 100
+     * @return Where the photo was saved and how long it took
+     * @throws IOException Thrown if the photo could not be read or written
+     */
+    public static Result render(Context context, EmojifiedScene scene, int quality)
+            throws IOException {
+        return write(context, new SceneContent(context, scene, quality), ".jpg", 0);
+    }
+
+    /**
+     * Saves an image encoded straight into its file on the calling thread, which should not be
+     * the main thread. Like every save, it is written to a temporary file which is synced and
+     * renamed into place, so its encoding time is part of the write time.
+     *
+     * @param context   The application context.
+     * @param content   Encodes the image
+     * @param extension The extension of the image, including the dot
+     * @return Where the image was saved and how long it took
+     * @throws IOException Thrown if the image could not be encoded or written
+     */
+    static Result stream(Context context, StreamingContent content, String extension)
+            throws IOException {
+        return write(context, content, extension, 0);
+    }
+
+    private static Result write(Context context, Content content, String extension,
+                                long encodeNanos) throws IOException {
+
+        // Write to a temporary file in the storage directory, then rename it into place
+        long writeStart = System.nanoTime();
+        File tempFile = createTempFile(extension);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        long bytesWritten;
+        try {
+            bytesWritten = content.writeTo(out.getChannel());
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            // Closing must not hide the error, and the temporary file goes either way
+            BitmapUtils.closeQuietly(out);
+            tempFile.delete();
+            throw e;
+        }
+        out.close();
+
+        File imageFile = publish(tempFile, extension);
+        long writeNanos = System.nanoTime() - writeStart;
+
+        // Add the image to the system gallery
+        String savedImagePath = imageFile.getAbsolutePath();
+        BitmapUtils.galleryAddPic(context, savedImagePath);
+
+        Result result = new Result(savedImagePath, bytesWritten, encodeNanos, writeNanos);
+        EmojifyMetrics.record(EmojifyMetrics.Metric.SAVE_WRITE, writeNanos);
+        EmojifyMetrics.record(EmojifyMetrics.Metric.SAVED_BYTES, result.getBytesWritten());
+        Timber.d("Saved %d bytes in %.1f ms (encode %.1f ms, write %.1f ms)",
+                result.getBytesWritten(), (encodeNanos + writeNanos) / 1e6,
+                encodeNanos / 1e6, writeNanos / 1e6);
+        return result;
+    }
+
+    /**
+     * Creates a hidden temporary file in the storage directory, to be written and then renamed
+     * by {@link #publish(File, String)}.
+     *
+     * @param extension The extension of the image, including the dot
+     * @return The temporary file
+     * @throws IOException Thrown if the file could not be created
+     */
+    static File createTempFile(String extension) throws IOException {
+        return File.createTempFile(TEMP_FILE_PREFIX, extension, BitmapUtils.getStorageDir());
+    }
+
+    /**
+     * Renames a written temporary file to a new image file of the storage directory. The name
+     * is picked and taken while no other save can pick it, so the final file only ever exists
+     * once it is complete. The temporary file is deleted if it can not be renamed.
+     *
+     * @param tempFile  The temporary file, from {@link #createTempFile(String)}
+     * @param extension The extension of the image, including the dot
+     * @return The image file
+     * @throws IOException Thrown if the file could not be renamed
+     */
+    static File publish(File tempFile, String extension) throws IOException {
+        synchronized (sPublishLock) {
+            File imageFile;
+            try {
+                imageFile = BitmapUtils.getNewImageFile(extension);
+            } catch (IOException e) {
+                tempFile.delete();
+                throw e;
+            }
+            if (!tempFile.renameTo(imageFile)) {
+                tempFile.delete();
+                throw new IOException("Could not rename " + tempFile + " to " + imageFile);
+            }
+            return imageFile;
+        }
+    }
+
+    /**
+     * Format and quality an image is encoded with
+     */
+    public static final class Options {
+
+        /**
+         * JPEG at quality 85, visually close to 100 at a fraction of the size
+         */
+        public static final Options DEFAULT = new Options(Bitmap.CompressFormat.JPEG, 85);
+
+        public static final Options WEBP = new Options(Bitmap.CompressFormat.WEBP, 80);
+
+        final Bitmap.CompressFormat format;
+        final int quality;
+
+        /**
+         * size the encoding has to fit in, 0 to encode with the format and quality
+         */
+        final long targetBytes;
+
+        /**
+         * maximum width and height of the thumbnail, 0 for none
+         */
+        final int thumbnailSize;
+
+        public Options(Bitmap.CompressFormat format, int quality) {
+            this(format, quality, 0, 0);
+        }
+
+        private Options(Bitmap.CompressFormat format, int quality, long targetBytes,
+                        int thumbnailSize) {
+            this.format = format;
+            this.quality = quality;
+            this.targetBytes = targetBytes;
+            this.thumbnailSize = thumbnailSize;
+        }
+
+        /**
+         * Encodes the image in whichever of JPEG and WebP compresses it best, at the highest
+         * quality fitting in the target size.
+         *
+         * @param targetBytes The size an image should fit in, in bytes
+         * @return The options
+         */
+        public static Options forTargetSize(long targetBytes) {
+            return new Options(Bitmap.CompressFormat.JPEG, MAX_QUALITY, targetBytes, 0);
+        }
+
+        /**
+         * Also saves a thumbnail, scaled from the same bitmap, see
+         * {@link Result#getThumbnailPath()}.
+         *
+         * @param size The maximum width and height of the thumbnail in pixels
+         * @return The options with a thumbnail
+         */
+        public Options withThumbnail(int size) {
+            return new Options(format, quality, targetBytes, size);
+        }
+
+        /**
+         * @return The formats an image may be saved in, more than one when it is picked per image
+         */
+        Bitmap.CompressFormat[] getFormats() {
+            return targetBytes > 0
+                    ? new Bitmap.CompressFormat[]{Bitmap.CompressFormat.JPEG,
+                    Bitmap.CompressFormat.WEBP}
+                    : new Bitmap.CompressFormat[]{format};
+        }
+
+        /**
+         * @return Identifies the encoding settings, e.g. in cache keys
+         */
+        String getKey() {
+            return targetBytes > 0 ? "max" + targetBytes : format + "/" + quality;
+        }
+    }
+
+    static String getExtension(Bitmap.CompressFormat format) {
+        switch (format) {
+            case PNG:
+                return ".png";
+            case WEBP:
+                return ".webp";
+            default:
+                return ".jpg";
+        }
+    }
+
+    /**
+     * Where an image was saved and how long it took
+     */
+    public static final class Result {
+
+        private final String mPath;
+        private final long mBytesWritten;
+        private final long mEncodeNanos;
+        private final long mWriteNanos;
+        private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+        private int mQuality;
+        private String mThumbnailPath;
+
+        Result(String path, long bytesWritten, long encodeNanos, long writeNanos) {
+            mPath = path;
+            mBytesWritten = bytesWritten;
+            mEncodeNanos = encodeNanos;
+            mWriteNanos = writeNanos;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        public long getEncodeNanos() {
+            return mEncodeNanos;
+        }
+
+        public long getWriteNanos() {
+            return mWriteNanos;
+        }
+
+        /**
+         * @return The format the image was encoded in, JPEG for a copied or rendered picture
+         */
+        public Bitmap.CompressFormat getFormat() {
+            return mFormat;
+        }
+
+        /**
+         * @return The quality the image was encoded with, 0 if it was copied or rendered
+         */
+        public int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * @return The path of the thumbnail, null if none was asked for or it could not be saved
+         */
+        public String getThumbnailPath() {
+            return mThumbnailPath;
+        }
+    }
+
+    /**
+     * Encodes an image at a given quality, for {@link #searchQuality}
+     */
+    interface QualityProbe {
+
+        /**
+         * @return The size of the image encoded at the quality, in bytes
+         */
+        long encode(int quality) throws IOException;
+
+        /**
+         * Keeps the last encoding, dropping the one kept before.
+         */
+        void keep();
+    }
+
+    /**
+     * Encodes a bitmap in one format into two buffers, one holding the kept encoding while the
+     * other is encoded into. The second buffer is only allocated once a second encode needs it.
+     */
+    private static final class QualityEncoder implements QualityProbe {
+
+        private final Bitmap mImage;
+        private final Bitmap.CompressFormat mFormat;
+        private final int mInitialSize;
+        private EncodeBuffer mKept;
+        private EncodeBuffer mTrial;
+        private int mKeptQuality;
+        private int mTrialQuality = -1;
+        private int mPasses;
+
+        /**
+         * encoder of the format not picked, only kept to count its passes
+         */
+        private QualityEncoder mOther;
+
+        QualityEncoder(Bitmap image, Bitmap.CompressFormat format, int initialSize) {
+            mImage = image;
+            mFormat = format;
+            mInitialSize = initialSize;
+        }
+
+        @Override
+        public long encode(int quality) throws IOException {
+            // the format was picked by encoding it at this quality already
+            if (quality == mTrialQuality) {
+                return mTrial.size();
+            }
+            if (mTrial == null) {
+                mTrial = new EncodeBuffer(mInitialSize);
+            }
+            mTrial.reset();
+            mTrialQuality = quality;
+            mPasses++;
+            if (!mImage.compress(mFormat, quality, mTrial)) {
+                throw new IOException("Could not encode the image as " + mFormat);
+            }
+            return mTrial.size();
+        }
+
+        @Override
+        public void keep() {
+            EncodeBuffer kept = mKept;
+            mKept = mTrial;
+            mKeptQuality = mTrialQuality;
+            mTrial = kept;
+            mTrialQuality = -1;
+        }
+    }
+
+    /**
+     * A save run on the background thread
+     */
+    private interface Task {
+
+        Result run() throws IOException;
+    }
+
+    /**
+     * Bytes of an image, written to the channel of the saved file
+     */
+    private interface Content {
+
+        long writeTo(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * ByteArrayOutputStream writing its content to a channel without copying it first
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream implements Content {
+
+        EncodeBuffer(int initialSize) {
+            super(Math.max(32, initialSize));
+        }
+
+        @Override
+        public long writeTo(FileChannel channel) throws IOException {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buf, 0, count);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Image encoded into a buffered stream over the channel of the saved file
+     */
+    abstract static class StreamingContent implements Content {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        @Override
+        public long writeTo(FileChannel channel) throws IOException {
+            // Not closed, the channel is closed with the file once it is synced
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel),
+                    BUFFER_SIZE);
+            writeTo(out);
+            out.flush();
+            return channel.position();
+        }
+
+        /**
+         * Encodes the image into the stream, which is flushed afterwards.
+         *
+         * @param out The stream of the saved file
+         * @throws IOException Thrown if the image could not be encoded or written
+         */
+        abstract void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Photo of a scene, composited and encoded while it is written
+     */
+    private static final class SceneContent extends StreamingContent {
+
+        private final Context mContext;
+        private final EmojifiedScene mScene;
+        private final int mQuality;
+
+        SceneContent(Context context, EmojifiedScene scene, int quality) {
+            mContext = context;
+            mScene = scene;
+            mQuality = quality;
+        }
+
+        @Override
+        void writeTo(OutputStream out) throws IOException {
+            TiledEmojifier.render(mContext, mScene, out, mQuality);
+        }
+    }
+
+    /**
+     * Encoded picture transferred from its file, the kernel copying it where it can
+     */
+    private static final class FileContent implements Content {
+
+        private final File mSource;
+
+        FileContent(File source) {
+            mSource = source;
+        }
+
+        @Override
+        public long writeTo(FileChannel channel) throws IOException {
+            FileInputStream in = new FileInputStream(mSource);
+            try {
+                FileChannel sourceChannel = in.getChannel();
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += sourceChannel.transferTo(position, size - position, channel);
+                }
+                return size;
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
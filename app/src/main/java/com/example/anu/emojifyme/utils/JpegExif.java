@@ -0,0 +1,400 @@
+package com.example.anu.emojifyme.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Carries the EXIF data of a JPEG, such as its date, location and camera, over to a JPEG encoded
+ * from its pixels. Bitmap.compress and the {@link StreamingJpegEncoder} write none.
+ *
+ * The APP1 segment of the source is inserted right after the start of the encoded image, without
+ * what the saved and shared photo must not carry: the thumbnail of the source, which shows the
+ * faces without their emojis, and the location, which the photos saved before never had. The
+ * size of the source is dropped as well, as it is wrong once the pixels were turned or
+ * subsampled, and the orientation is reset when the pixels were turned upright.
+ */
+final class JpegExif {
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int APP1 = 0xE1;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * offset of the TIFF header in a segment, after the marker, the length and the EXIF header
+     */
+    private static final int TIFF_OFFSET = 4 + 6;
+
+    /**
+     * size of a directory entry, its tag, type, value count and value or value offset
+     */
+    private static final int ENTRY_SIZE = 12;
+
+    static final int ORIENTATION_TAG = 0x0112;
+    static final int EXIF_IFD_TAG = 0x8769;
+    static final int GPS_IFD_TAG = 0x8825;
+    static final int THUMBNAIL_OFFSET_TAG = 0x0201;
+    static final int THUMBNAIL_LENGTH_TAG = 0x0202;
+    static final int PIXEL_X_DIMENSION_TAG = 0xA002;
+    static final int PIXEL_Y_DIMENSION_TAG = 0xA003;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int ORIENTATION_NORMAL = 1;
+
+    /**
+     * size in bytes of a value of each TIFF type, indexed by type
+     */
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    private JpegExif() {
+    }
+
+    /**
+     * Reads the EXIF segment of a JPEG, without its thumbnail, location and image size.
+     *
+     * @param jpegPath         The path of the JPEG
+     * @param resetOrientation Whether to set the orientation to normal, for pixels turned upright
+     * @return The segment, marker included, or null if the picture has no EXIF data we can
+     * follow or is not a JPEG
+     * @throws IOException Thrown if the picture could not be read
+     */
+    static byte[] readSegment(String jpegPath, boolean resetOrientation) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(jpegPath));
+        try {
+            return readSegment(in, resetOrientation);
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] readSegment(InputStream in, boolean resetOrientation) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readUnsignedByte() != MARKER_PREFIX || data.readUnsignedByte() != SOI) {
+                return null;
+            }
+
+            // The EXIF data comes before the image data, in one of the first segments
+            while (true) {
+                if (data.readUnsignedByte() != MARKER_PREFIX) {
+                    return null;
+                }
+                int marker = data.readUnsignedByte();
+                while (marker == MARKER_PREFIX) {
+                    marker = data.readUnsignedByte();
+                }
+                if (marker == SOS || marker == EOI) {
+                    return null;
+                }
+
+                int length = data.readUnsignedShort();
+                if (length < 2) {
+                    return null;
+                }
+                if (marker != APP1 || length < 2 + EXIF_HEADER.length) {
+                    skipFully(data, length - 2);
+                    continue;
+                }
+
+                byte[] segment = new byte[length + 2];
+                segment[0] = (byte) MARKER_PREFIX;
+                segment[1] = (byte) APP1;
+                segment[2] = (byte) (length >> 8);
+                segment[3] = (byte) length;
+                data.readFully(segment, 4, length - 2);
+                if (!isExif(segment)) {
+                    // e.g. XMP, also stored in an APP1 segment
+                    continue;
+                }
+                return strip(segment, resetOrientation);
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Wraps a stream a JPEG is encoded into, to insert a segment right after its start marker.
+     *
+     * @param out     The stream the JPEG is encoded into
+     * @param segment The segment, from {@link #readSegment(String, boolean)}
+     * @return The stream to encode the JPEG into instead
+     */
+    static OutputStream insertSegment(OutputStream out, byte[] segment) {
+        return new SegmentInsertingStream(out, segment);
+    }
+
+    private static boolean isExif(byte[] segment) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[4 + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * cuts the thumbnail, the location and the image size out of a segment, resetting its
+     * orientation if asked to, returns null if the TIFF structure could not be followed
+     */
+    private static byte[] strip(byte[] segment, boolean resetOrientation) {
+        if (segment.length < TIFF_OFFSET + 8) {
+            return null;
+        }
+        boolean littleEndian;
+        if (segment[TIFF_OFFSET] == 'I' && segment[TIFF_OFFSET + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[TIFF_OFFSET] == 'M' && segment[TIFF_OFFSET + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return null;
+        }
+        int ifd0 = directoryAt(segment, TIFF_OFFSET + 4, littleEndian);
+        if (ifd0 <= 0) {
+            return null;
+        }
+
+        // The second IFD only holds the thumbnail, the photo without its emojis
+        int length = segment.length;
+        int nextIfdPointer = nextIfdPointer(segment, ifd0, littleEndian);
+        int ifd1 = directoryAt(segment, nextIfdPointer, littleEndian);
+        if (ifd1 < 0) {
+            return null;
+        }
+        if (ifd1 > 0) {
+            int offsetEntry = findEntry(segment, ifd1, THUMBNAIL_OFFSET_TAG, littleEndian);
+            int lengthEntry = findEntry(segment, ifd1, THUMBNAIL_LENGTH_TAG, littleEndian);
+            if (offsetEntry >= 0 && lengthEntry >= 0) {
+                long offset = readValue(segment, offsetEntry, littleEndian);
+                long size = readValue(segment, lengthEntry, littleEndian);
+                long end = TIFF_OFFSET + offset + size;
+                if (offset < 0 || size < 0 || end > segment.length) {
+                    return null;
+                }
+                Arrays.fill(segment, TIFF_OFFSET + (int) offset, (int) end, (byte) 0);
+                // It usually ends the segment, nothing else can be pointing past it then
+                if (end == segment.length) {
+                    length = TIFF_OFFSET + (int) offset;
+                }
+            }
+            if (!clearDirectory(segment, ifd1, littleEndian)) {
+                return null;
+            }
+            Arrays.fill(segment, nextIfdPointer, nextIfdPointer + 4, (byte) 0);
+        }
+
+        // Where the photo was taken, the photos saved before never carried it
+        int gpsEntry = findEntry(segment, ifd0, GPS_IFD_TAG, littleEndian);
+        if (gpsEntry >= 0) {
+            int gpsIfd = directoryAt(segment, gpsEntry + 8, littleEndian);
+            if (gpsIfd < 0 || gpsIfd > 0 && !clearDirectory(segment, gpsIfd, littleEndian)) {
+                return null;
+            }
+            removeEntry(segment, ifd0, gpsEntry, littleEndian);
+        }
+
+        // The size of the source is wrong once the pixels were turned or subsampled
+        int exifEntry = findEntry(segment, ifd0, EXIF_IFD_TAG, littleEndian);
+        if (exifEntry >= 0) {
+            int exifIfd = directoryAt(segment, exifEntry + 8, littleEndian);
+            if (exifIfd < 0) {
+                return null;
+            }
+            if (exifIfd > 0) {
+                removeEntry(segment, exifIfd,
+                        findEntry(segment, exifIfd, PIXEL_X_DIMENSION_TAG, littleEndian),
+                        littleEndian);
+                removeEntry(segment, exifIfd,
+                        findEntry(segment, exifIfd, PIXEL_Y_DIMENSION_TAG, littleEndian),
+                        littleEndian);
+            }
+        }
+
+        // A stale orientation would turn the upright pixels again
+        int orientationEntry = findEntry(segment, ifd0, ORIENTATION_TAG, littleEndian);
+        if (resetOrientation && orientationEntry >= 0) {
+            if (readShort(segment, orientationEntry + 2, littleEndian) != TYPE_SHORT) {
+                return null;
+            }
+            // A single SHORT is stored in the first two bytes of the value field
+            writeShort(segment, orientationEntry + 8, ORIENTATION_NORMAL, littleEndian);
+        }
+
+        if (length < segment.length) {
+            segment = Arrays.copyOf(segment, length);
+            writeShort(segment, 2, length - 2, false);
+        }
+        return segment;
+    }
+
+    /**
+     * returns the position in the segment of the IFD whose offset is stored at the pointer, 0 if
+     * the offset is 0 or -1 if the IFD does not fit in the segment
+     */
+    private static int directoryAt(byte[] segment, int pointer, boolean littleEndian) {
+        if (pointer + 4 > segment.length) {
+            return -1;
+        }
+        long offset = readInt(segment, pointer, littleEndian) & 0xFFFFFFFFL;
+        if (offset == 0) {
+            return 0;
+        }
+        long ifd = TIFF_OFFSET + offset;
+        if (ifd + 2 > segment.length) {
+            return -1;
+        }
+        int entryCount = readShort(segment, (int) ifd, littleEndian);
+        if (ifd + 2 + entryCount * ENTRY_SIZE + 4 > segment.length) {
+            return -1;
+        }
+        return (int) ifd;
+    }
+
+    /**
+     * position of the offset of the IFD following the given one
+     */
+    private static int nextIfdPointer(byte[] segment, int ifd, boolean littleEndian) {
+        return ifd + 2 + readShort(segment, ifd, littleEndian) * ENTRY_SIZE;
+    }
+
+    /**
+     * position of the entry of the IFD with the given tag, -1 if it has none
+     */
+    private static int findEntry(byte[] segment, int ifd, int tag, boolean littleEndian) {
+        int entryCount = readShort(segment, ifd, littleEndian);
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd + 2 + i * ENTRY_SIZE;
+            if (readShort(segment, entry, littleEndian) == tag) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the single SHORT or LONG value of an entry, -1 if it has another type
+     */
+    private static long readValue(byte[] segment, int entry, boolean littleEndian) {
+        int type = readShort(segment, entry + 2, littleEndian);
+        if (type == TYPE_SHORT) {
+            return readShort(segment, entry + 8, littleEndian);
+        }
+        if (type == TYPE_LONG) {
+            return readInt(segment, entry + 8, littleEndian) & 0xFFFFFFFFL;
+        }
+        return -1;
+    }
+
+    /**
+     * takes an entry, if any, out of an IFD by moving the following entries and the next IFD
+     * offset over it, the values of other entries stay where they are
+     */
+    private static void removeEntry(byte[] segment, int ifd, int entry, boolean littleEndian) {
+        if (entry < 0) {
+            return;
+        }
+        int end = nextIfdPointer(segment, ifd, littleEndian) + 4;
+        System.arraycopy(segment, entry + ENTRY_SIZE, segment, entry, end - entry - ENTRY_SIZE);
+        Arrays.fill(segment, end - ENTRY_SIZE, end, (byte) 0);
+        writeShort(segment, ifd, readShort(segment, ifd, littleEndian) - 1, littleEndian);
+    }
+
+    /**
+     * zeroes an IFD no longer pointed at and the values of its entries, returns false if a
+     * value does not fit in the segment
+     */
+    private static boolean clearDirectory(byte[] segment, int ifd, boolean littleEndian) {
+        int entryCount = readShort(segment, ifd, littleEndian);
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifd + 2 + i * ENTRY_SIZE;
+            int type = readShort(segment, entry + 2, littleEndian);
+            if (type <= 0 || type >= TYPE_SIZES.length) {
+                return false;
+            }
+            long size = TYPE_SIZES[type]
+                    * (readInt(segment, entry + 4, littleEndian) & 0xFFFFFFFFL);
+            // Values of up to four bytes are stored in the entry itself
+            if (size > 4) {
+                long value = TIFF_OFFSET
+                        + (readInt(segment, entry + 8, littleEndian) & 0xFFFFFFFFL);
+                if (value + size > segment.length) {
+                    return false;
+                }
+                Arrays.fill(segment, (int) value, (int) (value + size), (byte) 0);
+            }
+        }
+        Arrays.fill(segment, ifd, ifd + 2 + entryCount * ENTRY_SIZE + 4, (byte) 0);
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int first = data[offset] & 0xFF;
+        int second = data[offset + 1] & 0xFF;
+        return littleEndian ? first | second << 8 : first << 8 | second;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int first = readShort(data, offset, littleEndian);
+        int second = readShort(data, offset + 2, littleEndian);
+        return littleEndian ? first | second << 16 : first << 16 | second;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value, boolean littleEndian) {
+        data[offset] = (byte) (littleEndian ? value : value >> 8);
+        data[offset + 1] = (byte) (littleEndian ? value >> 8 : value);
+    }
+
+    private static void skipFully(DataInputStream data, int count) throws IOException {
+        while (count > 0) {
+            int skipped = data.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * writes the segment once the two bytes of the start marker went through
+     */
+    private static final class SegmentInsertingStream extends FilterOutputStream {
+
+        private final byte[] mSegment;
+        private int mWritten;
+
+        SegmentInsertingStream(OutputStream out, byte[] segment) {
+            super(out);
+            mSegment = segment;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (mWritten < 2 && ++mWritten == 2) {
+                out.write(mSegment);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0 && mWritten < 2) {
+                write(b[off++]);
+                len--;
+            }
+            if (len > 0) {
+                out.write(b, off, len);
+            }
+        }
+    }
+}
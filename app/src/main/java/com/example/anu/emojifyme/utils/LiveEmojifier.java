@@ -0,0 +1,422 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Emojifies the frames of a live camera preview on a dedicated processing thread.
+ *
+ * Frames are written by the camera into a fixed set of buffers, see
+ * {@link Listener#onFrameBufferAvailable(byte[])}. Only the latest frame waits while another one is
+ * processed: a newer frame replaces it and the stale buffer goes straight back to the camera, so
+ * the overlay never lags behind the preview by more than one frame.
+ *
+ * Faces are followed across frames by their tracking id. Their results are smoothed and cached
+ * by a {@link FaceResultCache}, so single frame misclassifications do not make the overlay flicker
+ * and a face that barely moved is not classified again.
+ */
+public class LiveEmojifier {
+
+    /**
+     * buffers shared with the camera, one being filled, one waiting and one being processed
+     */
+    public static final int FRAME_BUFFER_COUNT = 3;
+
+    /**
+     * bits per pixel of the NV21 preview frames
+     */
+    private static final int NV21_BITS_PER_PIXEL = 12;
+
+    /**
+     * Receives the frame buffers and the emojified frames
+     */
+    public interface Listener {
+
+        /**
+         * The buffer can be filled with a new frame. Called on any thread.
+         *
+         * @param buffer The frame buffer
+         */
+        void onFrameBufferAvailable(byte[] buffer);
+
+        /**
+         * A frame was emojified. Called on the processing thread.
+         *
+         * @param overlay The emojis to draw over the preview
+         */
+        void onFrameEmojified(Overlay overlay);
+    }
+
+    private final FaceDetectionBackend mBackend;
+    private final Listener mListener;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final byte[][] mFrameBuffers;
+
+    private final Object mLock = new Object();
+    private boolean mActive;
+    private byte[] mPendingFrame;
+    private long mPendingTimestampNanos;
+    private Thread mProcessingThread;
+
+    /**
+     * only used on the processing thread
+     */
+    private final List<DetectedFace> mFaces = new ArrayList<>();
+    private final FaceResultCache mResultCache = new FaceResultCache();
+    private int mFrameId;
+
+    private final AtomicLong mProcessedFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mTotalLatencyNanos = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param backend  The backend detecting the faces of every processed frame, released by
+     *                 {@link #stop()}
+     * @param width    The width of the preview frames
+     * @param height   The height of the preview frames
+     * @param rotation The quarter turns making the preview frames upright
+     * @param listener Receives the frame buffers and the emojified frames
+     */
+    public LiveEmojifier(FaceDetectionBackend backend, int width, int height, int rotation,
+                         Listener listener) {
+        mBackend = backend;
+        mListener = listener;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mFrameBuffers = new byte[FRAME_BUFFER_COUNT][getFrameSize(width, height)];
+    }
+
+    /**
+     * @return The size in bytes of an NV21 frame of the given size
+     */
+    public static int getFrameSize(int width, int height) {
+        return width * height * NV21_BITS_PER_PIXEL / 8;
+    }
+
+    /**
+     * Starts the processing thread and hands every frame buffer to the listener.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mActive) {
+                return;
+            }
+            mActive = true;
+            mProcessingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                    processFrames();
+                }
+            }, "LiveEmojifier");
+            mProcessingThread.start();
+        }
+
+        for (byte[] buffer : mFrameBuffers) {
+            mListener.onFrameBufferAvailable(buffer);
+        }
+    }
+
+    /**
+     * Stops the processing thread, waiting for the frame being processed, and releases the
+     * detector. The emojifier can not be used afterwards.
+     */
+    public void stop() {
+        Thread processingThread;
+        synchronized (mLock) {
+            if (!mActive) {
+                return;
+            }
+            mActive = false;
+            mPendingFrame = null;
+            mLock.notifyAll();
+            processingThread = mProcessingThread;
+            mProcessingThread = null;
+        }
+
+        try {
+            processingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mBackend.release();
+
+        Timber.d("Live emojify stopped, processed : %d, dropped : %d, latency : %.1f ms, max : %.1f ms, "
+                        + "reused faces : %d, updated faces : %d",
+                getProcessedFrames(), getDroppedFrames(), getAverageLatencyMillis(),
+                getMaxLatencyMillis(), mResultCache.getReusedResults(),
+                mResultCache.getUpdatedResults());
+    }
+
+    /**
+     * Queues a frame written by the camera, replacing the frame still waiting, if any.
+     *
+     * @param frame One of the frame buffers, filled with a new frame
+     */
+    public void onFrame(byte[] frame) {
+        byte[] staleFrame;
+        synchronized (mLock) {
+            if (!mActive) {
+                return;
+            }
+            staleFrame = mPendingFrame;
+            mPendingFrame = frame;
+            mPendingTimestampNanos = System.nanoTime();
+            mLock.notifyAll();
+        }
+
+        if (staleFrame != null) {
+            mDroppedFrames.incrementAndGet();
+            mListener.onFrameBufferAvailable(staleFrame);
+        }
+    }
+
+    private void processFrames() {
+        while (true) {
+            byte[] frame;
+            long timestampNanos;
+            synchronized (mLock) {
+                while (mActive && mPendingFrame == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mActive) {
+                    return;
+                }
+                frame = mPendingFrame;
+                timestampNanos = mPendingTimestampNanos;
+                mPendingFrame = null;
+            }
+
+            try {
+                processFrame(frame, timestampNanos);
+            } catch (RuntimeException e) {
+                Timber.e(e, "Failed to emojify a live frame");
+            } finally {
+                mListener.onFrameBufferAvailable(frame);
+            }
+        }
+    }
+
+    private void processFrame(byte[] frame, long timestampNanos) {
+        int frameId = mFrameId++;
+        mFaces.clear();
+        mBackend.detectFrame(frame, mWidth, mHeight, mRotation, frameId, timestampNanos, mFaces);
+
+        boolean upright = mRotation % 2 == 0;
+        Overlay overlay = new Overlay(upright ? mWidth : mHeight, upright ? mHeight : mWidth,
+                timestampNanos, mFaces.size());
+        for (int i = 0; i < mFaces.size(); i++) {
+            DetectedFace face = mFaces.get(i);
+            overlay.setFace(i, face.getId(), mResultCache.update(face.getId(), face.getLeft(),
+                    face.getTop(), face.getWidth(), face.getHeight(),
+                    face.getSmilingProbability(), face.getLeftEyeOpenProbability(),
+                    face.getRightEyeOpenProbability()));
+        }
+
+        /**
+         * forget the faces that left the preview
+         */
+        mResultCache.removeStale();
+
+        recordLatency(System.nanoTime() - timestampNanos);
+        mListener.onFrameEmojified(overlay);
+    }
+
+    private void recordLatency(long nanos) {
+        EmojifyMetrics.record(EmojifyMetrics.Metric.LIVE_FRAME, nanos);
+        mProcessedFrames.incrementAndGet();
+        mTotalLatencyNanos.addAndGet(nanos);
+        long max = mMaxLatencyNanos.get();
+        while (nanos > max && !mMaxLatencyNanos.compareAndSet(max, nanos)) {
+            max = mMaxLatencyNanos.get();
+        }
+    }
+
+    /**
+     * Returns the cache of the face results, to tune its smoothing before starting.
+     *
+     * @return The face result cache, only used on the processing thread once started
+     */
+    public FaceResultCache getResultCache() {
+        return mResultCache;
+    }
+
+    /**
+     * @return The number of frames emojified
+     */
+    public long getProcessedFrames() {
+        return mProcessedFrames.get();
+    }
+
+    /**
+     * @return The number of frames replaced by a newer one before they were processed
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    /**
+     * @return The average time in milliseconds from receiving a frame to emojifying it
+     */
+    public double getAverageLatencyMillis() {
+        long frames = mProcessedFrames.get();
+        return frames == 0 ? 0
+                : (double) mTotalLatencyNanos.get() / frames / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return The longest time in milliseconds from receiving a frame to emojifying it
+     */
+    public double getMaxLatencyMillis() {
+        return (double) mMaxLatencyNanos.get() / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * The emojis of an emojified frame, drawn over the preview on the main thread once their
+     * sprites are picked off it
+     */
+    public static final class Overlay {
+
+        private final int mFrameWidth;
+        private final int mFrameHeight;
+        private final long mTimestampNanos;
+        private final int[] mFaceIds;
+        private final float[] mFaceBounds;
+        private final Emojifier.Emoji[] mEmojis;
+
+        /**
+         * set by {@link #pickSprites(Context, float, boolean)}, the bounds in frame coordinates
+         */
+        private final Bitmap[] mSprites;
+        private final float[] mEmojiBounds;
+
+        /**
+         * only used while drawing, on the main thread
+         */
+        private final RectF mEmojiRect = new RectF();
+
+        Overlay(int frameWidth, int frameHeight, long timestampNanos, int faceCount) {
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+            mTimestampNanos = timestampNanos;
+            mFaceIds = new int[faceCount];
+            mFaceBounds = new float[faceCount * 4];
+            mEmojis = new Emojifier.Emoji[faceCount];
+            mSprites = new Bitmap[faceCount];
+            mEmojiBounds = new float[faceCount * 4];
+        }
+
+        private void setFace(int index, int faceId, FaceResultCache.FaceResult result) {
+            mFaceIds[index] = faceId;
+            mFaceBounds[index * 4] = result.getLeft();
+            mFaceBounds[index * 4 + 1] = result.getTop();
+            mFaceBounds[index * 4 + 2] = result.getWidth();
+            mFaceBounds[index * 4 + 3] = result.getHeight();
+            mEmojis[index] = result.getEmoji();
+        }
+
+        /**
+         * @return The width of the upright frame the faces were found in
+         */
+        public int getFrameWidth() {
+            return mFrameWidth;
+        }
+
+        /**
+         * @return The height of the upright frame the faces were found in
+         */
+        public int getFrameHeight() {
+            return mFrameHeight;
+        }
+
+        /**
+         * @return When the frame was received, in {@link System#nanoTime()} time
+         */
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public int getFaceCount() {
+            return mEmojis.length;
+        }
+
+        int getFaceId(int index) {
+            return mFaceIds[index];
+        }
+
+        Emojifier.Emoji getEmoji(int index) {
+            return mEmojis[index];
+        }
+
+        /**
+         * Picks the sprite of every emoji at the size it is drawn at, and where it goes in the
+         * frame. Call it before handing the overlay to the main thread, so drawing does not
+         * decode or scale sprites.
+         *
+         * @param context  called context
+         * @param scaleX   The horizontal factor mapping the frame to the view
+         * @param mirrored Whether the preview is mirrored, as for the front camera
+         */
+        public void pickSprites(Context context, float scaleX, boolean mirrored) {
+            EmojiSpriteCache spriteCache = EmojiSpriteCache.getInstance(context);
+            float[] edges = new float[4];
+            for (int i = 0; i < mEmojis.length; i++) {
+                float faceX = mFaceBounds[i * 4];
+                float faceWidth = mFaceBounds[i * 4 + 2];
+                if (mirrored) {
+                    faceX = mFrameWidth - faceX - faceWidth;
+                }
+
+                Bitmap sprite = spriteCache.getSprite(mEmojis[i],
+                        EmojiCompositor.getEmojiWidth(faceWidth * scaleX));
+                mSprites[i] = sprite;
+                if (sprite != null) {
+                    EmojiCompositor.getEmojiBounds(sprite.getWidth(), sprite.getHeight(), faceX,
+                            mFaceBounds[i * 4 + 1], faceWidth, mFaceBounds[i * 4 + 3],
+                            edges);
+                    System.arraycopy(edges, 0, mEmojiBounds, i * 4, 4);
+                }
+            }
+        }
+
+        /**
+         * Draws the emojis picked by {@link #pickSprites(Context, float, boolean)} over the
+         * preview the frame is shown in.
+         *
+         * @param canvas The canvas of the view over the preview
+         * @param scaleX The horizontal factor mapping the frame to the view
+         * @param scaleY The vertical factor mapping the frame to the view
+         */
+        public void draw(Canvas canvas, float scaleX, float scaleY) {
+            int saveCount = canvas.save();
+            canvas.scale(scaleX, scaleY);
+            for (int i = 0; i < mSprites.length; i++) {
+                if (mSprites[i] == null) {
+                    continue;
+                }
+                mEmojiRect.set(mEmojiBounds[i * 4], mEmojiBounds[i * 4 + 1],
+                        mEmojiBounds[i * 4 + 2], mEmojiBounds[i * 4 + 3]);
+                canvas.drawBitmap(mSprites[i], null, mEmojiRect, null);
+            }
+            canvas.restoreToCount(saveCount);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws the emojis of a picture by blending their pixels straight into int[] buffers instead of
+ * going through a Canvas, for pictures with many faces.
+ *
+ * Emojis are queued by {@link #drawEmoji} and blended when the result is asked for. Only the
+ * pixels under the emojis are read from and written back to the picture. Emojis whose bounds
+ * overlap are blended together in drawing order, and the disjoint regions they cover are split
+ * into bands of rows that are blended in parallel.
+ *
+ * Sprites are sampled at the nearest pixel and blended source over with premultiplied alpha,
+ * like a Canvas drawing them without a paint, so the result matches it to within rounding.
+ * Emojis turned with their face can not be sampled row by row, they are drawn on the Canvas
+ * once the others are blended.
+ */
+public class PixelCompositor extends EmojiCompositor {
+
+    /**
+     * from this many faces a picture is composited with this class rather than a Canvas
+     */
+    public static final int MIN_FACES = 4;
+
+    /**
+     * rows of a region blended by a single task
+     */
+    static final int BAND_HEIGHT = 64;
+
+    private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * workers blending the bands, the calling thread blends one band itself
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(WORKER_COUNT,
+            WORKER_COUNT, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PixelCompositor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final int mLeft;
+    private final int mTop;
+    private final List<Layer> mLayers = new ArrayList<>();
+
+    /**
+     * turned emojis, drawn on the Canvas once the others are blended
+     */
+    private final List<RotatedEmoji> mRotatedEmojis = new ArrayList<>();
+
+    /**
+     * premultiplied pixels of every sprite drawn, read once however many faces share it
+     */
+    private final Map<Bitmap, int[]> mSpritePixels = new IdentityHashMap<>();
+
+    /**
+     * @param backgroundBitmap The original picture
+     */
+    public PixelCompositor(Bitmap backgroundBitmap) {
+        this(backgroundBitmap, 0, 0);
+    }
+
+    /**
+     * Draws on a tile of a larger picture. Faces are given in the coordinates of the picture.
+     *
+     * @param tileBitmap The tile of the original picture
+     * @param left       The left edge of the tile in the picture
+     * @param top        The top edge of the tile in the picture
+     */
+    public PixelCompositor(Bitmap tileBitmap, int left, int top) {
+        super(tileBitmap, left, top);
+        mLeft = left;
+        mTop = top;
+    }
+
+    /**
+     * Queues the emoji to be blended over the face, scaled to match the width of the face.
+     *
+     * @param emojiBitmap The chosen emoji
+     * @param faceX       The left edge of the detected face
+     * @param faceY       The top edge of the detected face
+     * @param faceWidth   The width of the detected face
+     * @param faceHeight  The height of the detected face
+     */
+    @Override
+    public void drawEmoji(Bitmap emojiBitmap, float faceX, float faceY, float faceWidth,
+                          float faceHeight) {
+        Bitmap resultBitmap = super.getResultBitmap();
+        float[] bounds = new float[4];
+        getEmojiBounds(emojiBitmap.getWidth(), emojiBitmap.getHeight(), faceX, faceY, faceWidth,
+                faceHeight, bounds);
+        Layer layer = Layer.create(emojiBitmap, bounds[0] - mLeft, bounds[1] - mTop,
+                bounds[2] - mLeft, bounds[3] - mTop, resultBitmap.getWidth(),
+                resultBitmap.getHeight());
+        if (layer != null) {
+            mLayers.add(layer);
+        }
+    }
+
+    /**
+     * Queues the emoji to be blended where the placement puts it, or drawn on the Canvas after
+     * the others if it is turned.
+     *
+     * @param emojiBitmap The chosen emoji
+     * @param placement   The placement of the emojis of all the faces
+     * @param index       The index of the face
+     */
+    @Override
+    public void drawEmoji(Bitmap emojiBitmap, EmojiPlacement placement, int index) {
+        if (placement.isRotated(index)) {
+            mRotatedEmojis.add(new RotatedEmoji(emojiBitmap, placement, index));
+            return;
+        }
+
+        Bitmap resultBitmap = super.getResultBitmap();
+        float[] bounds = new float[4];
+        placement.getBounds(index, bounds);
+        Layer layer = Layer.create(emojiBitmap, bounds[0] - mLeft, bounds[1] - mTop,
+                bounds[2] - mLeft, bounds[3] - mTop, resultBitmap.getWidth(),
+                resultBitmap.getHeight());
+        if (layer != null) {
+            mLayers.add(layer);
+        }
+    }
+
+    /**
+     * Blends the queued emojis.
+     *
+     * @return The final bitmap, including the emojis over the faces
+     */
+    @Override
+    public Bitmap getResultBitmap() {
+        Bitmap resultBitmap = super.getResultBitmap();
+        if (!mLayers.isEmpty()) {
+            blendLayers(resultBitmap);
+        }
+
+        for (RotatedEmoji rotatedEmoji : mRotatedEmojis) {
+            super.drawEmoji(rotatedEmoji.sprite, rotatedEmoji.placement, rotatedEmoji.index);
+        }
+        mRotatedEmojis.clear();
+        return resultBitmap;
+    }
+
+    private void blendLayers(Bitmap resultBitmap) {
+
+        for (Layer layer : mLayers) {
+            int[] pixels = mSpritePixels.get(layer.sprite);
+            if (pixels == null) {
+                pixels = readPremultipliedPixels(layer.sprite);
+                mSpritePixels.put(layer.sprite, pixels);
+            }
+            layer.spritePixels = pixels;
+        }
+
+        List<Layer> layers = new ArrayList<>(mLayers);
+        mLayers.clear();
+        List<BandTask> tasks = new ArrayList<>();
+        for (Region region : getRegions(layers)) {
+            for (int top = region.top; top < region.bottom; top += BAND_HEIGHT) {
+                tasks.add(new BandTask(resultBitmap, layers, region, top,
+                        Math.min(top + BAND_HEIGHT, region.bottom)));
+            }
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Forks all the tasks but the last one to the workers, runs the last one on the calling
+     * thread and joins the others.
+     *
+     * @param tasks The bands to blend
+     */
+    private static void runAll(List<BandTask> tasks) {
+        List<Future<?>> futures = new ArrayList<>(tasks.size() - 1);
+        for (int i = 0; i < tasks.size() - 1; i++) {
+            futures.add(sExecutor.submit(tasks.get(i)));
+        }
+        tasks.get(tasks.size() - 1).run();
+
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // the bands are written into the picture, so they are waited for anyway
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Could not blend the emojis", e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Groups the layers into regions that do not overlap, merging layers whose bounds overlap.
+     *
+     * @param layers The layers, in drawing order
+     * @return The disjoint regions, each holding the indexes of its layers in drawing order
+     */
+    static List<Region> getRegions(List<Layer> layers) {
+        List<Region> regions = new ArrayList<>();
+        for (int i = 0; i < layers.size(); i++) {
+            Layer layer = layers.get(i);
+            Region merged = new Region(layer.left, layer.top, layer.right, layer.bottom);
+            merged.layers.add(i);
+
+            // Merging grows the region, which can make it overlap regions it was clear of
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                for (int j = regions.size() - 1; j >= 0; j--) {
+                    Region region = regions.get(j);
+                    if (region.intersects(merged)) {
+                        merged.union(region);
+                        regions.remove(j);
+                        grown = true;
+                    }
+                }
+            }
+            regions.add(merged);
+        }
+
+        for (Region region : regions) {
+            Collections.sort(region.layers);
+        }
+        return regions;
+    }
+
+    /**
+     * Reads the pixels of a sprite, premultiplied by their alpha.
+     *
+     * @param sprite The sprite
+     * @return The premultiplied pixels, row after row
+     */
+    private static int[] readPremultipliedPixels(Bitmap sprite) {
+        int width = sprite.getWidth();
+        int height = sprite.getHeight();
+        int[] pixels = new int[width * height];
+        sprite.getPixels(pixels, 0, width, 0, 0, width, height);
+        premultiply(pixels);
+        return pixels;
+    }
+
+    /**
+     * Premultiplies the colors of the pixels by their alpha, in place.
+     *
+     * @param pixels Pixels as returned by {@link Bitmap#getPixels}
+     */
+    static void premultiply(int[] pixels) {
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                pixels[i] = 0;
+            } else if (alpha != 255) {
+                pixels[i] = alpha << 24
+                        | div255(((pixel >> 16) & 0xff) * alpha) << 16
+                        | div255(((pixel >> 8) & 0xff) * alpha) << 8
+                        | div255((pixel & 0xff) * alpha);
+            }
+        }
+    }
+
+    /**
+     * Blends a scaled sprite source over a block of pixels, row by row.
+     *
+     * @param dst        Pixels as returned by {@link Bitmap#getPixels}, blended in place
+     * @param dstOffset  The index of the first pixel to blend over
+     * @param dstStride  The number of pixels in a row of the destination
+     * @param src        The premultiplied pixels of the sprite
+     * @param srcStride  The number of pixels in a row of the sprite
+     * @param srcX       The column of the sprite sampled by every column of the block
+     * @param srcY       The row of the sprite sampled by every row of the sprite bounds
+     * @param srcYOffset The index in srcY of the first row of the block
+     * @param height     The number of rows of the block
+     */
+    static void blend(int[] dst, int dstOffset, int dstStride, int[] src, int srcStride,
+                      int[] srcX, int[] srcY, int srcYOffset, int height) {
+        int width = srcX.length;
+        for (int row = 0; row < height; row++) {
+            int d = dstOffset + row * dstStride;
+            int srcRow = srcY[srcYOffset + row] * srcStride;
+            for (int column = 0; column < width; column++, d++) {
+                int source = src[srcRow + srcX[column]];
+                int sourceAlpha = source >>> 24;
+                if (sourceAlpha == 255) {
+                    dst[d] = source;
+                } else if (sourceAlpha != 0) {
+                    dst[d] = blendPixel(source, dst[d]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Blends a translucent premultiplied pixel source over a pixel.
+     *
+     * @param source      The premultiplied pixel
+     * @param destination The unpremultiplied pixel below it
+     * @return The unpremultiplied result
+     */
+    private static int blendPixel(int source, int destination) {
+        int inverseAlpha = 255 - (source >>> 24);
+        int destinationAlpha = destination >>> 24;
+        int red = (destination >> 16) & 0xff;
+        int green = (destination >> 8) & 0xff;
+        int blue = destination & 0xff;
+
+        // An opaque destination, the common case, is already premultiplied and stays opaque
+        if (destinationAlpha == 255) {
+            return 0xff000000
+                    | (((source >> 16) & 0xff) + div255(red * inverseAlpha)) << 16
+                    | (((source >> 8) & 0xff) + div255(green * inverseAlpha)) << 8
+                    | ((source & 0xff) + div255(blue * inverseAlpha));
+        }
+
+        int alpha = (source >>> 24) + div255(destinationAlpha * inverseAlpha);
+        red = ((source >> 16) & 0xff) + div255(div255(red * destinationAlpha) * inverseAlpha);
+        green = ((source >> 8) & 0xff) + div255(div255(green * destinationAlpha) * inverseAlpha);
+        blue = (source & 0xff) + div255(div255(blue * destinationAlpha) * inverseAlpha);
+        return alpha << 24 | unpremultiply(red, alpha) << 16 | unpremultiply(green, alpha) << 8
+                | unpremultiply(blue, alpha);
+    }
+
+    private static int unpremultiply(int color, int alpha) {
+        return Math.min(255, (color * 255 + alpha / 2) / alpha);
+    }
+
+    /**
+     * @return value / 255 rounded to the nearest integer, for a value up to 255 * 255
+     */
+    private static int div255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+
+    /**
+     * An emoji to blend, clipped to the picture
+     */
+    static final class Layer {
+
+        final Bitmap sprite;
+        final int spriteWidth;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+
+        /**
+         * the sprite column sampled by every column, and the sprite row by every row
+         */
+        final int[] srcX;
+        final int[] srcY;
+
+        int[] spritePixels;
+
+        private Layer(Bitmap sprite, int left, int top, int right, int bottom, int[] srcX,
+                      int[] srcY) {
+            this.sprite = sprite;
+            this.spriteWidth = sprite.getWidth();
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.srcX = srcX;
+            this.srcY = srcY;
+        }
+
+        /**
+         * Maps the pixels whose centers lie within the bounds to the sprite pixels they sample.
+         *
+         * @return The layer, or null if it does not cover any pixel of the picture
+         */
+        static Layer create(Bitmap sprite, float left, float top, float right, float bottom,
+                            int width, int height) {
+            int x0 = Math.max(0, Math.round(left));
+            int y0 = Math.max(0, Math.round(top));
+            int x1 = Math.min(width, Math.round(right));
+            int y1 = Math.min(height, Math.round(bottom));
+            if (x0 >= x1 || y0 >= y1 || sprite.getWidth() <= 0 || sprite.getHeight() <= 0) {
+                return null;
+            }
+            return new Layer(sprite, x0, y0, x1, y1,
+                    sample(x0, x1, left, right, sprite.getWidth()),
+                    sample(y0, y1, top, bottom, sprite.getHeight()));
+        }
+
+        private static int[] sample(int start, int end, float from, float to, int size) {
+            int[] samples = new int[end - start];
+            float scale = size / (to - from);
+            for (int i = 0; i < samples.length; i++) {
+                int sample = (int) ((start + i + .5f - from) * scale);
+                samples[i] = Math.max(0, Math.min(size - 1, sample));
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * Bounds of overlapping layers, which must be blended one after the other
+     */
+    static final class Region {
+
+        int left;
+        int top;
+        int right;
+        int bottom;
+
+        /**
+         * indexes of the layers
+         */
+        final List<Integer> layers = new ArrayList<>();
+
+        Region(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        boolean intersects(Region other) {
+            return left < other.right && other.left < right
+                    && top < other.bottom && other.top < bottom;
+        }
+
+        void union(Region other) {
+            left = Math.min(left, other.left);
+            top = Math.min(top, other.top);
+            right = Math.max(right, other.right);
+            bottom = Math.max(bottom, other.bottom);
+            layers.addAll(other.layers);
+        }
+    }
+
+    /**
+     * Emoji drawn turned on the canvas once the layers are blended
+     */
+    private static final class RotatedEmoji {
+
+        final Bitmap sprite;
+        final EmojiPlacement placement;
+        final int index;
+
+        RotatedEmoji(Bitmap sprite, EmojiPlacement placement, int index) {
+            this.sprite = sprite;
+            this.placement = placement;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Blends the layers of a region over a band of its rows
+     */
+    private static final class BandTask implements Runnable {
+
+        private final Bitmap mBitmap;
+        private final List<Layer> mLayers;
+        private final Region mRegion;
+        private final int mTop;
+        private final int mBottom;
+
+        BandTask(Bitmap bitmap, List<Layer> layers, Region region, int top, int bottom) {
+            mBitmap = bitmap;
+            mLayers = layers;
+            mRegion = region;
+            mTop = top;
+            mBottom = bottom;
+        }
+
+        @Override
+        public void run() {
+            int width = mRegion.right - mRegion.left;
+            int rows = mBottom - mTop;
+            int[] pixels = new int[width * rows];
+
+            // Bands are disjoint, but the bitmap is only accessed by one thread at a time
+            synchronized (mBitmap) {
+                mBitmap.getPixels(pixels, 0, width, mRegion.left, mTop, width, rows);
+            }
+            for (int index : mRegion.layers) {
+                Layer layer = mLayers.get(index);
+                int top = Math.max(layer.top, mTop);
+                int bottom = Math.min(layer.bottom, mBottom);
+                if (top < bottom) {
+                    blend(pixels, (top - mTop) * width + layer.left - mRegion.left, width,
+                            layer.spritePixels, layer.spriteWidth, layer.srcX, layer.srcY,
+                            top - layer.top, bottom - top);
+                }
+            }
+            synchronized (mBitmap) {
+                mBitmap.setPixels(pixels, 0, width, mRegion.left, mTop, width, rows);
+            }
+        }
+    }
+}
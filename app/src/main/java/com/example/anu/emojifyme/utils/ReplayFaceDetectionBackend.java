@@ -0,0 +1,171 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays recorded faces instead of detecting them, so the classification, caching and batching
+ * logic can be tested and benchmarked on a plain JVM, without Play Services or a device.
+ *
+ * Every call to {@link #detect(Bitmap)} or {@link #detectFrame} returns the faces of the next
+ * recorded frame, starting over after the last one. The picture or frame itself is ignored.
+ *
+ * Recordings are stored as text, see {@link #readRecording(Reader)}.
+ */
+public class ReplayFaceDetectionBackend implements FaceDetectionBackend {
+
+    /**
+     * line starting every frame of a recording
+     */
+    static final String FRAME_MARKER = "frame";
+
+    private final List<List<DetectedFace>> mRecording;
+    private final AtomicInteger mCursor = new AtomicInteger();
+    private volatile long mDetectionMillis;
+
+    /**
+     * @param recording The faces of every recorded frame, replayed in order
+     */
+    public ReplayFaceDetectionBackend(List<List<DetectedFace>> recording) {
+        if (recording.isEmpty()) {
+            throw new IllegalArgumentException("The recording has no frame");
+        }
+        mRecording = new ArrayList<>(recording.size());
+        for (List<DetectedFace> faces : recording) {
+            mRecording.add(Collections.unmodifiableList(new ArrayList<>(faces)));
+        }
+    }
+
+    /**
+     * @param detectionMillis How long every detection takes, to simulate a real detector
+     */
+    public void setDetectionMillis(long detectionMillis) {
+        mDetectionMillis = detectionMillis;
+    }
+
+    /**
+     * @return The number of detections replayed so far
+     */
+    public int getDetectionCount() {
+        return mCursor.get();
+    }
+
+    @Override
+    public List<DetectedFace> detect(Bitmap bitmap) {
+        return new ArrayList<>(nextFrame());
+    }
+
+    @Override
+    public void detectFrame(byte[] frame, int width, int height, int rotation, int frameId,
+                            long timestampNanos, List<DetectedFace> faces) {
+        faces.addAll(nextFrame());
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private List<DetectedFace> nextFrame() {
+        long detectionMillis = mDetectionMillis;
+        if (detectionMillis > 0) {
+            try {
+                Thread.sleep(detectionMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mRecording.get((mCursor.getAndIncrement() & Integer.MAX_VALUE) % mRecording.size());
+    }
+
+    /**
+     * Reads a recording. Every frame starts with a "frame" line followed by a line per face:
+     * its id, left, top, width, height, smiling probability, left eye open probability and
+     * right eye open probability, optionally followed by its Euler Z angle and the x and y of its
+     * left and right eyes, separated by whitespace. Empty lines and lines starting with # are
+     * ignored.
+     *
+     * @param reader The recording, not closed
+     * @return The faces of every frame
+     * @throws IOException Thrown if the recording could not be read or is malformed
+     */
+    public static List<List<DetectedFace>> readRecording(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        List<List<DetectedFace>> recording = new ArrayList<>();
+        List<DetectedFace> frame = null;
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.equals(FRAME_MARKER)) {
+                frame = new ArrayList<>();
+                recording.add(frame);
+                continue;
+            }
+            if (frame == null) {
+                throw new IOException("Face before the first frame at line " + lineNumber);
+            }
+            frame.add(parseFace(line, lineNumber));
+        }
+        return recording;
+    }
+
+    private static DetectedFace parseFace(String line, int lineNumber) throws IOException {
+        String[] fields = line.split("\\s+");
+        if (fields.length != 8 && fields.length != 13) {
+            throw new IOException("Expected 8 or 13 fields at line " + lineNumber + " : " + line);
+        }
+        try {
+            // a face recorded without landmarks is upright and has no eyes
+            float[] values = new float[13];
+            for (int i = 9; i < values.length; i++) {
+                values[i] = Float.NaN;
+            }
+            for (int i = 1; i < fields.length; i++) {
+                values[i] = Float.parseFloat(fields[i]);
+            }
+            return new DetectedFace(Integer.parseInt(fields[0]), values[1], values[2], values[3],
+                    values[4], values[5], values[6], values[7], values[8], values[9], values[10],
+                    values[11], values[12]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed face at line " + lineNumber + " : " + line, e);
+        }
+    }
+
+    /**
+     * Writes a recording in the format read by {@link #readRecording(Reader)}, e.g. to record
+     * what a real backend detects.
+     *
+     * @param recording The faces of every frame
+     * @param writer    Receives the recording, not closed
+     * @throws IOException Thrown if the recording could not be written
+     */
+    public static void writeRecording(List<List<DetectedFace>> recording, Writer writer)
+            throws IOException {
+        for (List<DetectedFace> frame : recording) {
+            writer.write(FRAME_MARKER);
+            writer.write('\n');
+            for (DetectedFace face : frame) {
+                writer.write(String.format(Locale.US, "%d %s %s %s %s %s %s %s %s %s %s %s %s\n",
+                        face.getId(), face.getLeft(), face.getTop(), face.getWidth(),
+                        face.getHeight(), face.getSmilingProbability(),
+                        face.getLeftEyeOpenProbability(), face.getRightEyeOpenProbability(),
+                        face.getEulerZ(), face.getLeftEyeX(), face.getLeftEyeY(),
+                        face.getRightEyeX(), face.getRightEyeY()));
+            }
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,481 @@
+package com.example.anu.emojifyme.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder fed a few rows at a time, so an image can be written without ever being
+ * held in memory as a whole.
+ *
+ * Rows are ARGB pixels, as returned by Bitmap.getPixels. They are encoded as YCbCr with 4:2:0
+ * chroma subsampling and the standard quantization and Huffman tables, every time 16 rows have
+ * been buffered. Alpha is ignored.
+ */
+public class StreamingJpegEncoder {
+
+    /**
+     * height of a row of MCUs, the unit rows are encoded in
+     */
+    public static final int MCU_SIZE = 16;
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMINANCE_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56, 14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77, 24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99, 47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final int[] DC_LUMINANCE_BITS = {
+            0x00, 0x01, 0x05, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x00, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0x00
+    };
+
+    private static final int[] DC_LUMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b
+    };
+
+    private static final int[] DC_CHROMINANCE_BITS = {
+            0x00, 0x03, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x00,
+            0x00, 0x00, 0x00, 0x00
+    };
+
+    private static final int[] DC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b
+    };
+
+    private static final int[] AC_LUMINANCE_BITS = {
+            0x00, 0x02, 0x01, 0x03, 0x03, 0x02, 0x04, 0x03, 0x05, 0x05, 0x04, 0x04,
+            0x00, 0x00, 0x01, 0x7d
+    };
+
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06,
+            0x13, 0x51, 0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72,
+            0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+            0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3,
+            0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9,
+            0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4,
+            0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    private static final int[] AC_CHROMINANCE_BITS = {
+            0x00, 0x02, 0x01, 0x02, 0x04, 0x04, 0x03, 0x04, 0x07, 0x05, 0x04, 0x04,
+            0x00, 0x01, 0x02, 0x77
+    };
+
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41,
+            0x51, 0x07, 0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1,
+            0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+            0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a,
+            0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7,
+            0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4,
+            0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    private static final float[] AAN_SCALE_FACTORS = {
+            1.0f, 1.387039845f, 1.306562965f, 1.175875602f,
+            1.0f, 0.785694958f, 0.541196100f, 0.275899379f
+    };
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mQuality;
+
+    private final int[] mLuminanceTable = new int[64];
+    private final int[] mChrominanceTable = new int[64];
+    private final float[] mLuminanceDivisors = new float[64];
+    private final float[] mChrominanceDivisors = new float[64];
+
+    private final HuffmanTable mDcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private final HuffmanTable mAcLuminance = new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private final HuffmanTable mDcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private final HuffmanTable mAcChrominance = new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /**
+     * the MCU row being filled, padded to a multiple of 16 pixels wide
+     */
+    private final int mPaddedWidth;
+    private final int[] mRowBuffer;
+    private int mBufferedRows;
+    private int mRowsWritten;
+
+    private final float[] mBlock = new float[64];
+    private final int[] mCoefficients = new int[64];
+    private int mLastDcY;
+    private int mLastDcCb;
+    private int mLastDcCr;
+
+    private int mBitBuffer;
+    private int mBitCount;
+    private boolean mStarted;
+
+    /**
+     * @param out     The stream the JPEG is written to, buffering it is up to the caller
+     * @param width   The width of the image
+     * @param height  The height of the image
+     * @param quality The quality, from 1 to 100
+     */
+    public StreamingJpegEncoder(OutputStream out, int width, int height, int quality) {
+        if (width <= 0 || height <= 0 || width > 65535 || height > 65535) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        mQuality = Math.max(1, Math.min(100, quality));
+        mPaddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+        mRowBuffer = new int[mPaddedWidth * MCU_SIZE];
+
+        scaleQuantizationTable(LUMINANCE_QUANTIZATION, mLuminanceTable, mLuminanceDivisors);
+        scaleQuantizationTable(CHROMINANCE_QUANTIZATION, mChrominanceTable, mChrominanceDivisors);
+    }
+
+    /**
+     * Encodes the next rows of the image.
+     *
+     * @param pixels   The ARGB pixels
+     * @param offset   The index of the first pixel of the first row
+     * @param stride   The number of pixels between the starts of two rows
+     * @param rowCount The number of rows
+     * @throws IOException Thrown if the stream could not be written to
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rowCount) throws IOException {
+        if (mRowsWritten + mBufferedRows + rowCount > mHeight) {
+            throw new IllegalStateException("More rows than the height of the image");
+        }
+        if (!mStarted) {
+            writeHeaders();
+            mStarted = true;
+        }
+
+        for (int row = 0; row < rowCount; row++) {
+            int rowStart = mBufferedRows * mPaddedWidth;
+            System.arraycopy(pixels, offset + row * stride, mRowBuffer, rowStart, mWidth);
+
+            // Repeat the last pixel to fill the padding
+            int lastPixel = mRowBuffer[rowStart + mWidth - 1];
+            for (int x = mWidth; x < mPaddedWidth; x++) {
+                mRowBuffer[rowStart + x] = lastPixel;
+            }
+
+            if (++mBufferedRows == MCU_SIZE) {
+                encodeBufferedRows();
+            }
+        }
+    }
+
+    /**
+     * Encodes the remaining rows and ends the image. The stream is flushed but not closed.
+     *
+     * @throws IOException Thrown if the stream could not be written to
+     */
+    public void finish() throws IOException {
+        if (mRowsWritten + mBufferedRows != mHeight) {
+            throw new IllegalStateException("Only " + (mRowsWritten + mBufferedRows)
+                    + " of " + mHeight + " rows were written");
+        }
+        if (mBufferedRows > 0) {
+            // Repeat the last row to fill the last MCU row
+            int lastRow = (mBufferedRows - 1) * mPaddedWidth;
+            for (int row = mBufferedRows; row < MCU_SIZE; row++) {
+                System.arraycopy(mRowBuffer, lastRow, mRowBuffer, row * mPaddedWidth, mPaddedWidth);
+            }
+            encodeBufferedRows();
+        }
+
+        // Pad the last byte with ones
+        if (mBitCount > 0) {
+            int padding = 8 - mBitCount;
+            writeBits((1 << padding) - 1, padding);
+        }
+        writeMarker(0xD9);
+        mOut.flush();
+    }
+
+    private void scaleQuantizationTable(int[] base, int[] table, float[] divisors) {
+        int scale = mQuality < 50 ? 5000 / mQuality : 200 - mQuality * 2;
+        for (int i = 0; i < 64; i++) {
+            table[i] = Math.max(1, Math.min(255, (base[i] * scale + 50) / 100));
+            int row = i / 8;
+            int column = i % 8;
+            divisors[i] = 1f / (table[i] * AAN_SCALE_FACTORS[row] * AAN_SCALE_FACTORS[column] * 8f);
+        }
+    }
+
+    private void encodeBufferedRows() throws IOException {
+        for (int x = 0; x < mPaddedWidth; x += MCU_SIZE) {
+            // Four luminance blocks, then one subsampled block for each chrominance
+            encodeLuminanceBlock(x, 0);
+            encodeLuminanceBlock(x + 8, 0);
+            encodeLuminanceBlock(x, 8);
+            encodeLuminanceBlock(x + 8, 8);
+
+            loadChrominanceBlock(x, true);
+            mLastDcCb = encodeBlock(mChrominanceDivisors, mLastDcCb, mDcChrominance, mAcChrominance);
+            loadChrominanceBlock(x, false);
+            mLastDcCr = encodeBlock(mChrominanceDivisors, mLastDcCr, mDcChrominance, mAcChrominance);
+        }
+        mRowsWritten += Math.min(mBufferedRows, mHeight - mRowsWritten);
+        mBufferedRows = 0;
+    }
+
+    private void encodeLuminanceBlock(int left, int top) throws IOException {
+        float[] block = mBlock;
+        for (int y = 0; y < 8; y++) {
+            int index = (top + y) * mPaddedWidth + left;
+            for (int x = 0; x < 8; x++) {
+                int pixel = mRowBuffer[index + x];
+                block[y * 8 + x] = 0.299f * ((pixel >> 16) & 0xFF) + 0.587f * ((pixel >> 8) & 0xFF)
+                        + 0.114f * (pixel & 0xFF) - 128f;
+            }
+        }
+        mLastDcY = encodeBlock(mLuminanceDivisors, mLastDcY, mDcLuminance, mAcLuminance);
+    }
+
+    /**
+     * averages each 2x2 square of the 16x16 MCU into one chrominance sample
+     */
+    private void loadChrominanceBlock(int left, boolean blue) {
+        float[] block = mBlock;
+        for (int y = 0; y < 8; y++) {
+            int index = y * 2 * mPaddedWidth + left;
+            for (int x = 0; x < 8; x++) {
+                int i = index + x * 2;
+                int p0 = mRowBuffer[i];
+                int p1 = mRowBuffer[i + 1];
+                int p2 = mRowBuffer[i + mPaddedWidth];
+                int p3 = mRowBuffer[i + mPaddedWidth + 1];
+                float r = (((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF)) * 0.25f;
+                float g = (((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF)) * 0.25f;
+                float b = ((p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF)) * 0.25f;
+                block[y * 8 + x] = blue
+                        ? -0.168736f * r - 0.331264f * g + 0.5f * b
+                        : 0.5f * r - 0.418688f * g - 0.081312f * b;
+            }
+        }
+    }
+
+    /**
+     * transforms, quantizes and writes the block, returning its DC coefficient
+     */
+    private int encodeBlock(float[] divisors, int lastDc, HuffmanTable dcTable, HuffmanTable acTable)
+            throws IOException {
+        forwardDct(mBlock);
+        for (int i = 0; i < 64; i++) {
+            mCoefficients[i] = Math.round(mBlock[i] * divisors[i]);
+        }
+
+        int dc = mCoefficients[0];
+        int diff = dc - lastDc;
+        int size = bitLength(diff);
+        writeBits(dcTable.mCodes[size], dcTable.mLengths[size]);
+        if (size > 0) {
+            writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int coefficient = mCoefficients[ZIGZAG[k]];
+            if (coefficient == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acTable.mCodes[0xF0], acTable.mLengths[0xF0]);
+                run -= 16;
+            }
+            size = bitLength(coefficient);
+            int symbol = (run << 4) | size;
+            writeBits(acTable.mCodes[symbol], acTable.mLengths[symbol]);
+            writeBits(coefficient < 0 ? coefficient - 1 : coefficient, size);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acTable.mCodes[0x00], acTable.mLengths[0x00]);
+        }
+        return dc;
+    }
+
+    /**
+     * AAN floating point forward DCT, the output is scaled as expected by the divisors
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // Rows on the first pass, columns on the second
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0; line < 8; line++) {
+                int i = line * next;
+                float tmp0 = data[i] + data[i + 7 * step];
+                float tmp7 = data[i] - data[i + 7 * step];
+                float tmp1 = data[i + step] + data[i + 6 * step];
+                float tmp6 = data[i + step] - data[i + 6 * step];
+                float tmp2 = data[i + 2 * step] + data[i + 5 * step];
+                float tmp5 = data[i + 2 * step] - data[i + 5 * step];
+                float tmp3 = data[i + 3 * step] + data[i + 4 * step];
+                float tmp4 = data[i + 3 * step] - data[i + 4 * step];
+
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+
+                data[i] = tmp10 + tmp11;
+                data[i + 4 * step] = tmp10 - tmp11;
+
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[i + 2 * step] = tmp13 + z1;
+                data[i + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+
+                data[i + 5 * step] = z13 + z2;
+                data[i + 3 * step] = z13 - z2;
+                data[i + step] = z11 + z4;
+                data[i + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private void writeBits(int value, int length) throws IOException {
+        mBitBuffer = (mBitBuffer << length) | (value & ((1 << length) - 1));
+        mBitCount += length;
+        while (mBitCount >= 8) {
+            int b = (mBitBuffer >> (mBitCount - 8)) & 0xFF;
+            mOut.write(b);
+            // A 0xFF byte in the entropy coded data is followed by a 0 so it is not a marker
+            if (b == 0xFF) {
+                mOut.write(0);
+            }
+            mBitCount -= 8;
+        }
+    }
+
+    private void writeHeaders() throws IOException {
+        writeMarker(0xD8);
+
+        // JFIF
+        writeMarker(0xE0);
+        writeShort(16);
+        mOut.write(new byte[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+
+        writeMarker(0xDB);
+        writeShort(2 + 2 * 65);
+        mOut.write(0);
+        for (int k = 0; k < 64; k++) {
+            mOut.write(mLuminanceTable[ZIGZAG[k]]);
+        }
+        mOut.write(1);
+        for (int k = 0; k < 64; k++) {
+            mOut.write(mChrominanceTable[ZIGZAG[k]]);
+        }
+
+        writeMarker(0xC0);
+        writeShort(17);
+        mOut.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        mOut.write(3);
+        // Luminance sampled 2x2, both chrominances 1x1
+        mOut.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+
+        writeMarker(0xC4);
+        writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        writeMarker(0xDA);
+        writeShort(12);
+        mOut.write(new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0});
+    }
+
+    private void writeHuffmanTable(int tableClassAndId, int[] bits, int[] values) throws IOException {
+        mOut.write(tableClassAndId);
+        for (int bit : bits) {
+            mOut.write(bit);
+        }
+        for (int value : values) {
+            mOut.write(value);
+        }
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        mOut.write(0xFF);
+        mOut.write(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOut.write((value >> 8) & 0xFF);
+        mOut.write(value & 0xFF);
+    }
+
+    /**
+     * code and length of every symbol of a standard Huffman table
+     */
+    private static final class HuffmanTable {
+
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++) {
+                    mCodes[values[index]] = code;
+                    mLengths[values[index]] = length;
+                    code++;
+                    index++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+}
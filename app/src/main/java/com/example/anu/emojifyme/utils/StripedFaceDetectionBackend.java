@@ -0,0 +1,317 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Detects the faces of crowd pictures on several cores, by splitting the picture into
+ * overlapping tiles that are detected concurrently.
+ *
+ * Every tile is copied into a pooled bitmap and handed to the wrapped backend, which must be
+ * safe to call from several threads at once. The {@link VisionFaceDetectionBackend} is: every
+ * call borrows its own detector from the {@link FaceDetectorPool}. Adjacent tiles overlap, so a
+ * face crossing the seam between them is wholly inside one of them as long as it is smaller
+ * than the overlap. The faces found twice in an overlap are merged by suppressing the smaller
+ * of two faces whose intersection over union is above {@link #MAX_OVERLAP}.
+ *
+ * Meant for pictures with many small faces: a face larger than the overlap may be split into
+ * two partial detections. Enable it by wrapping the current backend:
+ *
+ * Emojifier.setDetectionBackend(new StripedFaceDetectionBackend(
+ *         Emojifier.getDetectionBackend(context), 2, 2, 4));
+ *
+ * Preview frames are detected by the wrapped backend as they are, the tracking needs a single
+ * detector.
+ */
+public class StripedFaceDetectionBackend implements FaceDetectionBackend {
+
+    /**
+     * overlap between adjacent tiles, relative to the smaller edge of a tile
+     */
+    static final float OVERLAP_FRACTION = 0.25f;
+
+    /**
+     * intersection over union above which two faces are taken for the same face
+     */
+    static final float MAX_OVERLAP = 0.3f;
+
+    /**
+     * tiles are not made smaller than this, smaller pictures are cut into fewer tiles
+     */
+    static final int MIN_TILE_SIZE = 160;
+
+    private final FaceDetectionBackend mDelegate;
+    private final int mRows;
+    private final int mColumns;
+    private final int mParallelism;
+
+    /**
+     * workers detecting the tiles, the calling thread detects tiles too
+     */
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param delegate    The backend detecting the faces of every tile
+     * @param rows        The number of horizontal stripes the picture is cut into
+     * @param columns     The number of vertical stripes the picture is cut into, 1 for
+     *                    horizontal stripes only
+     * @param parallelism The number of tiles detected at once, at least 1
+     */
+    public StripedFaceDetectionBackend(FaceDetectionBackend delegate, int rows, int columns,
+                                       int parallelism) {
+        if (rows < 1 || columns < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid layout " + rows + "x" + columns
+                    + " with parallelism " + parallelism);
+        }
+        mDelegate = delegate;
+        mRows = rows;
+        mColumns = columns;
+        mParallelism = parallelism;
+
+        int workerCount = Math.max(1, parallelism - 1);
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "StripedFaceDetection");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return The number of tiles detected at once
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    @Override
+    public List<DetectedFace> detect(Bitmap bitmap) {
+        int[] tiles = getTiles(bitmap.getWidth(), bitmap.getHeight(), mRows, mColumns);
+        int tileCount = tiles.length / 4;
+        if (tileCount == 1) {
+            return mDelegate.detect(bitmap);
+        }
+
+        /**
+         * detect the tiles, as many at once as the parallelism allows
+         */
+        List<List<TileTask>> batches = new ArrayList<>(mParallelism);
+        for (int i = 0; i < Math.min(mParallelism, tileCount); i++) {
+            batches.add(new ArrayList<TileTask>());
+        }
+        for (int i = 0; i < tileCount; i++) {
+            Rect tile = new Rect(tiles[4 * i], tiles[4 * i + 1], tiles[4 * i + 2],
+                    tiles[4 * i + 3]);
+            batches.get(i % batches.size()).add(new TileTask(mDelegate, bitmap, tile));
+        }
+        List<DetectedFace> faces = runAll(batches);
+
+        /**
+         * merge the faces found in two overlapping tiles
+         */
+        List<DetectedFace> merged = suppressDuplicates(faces, MAX_OVERLAP);
+        Timber.d("%d faces in %d tiles, %d after merging the overlaps", faces.size(),
+                tileCount, merged.size());
+        return merged;
+    }
+
+    @Override
+    public void detectFrame(byte[] frame, int width, int height, int rotation, int frameId,
+                            long timestampNanos, List<DetectedFace> faces) {
+        mDelegate.detectFrame(frame, width, height, rotation, frameId, timestampNanos, faces);
+    }
+
+    @Override
+    public void release() {
+        mDelegate.release();
+    }
+
+    private List<DetectedFace> runAll(List<List<TileTask>> batches) {
+        List<Future<List<DetectedFace>>> futures = new ArrayList<>(batches.size() - 1);
+        for (int i = 0; i < batches.size() - 1; i++) {
+            futures.add(mExecutor.submit(new BatchTask(batches.get(i))));
+        }
+        List<DetectedFace> faces = new BatchTask(batches.get(batches.size() - 1)).call();
+
+        boolean interrupted = false;
+        try {
+            for (Future<List<DetectedFace>> future : futures) {
+                while (true) {
+                    try {
+                        faces.addAll(future.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        // the tiles use pooled bitmaps, so they are waited for anyway
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Could not detect the faces of a tile",
+                                e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return faces;
+    }
+
+    /**
+     * Cuts a picture into a grid of tiles overlapping by {@link #OVERLAP_FRACTION} of a tile.
+     * A picture too small for the grid is cut into fewer, larger tiles.
+     *
+     * @param width   The width of the picture
+     * @param height  The height of the picture
+     * @param rows    The number of rows of the grid
+     * @param columns The number of columns of the grid
+     * @return The left, top, right and bottom edges of every tile, row by row
+     */
+    static int[] getTiles(int width, int height, int rows, int columns) {
+        rows = Math.max(1, Math.min(rows, height / MIN_TILE_SIZE));
+        columns = Math.max(1, Math.min(columns, width / MIN_TILE_SIZE));
+        int overlap = Math.round(OVERLAP_FRACTION
+                * Math.min((float) width / columns, (float) height / rows));
+
+        int[] tiles = new int[4 * rows * columns];
+        int index = 0;
+        for (int row = 0; row < rows; row++) {
+            int top = Math.max(0, row * height / rows - overlap / 2);
+            int bottom = Math.min(height, (row + 1) * height / rows + (overlap + 1) / 2);
+            for (int column = 0; column < columns; column++) {
+                int left = Math.max(0, column * width / columns - overlap / 2);
+                int right = Math.min(width, (column + 1) * width / columns + (overlap + 1) / 2);
+                tiles[index++] = left;
+                tiles[index++] = top;
+                tiles[index++] = right;
+                tiles[index++] = bottom;
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Merges the faces found more than once. Faces are kept from the largest down, since a face
+     * cut by the edge of a tile is found smaller than it is, and a face is dropped if it overlaps
+     * a kept face by more than maxOverlap. The kept faces are numbered again from 0.
+     *
+     * @param faces      The faces of every tile, in the coordinates of the picture
+     * @param maxOverlap The intersection over union above which two faces are the same face
+     * @return The merged faces, from the largest down
+     */
+    static List<DetectedFace> suppressDuplicates(List<DetectedFace> faces, float maxOverlap) {
+        List<DetectedFace> sorted = new ArrayList<>(faces);
+        Collections.sort(sorted, new Comparator<DetectedFace>() {
+            @Override
+            public int compare(DetectedFace a, DetectedFace b) {
+                return Float.compare(b.getWidth() * b.getHeight(), a.getWidth() * a.getHeight());
+            }
+        });
+
+        List<DetectedFace> kept = new ArrayList<>(sorted.size());
+        for (DetectedFace face : sorted) {
+            boolean duplicate = false;
+            for (DetectedFace keptFace : kept) {
+                if (getOverlap(face, keptFace) > maxOverlap) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (!duplicate) {
+                kept.add(face);
+            }
+        }
+
+        for (int i = 0; i < kept.size(); i++) {
+            kept.set(i, kept.get(i).withId(i));
+        }
+        return kept;
+    }
+
+    /**
+     * @return The intersection over union of the boxes of the two faces
+     */
+    static float getOverlap(DetectedFace a, DetectedFace b) {
+        float intersectionWidth = Math.min(a.getLeft() + a.getWidth(), b.getLeft() + b.getWidth())
+                - Math.max(a.getLeft(), b.getLeft());
+        float intersectionHeight = Math.min(a.getTop() + a.getHeight(), b.getTop() + b.getHeight())
+                - Math.max(a.getTop(), b.getTop());
+        if (intersectionWidth <= 0 || intersectionHeight <= 0) {
+            return 0;
+        }
+        float intersection = intersectionWidth * intersectionHeight;
+        return intersection
+                / (a.getWidth() * a.getHeight() + b.getWidth() * b.getHeight() - intersection);
+    }
+
+    /**
+     * Detects the tiles given to one thread, one after the other
+     */
+    private static final class BatchTask implements Callable<List<DetectedFace>> {
+
+        private final List<TileTask> mTiles;
+
+        BatchTask(List<TileTask> tiles) {
+            mTiles = tiles;
+        }
+
+        @Override
+        public List<DetectedFace> call() {
+            List<DetectedFace> faces = new ArrayList<>();
+            for (TileTask tile : mTiles) {
+                tile.detect(faces);
+            }
+            return faces;
+        }
+    }
+
+    private static final class TileTask {
+
+        private final FaceDetectionBackend mBackend;
+        private final Bitmap mBitmap;
+        private final Rect mTile;
+
+        TileTask(FaceDetectionBackend backend, Bitmap bitmap, Rect tile) {
+            mBackend = backend;
+            mBitmap = bitmap;
+            mTile = tile;
+        }
+
+        /**
+         * copies the tile out of the picture, detects its faces and adds them to faces, moved
+         * back to the coordinates of the picture
+         */
+        void detect(List<DetectedFace> faces) {
+            BitmapPool pool = BitmapPool.getInstance();
+            Bitmap tileBitmap = pool.get(mTile.width(), mTile.height(), Bitmap.Config.ARGB_8888);
+            try {
+                new Canvas(tileBitmap).drawBitmap(mBitmap, mTile,
+                        new Rect(0, 0, mTile.width(), mTile.height()), null);
+                for (DetectedFace face : mBackend.detect(tileBitmap)) {
+                    faces.add(face.offset(mTile.left, mTile.top));
+                }
+            } finally {
+                pool.put(tileBitmap);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.support.media.ExifInterface;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Emojifies images too large to be held in memory as a single bitmap, such as panoramas and
+ * 48MP photos, at their full resolution.
+ *
+ * Faces are detected on a small overview of the image. The image is then decoded one band of
+ * rows at a time with a BitmapRegionDecoder, emojis are drawn only on the bands they overlap,
+ * and each band is handed to a {@link StreamingJpegEncoder}. Peak memory is bounded by the size
+ * of a band rather than the size of the image. An image fitting in memory is decoded as a whole
+ * and encoded by the much faster Bitmap.compress instead. A JPEG without faces is copied
+ * unchanged, and the EXIF data of the others is carried over.
+ *
+ * {@link #render(Context, EmojifiedScene, OutputStream, int)} does the same for faces detected
+ * beforehand, such as those of a displayed photo being saved.
+ */
+public class TiledEmojifier {
+
+    /**
+     * height of the bands the image is decoded in, a multiple of the JPEG MCU size
+     */
+    public static final int DEFAULT_BAND_HEIGHT = 16 * StreamingJpegEncoder.MCU_SIZE;
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * a photo is decoded as a whole if it takes at most 1 / FREE_MEMORY_FRACTION of the free heap,
+     * leaving room for the emojis, the sprites and the rest of the app
+     */
+    private static final int FREE_MEMORY_FRACTION = 2;
+
+    /**
+     * Emojifies the image into a JPEG written to the stream.
+     *
+     * @param context   called context
+     * @param imagePath The path of the image
+     * @param out       The stream the emojified JPEG is written to, buffering it is up to the caller
+     * @param quality   The JPEG quality, from 1 to 100
+     * @return The number of faces detected
+     * @throws IOException Thrown if the image could not be read or the stream written
+     */
+    public static int emojify(Context context, String imagePath, OutputStream out, int quality)
+            throws IOException {
+
+        // Detect the faces on an overview of the image
+        Bitmap overview = BitmapUtils.resamplePic(imagePath,
+                Emojifier.DEFAULT_DETECTION_SIZE, Emojifier.DEFAULT_DETECTION_SIZE);
+        if (overview == null) {
+            throw new IOException("Could not decode " + imagePath);
+        }
+        List<DetectedFace> faces = Emojifier.detectFaces(context, overview);
+        int overviewWidth = overview.getWidth();
+        BitmapPool.getInstance().put(overview);
+
+        if (faces.size() == 0 && isJpeg(imagePath)) {
+            copyFile(imagePath, out);
+            return 0;
+        }
+
+        // The overview and the bands are read as the image is stored, whatever its orientation
+        render(context, Emojifier.describeScene(imagePath, ExifInterface.ORIENTATION_NORMAL,
+                faces, overviewWidth), out, quality);
+        return faces.size();
+    }
+
+    /**
+     * Emojifies the photo of a scene at full resolution into a JPEG written to the stream, with
+     * the EXIF data of the photo.
+     *
+     * A photo fitting in memory is decoded as a whole and encoded by Bitmap.compress. A larger
+     * one stored upright is encoded band by band. A larger photo stored sideways or flipped can
+     * not be read upright one band at a time, it is decoded upright as a whole at the largest
+     * power of two fraction of its size fitting in memory instead.
+     *
+     * @param context called context
+     * @param scene   The photo and its faces
+     * @param out     The stream the emojified JPEG is written to, buffering it is up to the caller
+     * @param quality The JPEG quality, from 1 to 100
+     * @throws IOException Thrown if the photo could not be read or the stream written
+     */
+    public static void render(Context context, EmojifiedScene scene, OutputStream out,
+                              int quality) throws IOException {
+        String sourcePath = scene.getSourcePath();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(sourcePath, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Could not decode " + sourcePath);
+        }
+
+        // Pixels turned upright must not be turned again by the orientation of the photo
+        boolean turned = !scene.isStoredUpright();
+        byte[] exif = JpegExif.readSegment(sourcePath, turned);
+        if (exif != null) {
+            out = JpegExif.insertSegment(out, exif);
+        }
+
+        long start = System.nanoTime();
+        int sampleSize = 1;
+        while (!fitsInMemory(bounds.outWidth, bounds.outHeight, sampleSize, turned)) {
+            if (!turned) {
+                renderBands(context, scene, out, quality);
+                Timber.d("Rendered %dx%d in bands in %.1f ms", bounds.outWidth,
+                        bounds.outHeight, (System.nanoTime() - start) / 1e6);
+                return;
+            }
+            sampleSize *= 2;
+        }
+        if (sampleSize > 1) {
+            Timber.w("Saving a %dx%d photo stored sideways at 1/%d of its size to fit in memory",
+                    bounds.outWidth, bounds.outHeight, sampleSize);
+        }
+        renderWhole(context, scene, out, quality, sampleSize);
+        Timber.d("Rendered %dx%d as a whole in %.1f ms", bounds.outWidth, bounds.outHeight,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Decodes the photo of a scene upright as a whole, subsampled by the given power of two,
+     * and encodes it with Bitmap.compress.
+     */
+    static void renderWhole(Context context, EmojifiedScene scene, OutputStream out,
+                            int quality, int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        Bitmap bitmap = BitmapFactory.decodeFile(scene.getSourcePath(), options);
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + scene.getSourcePath());
+        }
+        bitmap = BitmapUtils.applyExifOrientation(bitmap, scene.getOrientation());
+        bitmap = Emojifier.overlayEmojis(context, bitmap, scene.getFaces(), scene.getEmojis(),
+                scene.getFaceScale(bitmap.getWidth()));
+
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("Could not encode " + scene.getSourcePath());
+            }
+            out.flush();
+        } finally {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    /**
+     * Decodes the photo of a scene stored upright one band at a time, and encodes the bands with
+     * a {@link StreamingJpegEncoder}.
+     */
+    static void renderBands(Context context, EmojifiedScene scene, OutputStream out,
+                            int quality) throws IOException {
+        List<DetectedFace> faces = scene.getFaces();
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(scene.getSourcePath(), false);
+        try {
+            int width = decoder.getWidth();
+            int height = decoder.getHeight();
+            float faceScale = scene.getFaceScale(width);
+
+            // Pick the sprite of every face and where it goes in the full resolution image
+            Emojifier.Emoji[] emojis = scene.getEmojis();
+            EmojiSpriteCache spriteCache = EmojiSpriteCache.getInstance(context);
+            Bitmap[] sprites = new Bitmap[faces.size()];
+            for (int i = 0; i < faces.size(); i++) {
+                sprites[i] = spriteCache.getSprite(emojis[i],
+                        EmojiCompositor.getEmojiWidth(faces.get(i).getWidth() * faceScale));
+            }
+            EmojiPlacement placement = EmojiPlacement.place(faces, faceScale, sprites);
+
+            encodeBands(decoder, width, height, sprites, placement, out, quality);
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * whether the photo decoded as ARGB_8888 takes at most a fraction of the free heap, twice
+     * over if it has to be turned upright into a second bitmap
+     */
+    private static boolean fitsInMemory(int width, int height, int sampleSize, boolean turned) {
+        long byteCount = 4L * divideRoundingUp(width, sampleSize)
+                * divideRoundingUp(height, sampleSize) * (turned ? 2 : 1);
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return byteCount <= free / FREE_MEMORY_FRACTION;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static void encodeBands(BitmapRegionDecoder decoder, int width, int height,
+                                    Bitmap[] sprites, EmojiPlacement placement,
+                                    OutputStream out, int quality) throws IOException {
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, quality);
+        int bandHeight = Math.min(DEFAULT_BAND_HEIGHT, height);
+        int[] pixels = new int[width * bandHeight];
+        Rect region = new Rect();
+        float[] spriteBounds = new float[4];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap band = null;
+        for (int top = 0; top < height; top += bandHeight) {
+            int rows = Math.min(bandHeight, height - top);
+            region.set(0, top, width, top + rows);
+
+            // Decode every full band into the same bitmap, the first one into a pooled bitmap
+            if (band != null && rows != bandHeight) {
+                pool.put(band);
+                band = null;
+            }
+            options.inBitmap = band != null ? band
+                    : pool.getRegionReusable(width, rows, options.inPreferredConfig);
+            band = decoder.decodeRegion(region, options);
+            if (band == null) {
+                throw new IOException("Could not decode rows " + top + " to " + (top + rows));
+            }
+
+            EmojiCompositor compositor = null;
+            for (int i = 0; i < sprites.length; i++) {
+                if (sprites[i] == null) {
+                    continue;
+                }
+                placement.getBounds(i, spriteBounds);
+                if (spriteBounds[3] > top && spriteBounds[1] < top + rows) {
+                    if (compositor == null) {
+                        compositor = new EmojiCompositor(band, 0, top);
+                    }
+                    compositor.drawEmoji(sprites[i], placement, i);
+                }
+            }
+            if (compositor != null) {
+                band = compositor.getResultBitmap();
+            }
+
+            band.getPixels(pixels, 0, width, 0, 0, width, rows);
+            encoder.writeRows(pixels, 0, width, rows);
+        }
+        encoder.finish();
+        pool.put(band);
+        Timber.d("Encoded " + width + "x" + height + " in bands of " + bandHeight + " rows");
+    }
+
+    private static boolean isJpeg(String imagePath) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, options);
+        return "image/jpeg".equals(options.outMimeType);
+    }
+
+    private static void copyFile(String imagePath, OutputStream out) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(imagePath), COPY_BUFFER_SIZE);
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.PointF;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects faces with the Mobile Vision face detectors of the {@link FaceDetectorPool}.
+ *
+ * Pictures are detected by a detector finding classifications and landmarks, borrowed from the
+ * pool for each picture.
+ * Preview frames are detected by a tracking detector kept until {@link #release()}, so a face
+ * keeps its id from one frame to the next. The pool releases it then rather than handing its
+ * tracked faces to the next stream.
+ */
+public class VisionFaceDetectionBackend implements FaceDetectionBackend {
+
+    private final FaceDetectorPool mPool;
+    private FaceDetectorPool.PooledDetector mTrackingDetector;
+
+    public VisionFaceDetectionBackend(Context context) {
+        mPool = FaceDetectorPool.getInstance(context);
+    }
+
+    @Override
+    public List<DetectedFace> detect(Bitmap bitmap) {
+        /**
+         * get a warm face detector with tracking disabled, classifications and landmarks enabled
+         */
+        FaceDetectorPool.PooledDetector faceDetector =
+                mPool.acquire(FaceDetectorPool.Config.CLASSIFICATION);
+
+        /**
+         * build frame
+         */
+        Frame frame = new Frame.Builder().setBitmap(bitmap).build();
+
+        /**
+         * detect faces, then give the detector back to the pool
+         */
+        SparseArray<Face> faceSparseArray;
+        try {
+            faceSparseArray = faceDetector.detect(frame);
+        } finally {
+            faceDetector.recycle();
+        }
+
+        List<DetectedFace> faces = new ArrayList<>(faceSparseArray.size());
+        addFaces(faceSparseArray, faces);
+        return faces;
+    }
+
+    @Override
+    public void detectFrame(byte[] frame, int width, int height, int rotation, int frameId,
+                            long timestampNanos, List<DetectedFace> faces) {
+        if (mTrackingDetector == null) {
+            mTrackingDetector = mPool.acquire(FaceDetectorPool.Config.TRACKING);
+        }
+
+        Frame visionFrame = new Frame.Builder()
+                .setImageData(ByteBuffer.wrap(frame), width, height, ImageFormat.NV21)
+                .setRotation(rotation)
+                .setId(frameId)
+                .setTimestampMillis(TimeUnit.NANOSECONDS.toMillis(timestampNanos))
+                .build();
+        addFaces(mTrackingDetector.detect(visionFrame), faces);
+    }
+
+    @Override
+    public void release() {
+        if (mTrackingDetector != null) {
+            mTrackingDetector.recycle();
+            mTrackingDetector = null;
+        }
+    }
+
+    private static void addFaces(SparseArray<Face> faceSparseArray, List<DetectedFace> faces) {
+        for (int i = 0; i < faceSparseArray.size(); i++) {
+            Face face = faceSparseArray.valueAt(i);
+            PointF position = face.getPosition();
+            PointF leftEye = null;
+            PointF rightEye = null;
+            for (Landmark landmark : face.getLandmarks()) {
+                if (landmark.getType() == Landmark.LEFT_EYE) {
+                    leftEye = landmark.getPosition();
+                } else if (landmark.getType() == Landmark.RIGHT_EYE) {
+                    rightEye = landmark.getPosition();
+                }
+            }
+            faces.add(new DetectedFace(face.getId(), position.x, position.y, face.getWidth(),
+                    face.getHeight(), face.getIsSmilingProbability(),
+                    face.getIsLeftEyeOpenProbability(), face.getIsRightEyeOpenProbability(),
+                    face.getEulerZ(), leftEye != null ? leftEye.x : Float.NaN,
+                    leftEye != null ? leftEye.y : Float.NaN,
+                    rightEye != null ? rightEye.x : Float.NaN,
+                    rightEye != null ? rightEye.y : Float.NaN));
+        }
+    }
+}
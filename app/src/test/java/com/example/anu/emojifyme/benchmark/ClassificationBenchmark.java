@@ -0,0 +1,35 @@
+package com.example.anu.emojifyme.benchmark;
+
+import com.example.anu.emojifyme.utils.EmojifierBenchmarkAccess;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Picks the emoji of every face of a picture, as Emojifier.classifyFaces does.
+ */
+@State(Scope.Thread)
+public class ClassificationBenchmark {
+
+    @Param({"1", "5", "20", "100"})
+    public int faceCount;
+
+    private float[] mProbabilities;
+
+    @Setup
+    public void setUp() {
+        mProbabilities = Faces.probabilities(faceCount, 42);
+    }
+
+    @Benchmark
+    public void whichEmoji(Blackhole blackhole) {
+        for (int i = 0; i < faceCount; i++) {
+            blackhole.consume(EmojifierBenchmarkAccess.whichEmoji(mProbabilities[i * 3],
+                    mProbabilities[i * 3 + 1], mProbabilities[i * 3 + 2]));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.anu.emojifyme.benchmark;
+
+import com.example.anu.emojifyme.utils.EmojiCompositor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Draws an emoji over every face of a picture the way EmojiCompositor does: one mutable frame,
+ * the emoji scaled into its bounds while drawing.
+ *
+ * Every invocation draws over the same preallocated frame, so the allocation rate is the one of
+ * compositing alone. Drawing again over emojis already drawn costs the same as over the photo.
+ */
+@State(Scope.Thread)
+public class CompositingBenchmark {
+
+    private static final int SPRITE_SIZE = 256;
+
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    @Param({"1", "5", "20", "100"})
+    public int faceCount;
+
+    private Raster mFrame;
+    private Raster mSprite;
+    private float[] mFaces;
+    private final float[] mBounds = new float[4];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = Faces.pictureSize(megapixels);
+        mFrame = Raster.opaque(size[0], size[1], 42);
+        mSprite = Raster.sprite(SPRITE_SIZE);
+        mFaces = Faces.grid(faceCount, size[0], size[1]);
+    }
+
+    @Benchmark
+    public Raster composite() {
+        for (int i = 0; i < faceCount; i++) {
+            EmojiCompositor.getEmojiBounds(mSprite.width, mSprite.height, mFaces[i * 4],
+                    mFaces[i * 4 + 1], mFaces[i * 4 + 2], mFaces[i * 4 + 3], mBounds);
+            mFrame.drawScaled(mSprite, mBounds);
+        }
+        return mFrame;
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.anu.emojifyme.benchmark;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmarks of the emojify hot path, reporting throughput, p99 latency and allocation
+ * rate. They are skipped by a plain test run, run them with:
+ *
+ * ./gradlew testDebugUnitTest -Pbenchmark --tests '*EmojifyBenchmarks'
+ *
+ * -Pbenchmark=ClassificationBenchmark runs only the benchmarks matching the pattern.
+ *
+ * The benchmarks run unforked inside the Gradle test worker, sharing its JVM, heap and JIT
+ * profile, so the numbers are smoke figures to compare runs on the same machine rather than
+ * absolute measurements.
+ */
+public class EmojifyBenchmarks {
+
+    @Test
+    public void run() throws Exception {
+        String include = System.getProperty("benchmark");
+        Assume.assumeTrue("Benchmarks only run with -Pbenchmark", include != null);
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(getClass().getPackage().getName() + ".*"
+                        + (include.isEmpty() || include.equals("true") ? "" : include))
+                .mode(Mode.Throughput)
+                .mode(Mode.SampleTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                // The Gradle test worker loads classes through its own class loader, which a
+                // forked JVM would not see
+                .forks(0)
+                .addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.anu.emojifyme.benchmark;
+
+import java.util.Random;
+
+/**
+ * Deterministic face layouts and classification probabilities for the benchmarks.
+ */
+final class Faces {
+
+    private Faces() {
+    }
+
+    /**
+     * Lays the faces out on a grid covering the picture, like a group photo.
+     *
+     * @return left, top, width and height of each face, one face after the other
+     */
+    static float[] grid(int faceCount, int width, int height) {
+        int columns = (int) Math.ceil(Math.sqrt(faceCount));
+        int rows = (faceCount + columns - 1) / columns;
+        float cellWidth = (float) width / columns;
+        float cellHeight = (float) height / rows;
+        float faceSize = Math.min(cellWidth, cellHeight) * 0.6f;
+
+        float[] boxes = new float[faceCount * 4];
+        for (int i = 0; i < faceCount; i++) {
+            boxes[i * 4] = (i % columns) * cellWidth + (cellWidth - faceSize) / 2;
+            boxes[i * 4 + 1] = (i / columns) * cellHeight + (cellHeight - faceSize) / 2;
+            boxes[i * 4 + 2] = faceSize;
+            boxes[i * 4 + 3] = faceSize;
+        }
+        return boxes;
+    }
+
+    /**
+     * @return smiling, left eye open and right eye open probabilities of each face
+     */
+    static float[] probabilities(int faceCount, long seed) {
+        Random random = new Random(seed);
+        float[] probabilities = new float[faceCount * 3];
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = random.nextFloat();
+        }
+        return probabilities;
+    }
+
+    /**
+     * width and height of a picture of about the given number of megapixels, in 4:3
+     */
+    static int[] pictureSize(int megapixels) {
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3));
+        return new int[]{width, width * 3 / 4};
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.anu.emojifyme.benchmark;
+
+import com.example.anu.emojifyme.utils.EmojiPlacement;
+import com.example.anu.emojifyme.utils.EmojiPlacementBenchmarkAccess;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Places the emojis of every face of a group photo, with and without eye landmarks and head
+ * rotation. Divided by the face count, the time should stay flat as faces are added and barely
+ * change with the landmarks.
+ */
+@State(Scope.Thread)
+public class PlacementBenchmark {
+
+    private static final int SPRITE_SIZE = 256;
+
+    @Param({"1", "5", "20", "100"})
+    public int faceCount;
+
+    @Param({"false", "true"})
+    public boolean landmarks;
+
+    private float[] mGeometry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int[] size = Faces.pictureSize(12);
+        float[] boxes = Faces.grid(faceCount, size[0], size[1]);
+        Random random = new Random(42);
+        int stride = EmojiPlacementBenchmarkAccess.GEOMETRY_STRIDE;
+
+        mGeometry = new float[faceCount * stride];
+        for (int i = 0; i < faceCount; i++) {
+            float left = boxes[i * 4];
+            float top = boxes[i * 4 + 1];
+            float width = boxes[i * 4 + 2];
+            float height = boxes[i * 4 + 3];
+            float tilt = landmarks ? (random.nextFloat() - .5f) * width / 2 : 0;
+            int offset = i * stride;
+            mGeometry[offset] = left;
+            mGeometry[offset + 1] = top;
+            mGeometry[offset + 2] = width;
+            mGeometry[offset + 3] = height;
+            mGeometry[offset + 4] = landmarks ? (random.nextFloat() - .5f) * 60 : 0;
+            mGeometry[offset + 5] = landmarks ? left + width * .7f : Float.NaN;
+            mGeometry[offset + 6] = landmarks ? top + height * .4f + tilt : Float.NaN;
+            mGeometry[offset + 7] = landmarks ? left + width * .3f : Float.NaN;
+            mGeometry[offset + 8] = landmarks ? top + height * .4f - tilt : Float.NaN;
+            mGeometry[offset + 9] = SPRITE_SIZE;
+            mGeometry[offset + 10] = SPRITE_SIZE;
+        }
+    }
+
+    @Benchmark
+    public EmojiPlacement place() {
+        return EmojiPlacementBenchmarkAccess.place(mGeometry, faceCount);
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.anu.emojifyme.benchmark;
+
+import java.util.Random;
+
+/**
+ * Pure Java stand-in for an ARGB_8888 Bitmap and the Canvas calls the emojify path makes on it,
+ * so the hot path can be measured on a plain JVM.
+ */
+final class Raster {
+
+    final int width;
+    final int height;
+    final int[] pixels;
+
+    Raster(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+    }
+
+    /**
+     * an opaque noisy picture
+     */
+    static Raster opaque(int width, int height, long seed) {
+        Raster raster = new Raster(width, height);
+        Random random = new Random(seed);
+        for (int i = 0; i < raster.pixels.length; i++) {
+            raster.pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        return raster;
+    }
+
+    /**
+     * a yellow disc on a transparent background, shaped like the emoji drawables
+     */
+    static Raster sprite(int size) {
+        Raster raster = new Raster(size, size);
+        float radius = size / 2f;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x + 0.5f - radius;
+                float dy = y + 0.5f - radius;
+                if (dx * dx + dy * dy <= radius * radius) {
+                    raster.pixels[y * size + x] = 0xFFFFCC33;
+                }
+            }
+        }
+        return raster;
+    }
+
+    /**
+     * Stand-in for Canvas.drawBitmap(sprite, null, bounds, null): nearest neighbour scaling
+     * into the bounds, blended source over.
+     *
+     * @param bounds left, top, right and bottom edges
+     */
+    void drawScaled(Raster sprite, float[] bounds) {
+        int left = Math.max(0, (int) bounds[0]);
+        int top = Math.max(0, (int) bounds[1]);
+        int right = Math.min(width, (int) bounds[2]);
+        int bottom = Math.min(height, (int) bounds[3]);
+        float scaleX = sprite.width / (bounds[2] - bounds[0]);
+        float scaleY = sprite.height / (bounds[3] - bounds[1]);
+
+        for (int y = top; y < bottom; y++) {
+            int spriteRow = Math.min(sprite.height - 1, (int) ((y - bounds[1]) * scaleY)) * sprite.width;
+            int row = y * width;
+            for (int x = left; x < right; x++) {
+                int src = sprite.pixels[spriteRow + Math.min(sprite.width - 1, (int) ((x - bounds[0]) * scaleX))];
+                int alpha = src >>> 24;
+                if (alpha == 0xFF) {
+                    pixels[row + x] = src;
+                } else if (alpha != 0) {
+                    pixels[row + x] = blend(src, pixels[row + x], alpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stand-in for Bitmap.createScaledBitmap(sprite, width, height, true): bilinear scaling.
+     */
+    static Raster scaleBilinear(Raster source, int width, int height) {
+        Raster scaled = new Raster(width, height);
+        float scaleX = (float) source.width / width;
+        float scaleY = (float) source.height / height;
+        for (int y = 0; y < height; y++) {
+            float sy = Math.max(0, (y + 0.5f) * scaleY - 0.5f);
+            int y0 = Math.min(source.height - 1, (int) sy);
+            int y1 = Math.min(source.height - 1, y0 + 1);
+            float fy = sy - y0;
+            for (int x = 0; x < width; x++) {
+                float sx = Math.max(0, (x + 0.5f) * scaleX - 0.5f);
+                int x0 = Math.min(source.width - 1, (int) sx);
+                int x1 = Math.min(source.width - 1, x0 + 1);
+                float fx = sx - x0;
+                scaled.pixels[y * width + x] = lerp(
+                        lerp(source.pixels[y0 * source.width + x0], source.pixels[y0 * source.width + x1], fx),
+                        lerp(source.pixels[y1 * source.width + x0], source.pixels[y1 * source.width + x1], fx),
+                        fy);
+            }
+        }
+        return scaled;
+    }
+
+    private static int blend(int src, int dst, int alpha) {
+        int inverse = 255 - alpha;
+        int r = (((src >> 16) & 0xFF) * alpha + ((dst >> 16) & 0xFF) * inverse) / 255;
+        int g = (((src >> 8) & 0xFF) * alpha + ((dst >> 8) & 0xFF) * inverse) / 255;
+        int b = ((src & 0xFF) * alpha + (dst & 0xFF) * inverse) / 255;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int lerp(int a, int b, float t) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int ca = (a >>> shift) & 0xFF;
+            int cb = (b >>> shift) & 0xFF;
+            result |= ((int) (ca + (cb - ca) * t + 0.5f) & 0xFF) << shift;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.anu.emojifyme.benchmark;
+
+import com.example.anu.emojifyme.utils.BitmapUtilsBenchmarkAccess;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Computes the decode sample size of a photo shown in a 1080x1920 view.
+ */
+@State(Scope.Thread)
+public class ResampleBenchmark {
+
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 1920;
+
+    @Param({"1", "12", "48"})
+    public int megapixels;
+
+    private int mPhotoWidth;
+    private int mPhotoHeight;
+
+    @Setup
+    public void setUp() {
+        int[] size = Faces.pictureSize(megapixels);
+        mPhotoWidth = size[0];
+        mPhotoHeight = size[1];
+    }
+
+    @Benchmark
+    public int inSampleSize() {
+        float scale = Math.min(1f, Math.min((float) VIEW_WIDTH / mPhotoWidth,
+                (float) VIEW_HEIGHT / mPhotoHeight));
+        return BitmapUtilsBenchmarkAccess.calculateInSampleSize(mPhotoWidth, mPhotoHeight,
+                Math.round(mPhotoWidth * scale), Math.round(mPhotoHeight * scale));
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.anu.emojifyme.benchmark;
+
+import com.example.anu.emojifyme.utils.EmojiCompositor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Scales the full size emoji drawable to the width of a face, what a sprite cache miss costs.
+ */
+@State(Scope.Thread)
+public class SpriteScalingBenchmark {
+
+    /**
+     * size of the emoji drawables once decoded on an xxhdpi device
+     */
+    private static final int DRAWABLE_SIZE = 1536;
+
+    @Param({"32", "128", "512"})
+    public int faceWidth;
+
+    private Raster mDrawable;
+
+    @Setup
+    public void setUp() {
+        mDrawable = Raster.sprite(DRAWABLE_SIZE);
+    }
+
+    @Benchmark
+    public Raster scaleSprite() {
+        int width = EmojiCompositor.getEmojiWidth(faceWidth);
+        return Raster.scaleBilinear(mDrawable, width, width * mDrawable.height / mDrawable.width);
+    }
+}
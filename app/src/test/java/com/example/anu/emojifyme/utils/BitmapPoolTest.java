@@ -0,0 +1,132 @@
+package com.example.anu.emojifyme.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BitmapPoolTest {
+
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void sizeClasses_splitEveryPowerOfTwoInFour() throws Exception {
+        assertEquals(BitmapPool.MIN_SIZE_CLASS, BitmapPool.getSizeClass(1));
+        assertEquals(MB, BitmapPool.getSizeClass(MB));
+        assertEquals(MB, BitmapPool.getSizeClass(MB + MB / 4 - 1));
+        assertEquals(MB + MB / 4, BitmapPool.getSizeClass(MB + MB / 4));
+        assertEquals(MB + 3 * MB / 4, BitmapPool.getSizeClass(2 * MB - 1));
+        assertEquals(2 * MB, BitmapPool.getSizeClass(2 * MB));
+    }
+
+    @Test
+    public void releasedBitmap_isReconfiguredForASmallerRequest() throws Exception {
+        BitmapPool pool = new BitmapPool(16 * MB, true);
+        Bitmap bitmap = mockBitmap(1000, 1000, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.get(800, 600, Bitmap.Config.ARGB_8888));
+
+        verify(bitmap).reconfigure(800, 600, Bitmap.Config.ARGB_8888);
+        verify(bitmap).eraseColor(0);
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void smallRequest_doesNotPinALargeBitmap() throws Exception {
+        BitmapPool pool = new BitmapPool(16 * MB, true);
+        pool.put(mockBitmap(1000, 1000, Bitmap.Config.ARGB_8888));
+
+        assertNull(pool.getReusable(100, 100, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getReusable(2000, 1000, Bitmap.Config.ARGB_8888));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void regionRequest_needsABitmapAsWideAndAsTall() throws Exception {
+        BitmapPool pool = new BitmapPool(16 * MB, true);
+        Bitmap narrow = mockBitmap(100, 400, Bitmap.Config.ARGB_8888);
+        pool.put(narrow);
+
+        // a region decoder would decode 400 columns into 100, the allocation alone is not enough
+        assertNull(pool.getRegionReusable(400, 100, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getRegionReusable(100, 400, Bitmap.Config.RGB_565));
+        assertSame(narrow, pool.getRegionReusable(100, 300, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void beforeKitKat_onlyTheExactSizeIsReused() throws Exception {
+        BitmapPool pool = new BitmapPool(16 * MB, false);
+        Bitmap bitmap = mockBitmap(1000, 1000, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNull(pool.getReusable(990, 1000, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getReusable(1000, 1000, Bitmap.Config.RGB_565));
+        assertSame(bitmap, pool.getReusable(1000, 1000, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void overBudget_recyclesTheLeastRecentlyReleased() throws Exception {
+        BitmapPool pool = new BitmapPool(10 * MB, true);
+        Bitmap first = mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        Bitmap second = mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        Bitmap third = mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        verify(first).recycle();
+        verify(second, never()).recycle();
+        assertEquals(8 * MB, pool.getSize());
+        assertEquals(1, pool.getEvictions());
+
+        // the most recently released bitmap is handed out first
+        assertSame(third, pool.getReusable(1024, 1024, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void trimMemory_releasesThePool() throws Exception {
+        BitmapPool pool = new BitmapPool(10 * MB, true);
+        pool.put(mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888));
+        pool.put(mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888));
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(4 * MB, pool.getSize());
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void immutableBitmap_isRecycledInsteadOfPooled() throws Exception {
+        BitmapPool pool = new BitmapPool(16 * MB, true);
+        Bitmap bitmap = mockBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        when(bitmap.isMutable()).thenReturn(false);
+
+        pool.put(bitmap);
+
+        verify(bitmap).recycle();
+        assertEquals(0, pool.getSize());
+    }
+
+    private static Bitmap mockBitmap(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = mock(Bitmap.class);
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+        when(bitmap.getWidth()).thenReturn(width);
+        when(bitmap.getHeight()).thenReturn(height);
+        when(bitmap.getConfig()).thenReturn(config);
+        when(bitmap.isMutable()).thenReturn(true);
+        when(bitmap.getAllocationByteCount()).thenReturn(width * height * bytesPerPixel);
+        when(bitmap.getByteCount()).thenReturn(width * height * bytesPerPixel);
+        return bitmap;
+    }
+}
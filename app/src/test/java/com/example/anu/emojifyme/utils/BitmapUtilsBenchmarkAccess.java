@@ -0,0 +1,14 @@
+package com.example.anu.emojifyme.utils;
+
+/**
+ * Exposes the package private decode sizing to the benchmarks.
+ */
+public final class BitmapUtilsBenchmarkAccess {
+
+    private BitmapUtilsBenchmarkAccess() {
+    }
+
+    public static int calculateInSampleSize(int photoW, int photoH, int reqW, int reqH) {
+        return BitmapUtils.calculateInSampleSize(photoW, photoH, reqW, reqH);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BitmapUtilsTest {
+
+    @Test
+    public void calculateInSampleSize_staysAboveRequestedSize() throws Exception {
+        // 12MP photo shown at 1080p
+        assertEquals(2, BitmapUtils.calculateInSampleSize(4000, 3000, 1920, 1080));
+        // 12MP photo fit in a 1080 wide portrait view
+        assertEquals(2, BitmapUtils.calculateInSampleSize(4000, 3000, 1080, 810));
+        assertEquals(4, BitmapUtils.calculateInSampleSize(4000, 3000, 1000, 750));
+    }
+
+    @Test
+    public void calculateInSampleSize_isOneForSmallPhotos() throws Exception {
+        assertEquals(1, BitmapUtils.calculateInSampleSize(640, 480, 1080, 1920));
+        assertEquals(1, BitmapUtils.calculateInSampleSize(1080, 1920, 1080, 1920));
+    }
+
+    @Test
+    public void imageFilePrefix_followsTheFormat() throws Exception {
+        assertEquals("JPEG_", BitmapUtils.getImageFilePrefix(".jpg"));
+        assertEquals("WEBP_", BitmapUtils.getImageFilePrefix(".webp"));
+        assertEquals("PNG_", BitmapUtils.getImageFilePrefix(".PNG"));
+    }
+}
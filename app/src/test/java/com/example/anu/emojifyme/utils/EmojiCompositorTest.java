@@ -0,0 +1,60 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that compositing allocates at most one full size bitmap, whatever the number of faces.
+ */
+public class EmojiCompositorTest {
+
+    private static final int FACE_COUNT = 12;
+
+    @Test
+    public void immutableBackground_isCopiedOnceForAllFaces() throws Exception {
+        Bitmap background = mock(Bitmap.class);
+        Bitmap copy = mock(Bitmap.class);
+        when(background.isMutable()).thenReturn(false);
+        when(background.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        when(background.copy(any(Bitmap.Config.class), anyBoolean())).thenReturn(copy);
+
+        EmojiCompositor compositor = new EmojiCompositor(background);
+        drawFaces(compositor);
+
+        verify(background, times(1)).copy(any(Bitmap.Config.class), anyBoolean());
+        verify(copy, never()).copy(any(Bitmap.Config.class), anyBoolean());
+        assertSame(copy, compositor.getResultBitmap());
+    }
+
+    @Test
+    public void mutableBackground_isDrawnInPlace() throws Exception {
+        Bitmap background = mock(Bitmap.class);
+        when(background.isMutable()).thenReturn(true);
+
+        EmojiCompositor compositor = new EmojiCompositor(background);
+        drawFaces(compositor);
+
+        verify(background, never()).copy(any(Bitmap.Config.class), anyBoolean());
+        assertSame(background, compositor.getResultBitmap());
+    }
+
+    private static void drawFaces(EmojiCompositor compositor) {
+        Bitmap emoji = mock(Bitmap.class);
+        when(emoji.getWidth()).thenReturn(128);
+        when(emoji.getHeight()).thenReturn(128);
+
+        for (int i = 0; i < FACE_COUNT; i++) {
+            compositor.drawEmoji(emoji, i * 100, 50, 80, 100);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.anu.emojifyme.utils;
+
+/**
+ * Exposes the package private placement of packed faces to the benchmarks.
+ */
+public final class EmojiPlacementBenchmarkAccess {
+
+    public static final int GEOMETRY_STRIDE = EmojiPlacement.GEOMETRY_STRIDE;
+
+    private EmojiPlacementBenchmarkAccess() {
+    }
+
+    public static EmojiPlacement place(float[] geometry, int count) {
+        return EmojiPlacement.place(geometry, count);
+    }
+}
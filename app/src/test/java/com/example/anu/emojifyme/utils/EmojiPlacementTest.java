@@ -0,0 +1,73 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class EmojiPlacementTest {
+
+    private static final float NO_EYE = Float.NaN;
+
+    @Test
+    public void faceWithoutLandmarks_isPlacedOverItsBoundingBox() throws Exception {
+        EmojiPlacement placement = EmojiPlacement.place(
+                face(100, 50, 80, 100, 1f, NO_EYE, NO_EYE, NO_EYE, NO_EYE), 1);
+
+        float[] expected = new float[4];
+        EmojiCompositor.getEmojiBounds(24, 24, 100, 50, 80, 100, expected);
+        float[] bounds = new float[4];
+        placement.getBounds(0, bounds);
+        assertArrayEquals(expected, bounds, 0f);
+        // too small a tilt to leave the axis aligned drawing
+        assertFalse(placement.isRotated(0));
+    }
+
+    @Test
+    public void faceWithoutLandmarks_isTurnedByItsEulerAngle() throws Exception {
+        EmojiPlacement placement = EmojiPlacement.place(
+                face(100, 50, 80, 100, 15f, NO_EYE, NO_EYE, NO_EYE, NO_EYE), 1);
+
+        // counter-clockwise for the detector, clockwise for the canvas
+        assertEquals(-15f, placement.getRotation(0), 0f);
+    }
+
+    @Test
+    public void faceWithEyes_isCenteredBelowTheEyesAndTurnedWithThem() throws Exception {
+        // the person's left eye is on the right of the picture, 30 degrees lower
+        float cos = (float) Math.cos(Math.toRadians(30));
+        float sin = (float) Math.sin(Math.toRadians(30));
+        EmojiPlacement placement = EmojiPlacement.place(face(100, 50, 80, 100, 0f,
+                140 + 20 * cos, 90 + 20 * sin, 140 - 20 * cos, 90 - 20 * sin), 1);
+
+        assertEquals(30f, placement.getRotation(0), 1e-3f);
+
+        // a 72x64 emoji, its center 0.1 of its height below the eyes, along the turned face
+        float[] bounds = new float[4];
+        placement.getBounds(0, bounds);
+        assertEquals(140 - sin * 6.4f, (bounds[0] + bounds[2]) / 2, 1e-3f);
+        assertEquals(90 + cos * 6.4f, (bounds[1] + bounds[3]) / 2, 1e-3f);
+        assertEquals(cos * 72 + sin * 64, bounds[2] - bounds[0], 1e-3f);
+        assertEquals(sin * 72 + cos * 64, bounds[3] - bounds[1], 1e-3f);
+    }
+
+    @Test
+    public void mirroredEyes_fallBackToTheBoundingBox() throws Exception {
+        EmojiPlacement placement = EmojiPlacement.place(
+                face(100, 50, 80, 100, 0f, 120, 90, 160, 90), 1);
+
+        float[] expected = new float[4];
+        EmojiCompositor.getEmojiBounds(24, 24, 100, 50, 80, 100, expected);
+        float[] bounds = new float[4];
+        placement.getBounds(0, bounds);
+        assertArrayEquals(expected, bounds, 0f);
+    }
+
+    private static float[] face(float left, float top, float width, float height, float eulerZ,
+                                float leftEyeX, float leftEyeY, float rightEyeX,
+                                float rightEyeY) {
+        return new float[]{left, top, width, height, eulerZ, leftEyeX, leftEyeY, rightEyeX,
+                rightEyeY, 24, 24};
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EmojiSpriteCacheTest {
+
+    @Test
+    public void halving_averagesTwoByTwoBlocksWeightedByAlpha() throws Exception {
+        int[] pixels = {
+                0xff000000, 0xffffffff, 0xffff0000, 0x00000000, 0xff00ff00,
+                0xff000000, 0xffffffff, 0x00000000, 0x00000000, 0xff00ff00,
+                0x80ff0000, 0x800000ff, 0x00000000, 0x00000000, 0xff0000ff};
+
+        int[] halved = EmojiSpriteCache.halve(pixels, 5, 3);
+
+        assertArrayEquals(new int[]{
+                // grey, red without the black of its transparent neighbours, the odd column
+                0xff808080, 0x40ff0000, 0xff00ff00,
+                // the odd row averaged with itself
+                0x80800080, 0x00000000, 0xff0000ff}, halved);
+    }
+
+    @Test
+    public void spriteWidth_picksTheSmallestLevelAtLeastAsWide() throws Exception {
+        Bitmap[] mipChain = {mockBitmap(256), mockBitmap(128), mockBitmap(64), mockBitmap(32)};
+
+        assertEquals(0, EmojiSpriteCache.pickLevel(mipChain, 512));
+        assertEquals(0, EmojiSpriteCache.pickLevel(mipChain, 129));
+        assertEquals(1, EmojiSpriteCache.pickLevel(mipChain, 128));
+        assertEquals(2, EmojiSpriteCache.pickLevel(mipChain, 48));
+        assertEquals(3, EmojiSpriteCache.pickLevel(mipChain, 16));
+    }
+
+    private static Bitmap mockBitmap(int width) {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(width);
+        return bitmap;
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.anu.emojifyme.utils;
+
+/**
+ * Exposes the package private classification to the benchmarks.
+ */
+public final class EmojifierBenchmarkAccess {
+
+    private EmojifierBenchmarkAccess() {
+    }
+
+    public static Object whichEmoji(float smilingProb, float leftEyeOpenProb, float rightEyeOpenProb) {
+        return Emojifier.whichEmoji(smilingProb, leftEyeOpenProb, rightEyeOpenProb);
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.anu.emojifyme.utils;
+
+import android.support.media.ExifInterface;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class EmojifierTest {
+
+    private static final int CLASSIFICATIONS = 1000000;
+
+    private static final float[] PROBABILITIES = {0f, .1f, .15f, .1500001f, .2f, .5f, 1f};
+
+    @After
+    public void resetThresholds() {
+        Emojifier.setThresholds(Emojifier.SMILING_PROB_THRESHOLD, Emojifier.EYE_OPEN_PROB_THRESHOLD);
+    }
+
+    @Test
+    public void whichEmoji_matchesTheExpressionRules() throws Exception {
+        for (float smiling : PROBABILITIES) {
+            for (float leftEyeOpen : PROBABILITIES) {
+                for (float rightEyeOpen : PROBABILITIES) {
+                    assertEquals(expectedEmoji(smiling, leftEyeOpen, rightEyeOpen, .15, .15),
+                            Emojifier.whichEmoji(smiling, leftEyeOpen, rightEyeOpen));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void whichEmoji_usesTheConfiguredThresholds() throws Exception {
+        Emojifier.setThresholds(.6, .4);
+        for (float smiling : PROBABILITIES) {
+            for (float leftEyeOpen : PROBABILITIES) {
+                for (float rightEyeOpen : PROBABILITIES) {
+                    assertEquals(expectedEmoji(smiling, leftEyeOpen, rightEyeOpen, .6, .4),
+                            Emojifier.whichEmoji(smiling, leftEyeOpen, rightEyeOpen));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void describeScene_classifiesFacesWithoutDrawing() throws Exception {
+        List<DetectedFace> faces = Arrays.asList(
+                new DetectedFace(0, 10f, 20f, 100f, 120f, .9f, .8f, .7f),
+                new DetectedFace(1, 200f, 40f, 80f, 96f, .05f, .05f, .9f));
+
+        EmojifiedScene scene = Emojifier.describeScene("photo.jpg",
+                ExifInterface.ORIENTATION_ROTATE_90, faces, 320f);
+
+        assertEquals(2, scene.getFaceCount());
+        assertArrayEquals(new Emojifier.Emoji[]{Emojifier.Emoji.SMILE,
+                Emojifier.Emoji.LEFT_WINK_FROWN}, scene.getEmojis());
+        assertFalse(scene.isStoredUpright());
+        assertEquals(4f, scene.getFaceScale(1280), 0f);
+    }
+
+    @Test
+    public void whichEmoji_doesNotAllocate() throws Exception {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so class loading and compilation are not measured
+        classify(CLASSIFICATIONS);
+
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        classify(CLASSIFICATIONS);
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        // Reading the counter and recompiling the loop cost a few bytes once, while allocating
+        // anything per face would cost at least 16 bytes per classification
+        assertTrue("Allocated " + allocated + " bytes for " + CLASSIFICATIONS + " classifications",
+                allocated < CLASSIFICATIONS / 100);
+    }
+
+    private static int classify(int count) {
+        int checksum = 0;
+        for (int i = 0; i < count; i++) {
+            float probability = (i % 100) / 100f;
+            checksum += Emojifier.whichEmoji(probability, 1 - probability, probability).ordinal();
+        }
+        return checksum;
+    }
+
+    /**
+     * the original nested rules the emoji table was built from
+     */
+    private static Emojifier.Emoji expectedEmoji(float smiling, float leftEyeOpen, float rightEyeOpen,
+                                                 double smilingThreshold, double eyeOpenThreshold) {
+        boolean isSmiling = smiling > smilingThreshold;
+        boolean isLeftEyeClosed = leftEyeOpen < eyeOpenThreshold;
+        boolean isRightEyeClosed = rightEyeOpen < eyeOpenThreshold;
+
+        if (isSmiling) {
+            if (isLeftEyeClosed && !isRightEyeClosed) {
+                return Emojifier.Emoji.LEFT_WINK;
+            } else if (isRightEyeClosed && !isLeftEyeClosed) {
+                return Emojifier.Emoji.RIGHT_WINK;
+            } else if (isLeftEyeClosed) {
+                return Emojifier.Emoji.CLOSED_EYE_SMILE;
+            }
+            return Emojifier.Emoji.SMILE;
+        }
+        if (isLeftEyeClosed && !isRightEyeClosed) {
+            return Emojifier.Emoji.LEFT_WINK_FROWN;
+        } else if (isRightEyeClosed && !isLeftEyeClosed) {
+            return Emojifier.Emoji.RIGHT_WINK_FROWN;
+        } else if (isLeftEyeClosed) {
+            return Emojifier.Emoji.CLOSED_EYE_FROWN;
+        }
+        return Emojifier.Emoji.FROWN;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EmojifyJobQueueTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void chunkNotCompleted_isHandedOutAgainAfterAKill() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/a.jpg", "/b.jpg", "/c.jpg", "/d.jpg", "/e.jpg"));
+
+        EmojifyJobQueue.Chunk first = queue.nextChunk(2);
+        assertEquals(Arrays.asList("/a.jpg", "/b.jpg"), first.getImagePaths());
+        queue.complete(first, stats(2, 0));
+        EmojifyJobQueue.Chunk second = queue.nextChunk(2);
+        assertEquals(Arrays.asList("/c.jpg", "/d.jpg"), second.getImagePaths());
+
+        // the process dies before the second chunk is completed
+        EmojifyJobQueue reopened = new EmojifyJobQueue(directory);
+        EmojifyJobQueue.Chunk resumed = reopened.nextChunk(2);
+
+        assertEquals(second.getImagePaths(), resumed.getImagePaths());
+        assertEquals(second.getBatchId(), resumed.getBatchId());
+        assertEquals(2, reopened.getTotals().getSucceeded());
+    }
+
+    @Test
+    public void drainedQueue_startsOverWithNewBatchIds() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/a.jpg", "/b.jpg"));
+        EmojifyJobQueue.Chunk chunk = queue.nextChunk(10);
+        queue.complete(chunk, stats(1, 1));
+
+        assertTrue(queue.isEmpty());
+        assertNull(queue.nextChunk(10));
+
+        queue.enqueue(Arrays.asList("/a.jpg"));
+        EmojifyJobQueue.Chunk next = new EmojifyJobQueue(directory).nextChunk(10);
+        assertEquals(Arrays.asList("/a.jpg"), next.getImagePaths());
+        assertFalse(chunk.getBatchId().equals(next.getBatchId()));
+        assertEquals(1, new EmojifyJobQueue(directory).getTotals().getFailed());
+    }
+
+    @Test
+    public void lineCutShortByACrash_isNotHandedOut() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/a.jpg"));
+        Writer writer = new FileWriter(new File(directory, "images.0"), true);
+        try {
+            writer.write("/half");
+        } finally {
+            writer.close();
+        }
+
+        EmojifyJobQueue.Chunk chunk = queue.nextChunk(10);
+        assertEquals(Arrays.asList("/a.jpg"), chunk.getImagePaths());
+        queue.complete(chunk, stats(1, 0));
+        assertNull(queue.nextChunk(10));
+    }
+
+    @Test
+    public void unreadableCheckpoint_keepsThePendingImagesOfTheLatestFile() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/a.jpg"));
+        queue.complete(queue.nextChunk(10), stats(1, 0));
+        queue.enqueue(Arrays.asList("/b.jpg", "/c.jpg"));
+        Writer writer = new FileWriter(new File(directory, "checkpoint"));
+        try {
+            writer.write("1 0 1");
+        } finally {
+            writer.close();
+        }
+
+        EmojifyJobQueue reopened = new EmojifyJobQueue(directory);
+
+        assertEquals(Arrays.asList("/b.jpg", "/c.jpg"), reopened.nextChunk(10).getImagePaths());
+    }
+
+    @Test
+    public void enqueueAfterACrashMidLine_doesNotAppendToTheCutLine() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/a.jpg"));
+        Writer writer = new FileWriter(new File(directory, "images.0"), true);
+        try {
+            writer.write("/sdcard/DCI");
+        } finally {
+            writer.close();
+        }
+
+        queue = new EmojifyJobQueue(directory);
+        queue.enqueue(Arrays.asList("/sdcard/x.jpg"));
+
+        assertEquals(Arrays.asList("/a.jpg", "/sdcard/x.jpg"), queue.nextChunk(10).getImagePaths());
+    }
+
+    @Test
+    public void hundredThousandImages_areHandedOutOnceInOrder() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyJobQueue queue = new EmojifyJobQueue(directory);
+        List<String> imagePaths = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            imagePaths.add(String.format(Locale.US, "/sdcard/DCIM/Camera/IMG_%06d.jpg", i));
+        }
+        queue.enqueue(imagePaths);
+
+        // the processed head is dropped several times on the way
+        List<String> handedOut = new ArrayList<>();
+        EmojifyJobQueue.Chunk chunk;
+        while ((chunk = queue.nextChunk(1000)) != null) {
+            handedOut.addAll(chunk.getImagePaths());
+            queue.complete(chunk, stats(chunk.getImagePaths().size(), 0));
+        }
+
+        assertEquals(imagePaths, handedOut);
+        assertEquals(100000, queue.getTotals().getSucceeded());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static BatchEmojifier.Stats stats(int succeeded, int failed) {
+        BatchEmojifier.Stats stats = new BatchEmojifier.Stats();
+        stats.add(succeeded, failed, 0, 0, 1000000);
+        return stats;
+    }
+}
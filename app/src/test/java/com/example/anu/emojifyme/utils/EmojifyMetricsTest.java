@@ -0,0 +1,117 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmojifyMetricsTest {
+
+    @Before
+    public void enableMetrics() {
+        EmojifyMetrics.reset();
+        EmojifyMetrics.setEnabled(true);
+    }
+
+    @After
+    public void disableMetrics() {
+        EmojifyMetrics.setEnabled(false);
+        EmojifyMetrics.reset();
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        EmojifyMetrics.setEnabled(false);
+        long start = EmojifyMetrics.startTimer();
+        EmojifyMetrics.stopTimer(EmojifyMetrics.Metric.DETECT, start);
+        EmojifyMetrics.record(EmojifyMetrics.Metric.SAVED_BYTES, 1000);
+
+        assertEquals(0, EmojifyMetrics.getHistogram(EmojifyMetrics.Metric.DETECT).getCount());
+        assertEquals(0, EmojifyMetrics.getHistogram(EmojifyMetrics.Metric.SAVED_BYTES).getCount());
+        assertTrue(EmojifyMetrics.toJson().endsWith("\"recent\":[]}"));
+    }
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() {
+        for (int value = 1; value <= 10000; value++) {
+            EmojifyMetrics.record(EmojifyMetrics.Metric.RESAMPLE, value);
+        }
+        EmojifyMetrics.Histogram histogram = EmojifyMetrics.getHistogram(EmojifyMetrics.Metric.RESAMPLE);
+
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000, histogram.getPercentile(50), 5000 / 8);
+        assertEquals(9500, histogram.getPercentile(95), 9500 / 8);
+        assertEquals(9900, histogram.getPercentile(99), 9900 / 8);
+        assertEquals(10000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void histogram_bucketsCoverEveryValue() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = EmojifyMetrics.Histogram.bucketOf(value);
+            long highest = EmojifyMetrics.Histogram.highestValueOf(bucket);
+            assertTrue(value + " above its bucket", highest >= value);
+            assertTrue(value + " too far below its bucket", highest - value <= highest / 8);
+            if (bucket > 0) {
+                assertTrue(EmojifyMetrics.Histogram.highestValueOf(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void record_concurrently_countsEveryValue() throws Exception {
+        final int threads = 4;
+        final int recordsPerThread = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] recorders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            recorders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < recordsPerThread; i++) {
+                        EmojifyMetrics.record(EmojifyMetrics.Metric.CLASSIFY_FACE, i);
+                    }
+                }
+            });
+            recorders[t].start();
+        }
+        start.countDown();
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        EmojifyMetrics.Histogram histogram = EmojifyMetrics.getHistogram(EmojifyMetrics.Metric.CLASSIFY_FACE);
+        assertEquals(threads * recordsPerThread, histogram.getCount());
+        assertEquals(recordsPerThread - 1, histogram.getMax());
+    }
+
+    @Test
+    public void toJson_keepsOnlyTheRecentEventsWithTheirTrace() {
+        EmojifyMetrics.record(EmojifyMetrics.Metric.DETECT, -1);
+        EmojifyMetrics.beginTrace("emojify \"test\"");
+        for (int i = 0; i < EmojifyMetrics.RECENT_EVENTS; i++) {
+            EmojifyMetrics.record(EmojifyMetrics.Metric.SAVED_BYTES, i);
+        }
+        EmojifyMetrics.endTrace();
+
+        String json = EmojifyMetrics.toJson();
+        assertTrue(json.startsWith("{\"enabled\":true,\"metrics\":{\"RESAMPLE\":{\"unit\":\"ns\""));
+        assertTrue(json.contains("\"SAVED_BYTES\":{\"unit\":\"bytes\",\"count\":256,"));
+        assertFalse("The oldest event was overwritten", json.contains("\"metric\":\"DETECT\""));
+        assertTrue(json.contains("\"value\":255,\"trace\":1,\"traceName\":\"emojify \\\"test\\\"\"}]}"));
+        assertEquals(EmojifyMetrics.RECENT_EVENTS, json.split("\"metric\"").length - 1);
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class EmojifyResultCacheTest {
+
+    private static final List<DetectedFace> FACES = Arrays.asList(
+            new DetectedFace(0, 10f, 20f, 100f, 120f, .9f, .8f, .7f),
+            new DetectedFace(1, 200f, 40f, 80f, 96f, .05f, .05f, .9f));
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void resetEmojifier() {
+        Emojifier.setDetectionBackend(null);
+        Emojifier.setThresholds(Emojifier.SMILING_PROB_THRESHOLD, Emojifier.EYE_OPEN_PROB_THRESHOLD);
+    }
+
+    @Test
+    public void cachedFaces_surviveReopening() throws Exception {
+        File directory = mFolder.newFolder();
+        new EmojifyResultCache(directory, 1024 * 1024).putFaces("faces", FACES, 320f);
+
+        EmojifyResultCache.CachedFaces cachedFaces =
+                new EmojifyResultCache(directory, 1024 * 1024).getFaces("faces");
+
+        assertNotNull(cachedFaces);
+        assertEquals(FACES, cachedFaces.getFaces());
+        assertEquals(2f, cachedFaces.getFaceScale(640), 0f);
+    }
+
+    @Test
+    public void overSize_evictsTheLeastRecentlyUsedEntries() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyResultCache cache = new EmojifyResultCache(directory, 1000);
+        cache.putOutput("a", newFile(250));
+        cache.putOutput("b", newFile(250));
+        cache.putOutput("c", newFile(250));
+        cache.putOutput("d", newFile(250));
+        assertTrue(cache.copyOutput("a", mFolder.newFile()));
+
+        cache.putOutput("e", newFile(250));
+
+        assertEquals(1000, cache.getSize());
+        assertFalse(new File(directory, "b").exists());
+
+        // the order of use is read back from the journal
+        cache = new EmojifyResultCache(directory, 1000);
+        cache.putOutput("f", newFile(250));
+        assertFalse(cache.copyOutput("b", mFolder.newFile()));
+        assertFalse(cache.copyOutput("c", mFolder.newFile()));
+        File copy = mFolder.newFile();
+        assertTrue(cache.copyOutput("a", copy));
+        assertEquals(250, copy.length());
+        assertTrue(cache.copyOutput("d", mFolder.newFile()));
+        assertTrue(cache.copyOutput("e", mFolder.newFile()));
+        assertTrue(cache.copyOutput("f", mFolder.newFile()));
+    }
+
+    @Test
+    public void crashLeftovers_areDiscardedOnOpen() throws Exception {
+        File directory = mFolder.newFolder();
+        EmojifyResultCache cache = new EmojifyResultCache(directory, 1024);
+        cache.putOutput("kept", newFile(10));
+
+        // an entry renamed into place but never journaled, a temporary file, and a journal line
+        // cut short by a crash
+        writeFile(new File(directory, "orphan"), 10);
+        writeFile(new File(directory, "kept.1.tmp"), 10);
+        Writer journal = new FileWriter(new File(directory, "journal"), true);
+        journal.write("CLEAN orphan");
+        journal.close();
+
+        cache = new EmojifyResultCache(directory, 1024);
+
+        assertEquals(10, cache.getSize());
+        assertTrue(cache.copyOutput("kept", mFolder.newFile()));
+        assertFalse(cache.copyOutput("orphan", mFolder.newFile()));
+        assertEquals(Arrays.asList("journal", "kept"), sortedNames(directory));
+    }
+
+    @Test
+    public void outputKey_changesWithTheThresholds() throws Exception {
+        File picture = newFile(1000);
+        File samePicture = mFolder.newFile();
+        writeFile(samePicture, 1000);
+        String contentHash = EmojifyResultCache.hashFile(picture);
+        assertEquals(contentHash, EmojifyResultCache.hashFile(samePicture));
+
+        String key = EmojifyResultCache.getOutputKey(contentHash, 640, "jpeg");
+        assertEquals(key, EmojifyResultCache.getOutputKey(contentHash, 640, "jpeg"));
+        assertNotEquals(key, EmojifyResultCache.getOutputKey(contentHash, 480, "jpeg"));
+        assertNotEquals(key, EmojifyResultCache.getOutputKey(contentHash, 640, "webp"));
+        Emojifier.setThresholds(.5, .5);
+        assertNotEquals(key, EmojifyResultCache.getOutputKey(contentHash, 640, "jpeg"));
+    }
+
+    @Test
+    public void cacheHit_skipsDetection() throws Exception {
+        ReplayFaceDetectionBackend backend = new ReplayFaceDetectionBackend(
+                Collections.singletonList(FACES));
+        Emojifier.setDetectionBackend(backend);
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(400);
+        when(bitmap.getHeight()).thenReturn(300);
+        EmojifyResultCache cache = new EmojifyResultCache(mFolder.newFolder(), 1024 * 1024);
+
+        EmojifyResultCache.CachedFaces detected = cache.getOrDetectFaces(null, bitmap, "hash", 640);
+        EmojifyResultCache.CachedFaces cached = cache.getOrDetectFaces(null, bitmap, "hash", 640);
+
+        assertEquals(1, backend.getDetectionCount());
+        assertEquals(FACES, detected.getFaces());
+        assertEquals(FACES, cached.getFaces());
+        assertEquals(1f, cached.getFaceScale(bitmap.getWidth()), 0f);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertNull(cache.getFaces(EmojifyResultCache.getFacesKey("hash", 480)));
+    }
+
+    private File newFile(int size) throws IOException {
+        File file = mFolder.newFile();
+        writeFile(file, size);
+        return file;
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<String> sortedNames(File directory) {
+        String[] names = directory.list();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+}
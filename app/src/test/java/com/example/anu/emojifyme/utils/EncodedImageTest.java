@@ -0,0 +1,59 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedImageTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readImage_hashesLikeTheCachedFile() throws Exception {
+        byte[] data = new byte[200 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        data[0] = (byte) 0xff;
+        data[1] = (byte) 0xd8;
+        File file = writeFile(data);
+
+        EncodedImage image = EncodedImage.read(file.getAbsolutePath());
+
+        assertEquals(EmojifyResultCache.hashFile(file), image.getContentHash());
+        assertTrue(image.isJpeg());
+    }
+
+    @Test
+    public void png_isNotPassedThroughAsAJpeg() throws Exception {
+        File file = writeFile(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+
+        assertFalse(EncodedImage.read(file.getAbsolutePath()).isJpeg());
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyFile_throws() throws Exception {
+        EncodedImage.read(mFolder.newFile().getAbsolutePath());
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = mFolder.newFile();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FaceResultCacheTest {
+
+    private FaceResultCache mCache;
+
+    @Before
+    public void createCache() {
+        mCache = new FaceResultCache();
+    }
+
+    @After
+    public void resetThresholds() {
+        Emojifier.setThresholds(Emojifier.SMILING_PROB_THRESHOLD, Emojifier.EYE_OPEN_PROB_THRESHOLD);
+    }
+
+    @Test
+    public void update_faceBarelyMoved_reusesResultAndBox() {
+        mCache.update(1, 100, 100, 50, 50, .9f, 1, 1);
+        FaceResultCache.FaceResult result = mCache.update(1, 101, 99, 51, 50, .91f, .99f, 1);
+
+        assertEquals(1, mCache.getReusedResults());
+        assertEquals(100, result.getLeft(), 0);
+        assertEquals(100, result.getTop(), 0);
+        assertEquals(50, result.getWidth(), 0);
+        assertSame(Emojifier.Emoji.SMILE, result.getEmoji());
+    }
+
+    @Test
+    public void update_faceMoved_takesNewBox() {
+        mCache.update(1, 100, 100, 50, 50, .9f, 1, 1);
+        FaceResultCache.FaceResult result = mCache.update(1, 120, 100, 50, 50, .9f, 1, 1);
+
+        assertEquals(0, mCache.getReusedResults());
+        assertEquals(120, result.getLeft(), 0);
+    }
+
+    @Test
+    public void update_probabilityHoversAroundThreshold_emojiDoesNotFlicker() {
+        mCache.setSmoothing(1);
+        float[] smilingProbs = {.2f, .14f, .17f, .12f, .16f, .13f};
+        for (float smilingProb : smilingProbs) {
+            assertSame(Emojifier.Emoji.SMILE, mCache.update(1, 0, 0, 10, 10, smilingProb, 1, 1).getEmoji());
+        }
+        assertSame(Emojifier.Emoji.FROWN, mCache.update(1, 0, 0, 10, 10, .05f, 1, 1).getEmoji());
+    }
+
+    @Test
+    public void update_uncomputedProbability_keepsPreviousExpression() {
+        mCache.update(1, 0, 0, 10, 10, .9f, 1, 1);
+        FaceResultCache.FaceResult result = mCache.update(1, 0, 0, 10, 10, -1, -1, -1);
+
+        assertSame(Emojifier.Emoji.SMILE, result.getEmoji());
+    }
+
+    @Test
+    public void update_thresholdsChanged_reclassifiesReusedResult() {
+        assertSame(Emojifier.Emoji.SMILE, mCache.update(1, 0, 0, 10, 10, .5f, 1, 1).getEmoji());
+
+        Emojifier.setThresholds(.6, Emojifier.EYE_OPEN_PROB_THRESHOLD);
+        assertSame(Emojifier.Emoji.FROWN, mCache.update(1, 0, 0, 10, 10, .5f, 1, 1).getEmoji());
+        assertEquals(1, mCache.getReusedResults());
+    }
+
+    @Test
+    public void removeStale_forgetsFacesNotUpdatedSinceLastFrame() {
+        FaceResultCache.FaceResult first = mCache.update(1, 0, 0, 10, 10, .9f, 1, 1);
+        mCache.update(2, 50, 0, 10, 10, .9f, 1, 1);
+        mCache.removeStale();
+
+        assertSame(first, mCache.update(1, 0, 0, 10, 10, .9f, 1, 1));
+        mCache.removeStale();
+
+        assertSame(first, mCache.update(1, 0, 0, 10, 10, .9f, 1, 1));
+        mCache.update(2, 50, 0, 10, 10, .9f, 1, 1);
+        assertEquals(3, mCache.getUpdatedResults());
+    }
+}
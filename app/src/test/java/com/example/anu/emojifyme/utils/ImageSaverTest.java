@@ -0,0 +1,67 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageSaverTest {
+
+    @Test
+    public void searchQuality_keepsTheHighestQualityFittingTheTarget() throws Exception {
+        // 1000 bytes per quality step, quality 67 is the last one fitting in 67500 bytes
+        FakeProbe probe = new FakeProbe(1000);
+
+        int quality = ImageSaver.searchQuality(probe, 67500, 40, 95);
+
+        assertEquals(67, quality);
+        assertEquals(67, probe.mKeptQuality);
+        // a binary search over 56 qualities, instead of trying them one by one
+        assertTrue(probe.mPasses <= 6);
+    }
+
+    @Test
+    public void searchQuality_keepsTheMaximumWhenEverythingFits() throws Exception {
+        FakeProbe probe = new FakeProbe(1000);
+
+        assertEquals(95, ImageSaver.searchQuality(probe, Long.MAX_VALUE, 40, 95));
+        assertEquals(95, probe.mKeptQuality);
+    }
+
+    @Test
+    public void searchQuality_keepsTheMinimumWhenNothingFits() throws Exception {
+        FakeProbe probe = new FakeProbe(1000);
+
+        assertEquals(40, ImageSaver.searchQuality(probe, 100, 40, 95));
+        assertEquals(40, probe.mKeptQuality);
+    }
+
+    /**
+     * encoding growing linearly with the quality
+     */
+    private static final class FakeProbe implements ImageSaver.QualityProbe {
+
+        private final long mBytesPerQuality;
+        private int mLastQuality = -1;
+        private int mKeptQuality = -1;
+        private int mPasses;
+
+        FakeProbe(long bytesPerQuality) {
+            mBytesPerQuality = bytesPerQuality;
+        }
+
+        @Override
+        public long encode(int quality) throws IOException {
+            mLastQuality = quality;
+            mPasses++;
+            return quality * mBytesPerQuality;
+        }
+
+        @Override
+        public void keep() {
+            mKeptQuality = mLastQuality;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JpegExifTest {
+
+    private static final byte[] SOI = {(byte) 0xFF, (byte) 0xD8};
+    private static final byte[] JFIF = {(byte) 0xFF, (byte) 0xE0, 0, 7, 'J', 'F', 'I', 'F', 0};
+    private static final byte[] SOS = {(byte) 0xFF, (byte) 0xDA, 0, 2};
+
+    /**
+     * offset of the orientation value in {@link #exif(boolean, int)}
+     */
+    private static final int ORIENTATION_VALUE = 4 + 6 + 8 + 2 + 8;
+
+    @Test
+    public void exifAfterJfif_isReadWithItsOrientation() throws Exception {
+        byte[] exif = exif(false, 6);
+
+        byte[] segment = JpegExif.readSegment(
+                new ByteArrayInputStream(concat(SOI, JFIF, exif, SOS)), false);
+
+        assertArrayEquals(exif, segment);
+    }
+
+    @Test
+    public void turnedPixels_resetTheOrientationInEitherByteOrder() throws Exception {
+        byte[] bigEndian = JpegExif.readSegment(
+                new ByteArrayInputStream(concat(SOI, exif(false, 6), SOS)), true);
+        byte[] littleEndian = JpegExif.readSegment(
+                new ByteArrayInputStream(concat(SOI, exif(true, 8), SOS)), true);
+
+        assertEquals(0, bigEndian[ORIENTATION_VALUE]);
+        assertEquals(1, bigEndian[ORIENTATION_VALUE + 1]);
+        assertEquals(1, littleEndian[ORIENTATION_VALUE]);
+        assertEquals(0, littleEndian[ORIENTATION_VALUE + 1]);
+    }
+
+    @Test
+    public void jpegWithoutExif_hasNoSegment() throws Exception {
+        assertNull(JpegExif.readSegment(new ByteArrayInputStream(concat(SOI, JFIF, SOS)), false));
+        assertNull(JpegExif.readSegment(new ByteArrayInputStream(new byte[]{'G', 'I', 'F'}),
+                false));
+    }
+
+    @Test
+    public void thumbnailLocationAndSize_areCutOut() throws Exception {
+        byte[] segment = JpegExif.readSegment(
+                new ByteArrayInputStream(concat(SOI, fullExif(), SOS)), true);
+        ByteBuffer tiff = ByteBuffer.wrap(segment, 10, segment.length - 10).slice();
+
+        // The thumbnail ended the segment, it is cut off
+        assertEquals(10 + THUMBNAIL, segment.length);
+        assertEquals(segment.length - 2, ByteBuffer.wrap(segment, 2, 2).getShort());
+        // The first IFD keeps its orientation, reset, and its EXIF IFD, not the next IFD
+        assertEquals(2, tiff.getShort(8));
+        assertEquals(JpegExif.ORIENTATION_TAG, tiff.getShort(10));
+        assertEquals(1, tiff.getShort(10 + 8));
+        assertEquals((short) JpegExif.EXIF_IFD_TAG, tiff.getShort(22));
+        assertEquals(0, tiff.getInt(10 + 2 * 12));
+        // The EXIF IFD only keeps its color space
+        assertEquals(1, tiff.getShort(EXIF_IFD));
+        assertEquals((short) 0xA001, tiff.getShort(EXIF_IFD + 2));
+        // The location and the thumbnail IFD are zeroed
+        for (int i = GPS_IFD; i < THUMBNAIL; i++) {
+            assertEquals(0, segment[10 + i]);
+        }
+    }
+
+    @Test
+    public void insertedSegment_followsTheStartMarker() throws Exception {
+        byte[] exif = exif(false, 1);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        OutputStream out = JpegExif.insertSegment(encoded, exif);
+
+        out.write(0xFF);
+        out.write(concat(new byte[]{(byte) 0xD8}, JFIF, SOS));
+
+        assertArrayEquals(concat(SOI, exif, JFIF, SOS), encoded.toByteArray());
+    }
+
+    /**
+     * an EXIF segment with a single entry, the orientation, in its first IFD
+     */
+    private static byte[] exif(boolean littleEndian, int orientation) {
+        byte[] tiff = littleEndian
+                ? new byte[]{'I', 'I', 42, 0, 8, 0, 0, 0, 1, 0,
+                0x12, 0x01, 3, 0, 1, 0, 0, 0, (byte) orientation, 0, 0, 0, 0, 0, 0, 0}
+                : new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8, 0, 1,
+                0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, 0, 0, 0, 0};
+        byte[] header = {(byte) 0xFF, (byte) 0xE1, 0, (byte) (2 + 6 + tiff.length),
+                'E', 'x', 'i', 'f', 0, 0};
+        return concat(header, tiff);
+    }
+
+    /**
+     * offsets in {@link #fullExif()} of its IFDs and values
+     */
+    private static final int EXIF_IFD = 50;
+    private static final int GPS_IFD = 92;
+    private static final int GPS_VALUES = 122;
+    private static final int THUMBNAIL_IFD = 146;
+    private static final int THUMBNAIL = 176;
+
+    /**
+     * a big endian EXIF segment with an orientation, an EXIF IFD with the image size, a GPS IFD
+     * and a thumbnail ending the segment
+     */
+    private static byte[] fullExif() {
+        ByteBuffer tiff = ByteBuffer.allocate(THUMBNAIL + 10);
+        tiff.put(new byte[]{'M', 'M', 0, 42}).putInt(8);
+
+        tiff.putShort((short) 3);
+        entry(tiff, JpegExif.ORIENTATION_TAG, 3, 1, 6 << 16);
+        entry(tiff, JpegExif.EXIF_IFD_TAG, 4, 1, EXIF_IFD);
+        entry(tiff, JpegExif.GPS_IFD_TAG, 4, 1, GPS_IFD);
+        tiff.putInt(THUMBNAIL_IFD);
+
+        tiff.putShort((short) 3);
+        entry(tiff, 0xA001, 3, 1, 1 << 16);
+        entry(tiff, JpegExif.PIXEL_X_DIMENSION_TAG, 4, 1, 4000);
+        entry(tiff, JpegExif.PIXEL_Y_DIMENSION_TAG, 4, 1, 3000);
+        tiff.putInt(0);
+
+        tiff.putShort((short) 2);
+        entry(tiff, 0x0001, 2, 2, 'N' << 24);
+        entry(tiff, 0x0002, 5, 3, GPS_VALUES);
+        tiff.putInt(0);
+        for (int i = 0; i < 6; i++) {
+            tiff.putInt(i + 1);
+        }
+
+        tiff.putShort((short) 2);
+        entry(tiff, JpegExif.THUMBNAIL_OFFSET_TAG, 4, 1, THUMBNAIL);
+        entry(tiff, JpegExif.THUMBNAIL_LENGTH_TAG, 4, 1, 10);
+        tiff.putInt(0);
+        tiff.put(new byte[]{(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5, 6, (byte) 0xFF, (byte) 0xD9});
+
+        byte[] header = {(byte) 0xFF, (byte) 0xE1, 0, (byte) (2 + 6 + tiff.capacity()),
+                'E', 'x', 'i', 'f', 0, 0};
+        return concat(header, tiff.array());
+    }
+
+    private static void entry(ByteBuffer ifd, int tag, int type, int count, int value) {
+        ifd.putShort((short) tag).putShort((short) type).putInt(count).putInt(value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
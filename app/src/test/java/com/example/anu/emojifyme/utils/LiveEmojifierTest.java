@@ -0,0 +1,241 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class LiveEmojifierTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 4;
+
+    private static final float SMILING = .9f;
+    private static final float FROWNING = .05f;
+
+    private LiveEmojifier mEmojifier;
+    private final BlockingQueue<byte[]> mCameraBuffers = new LinkedBlockingQueue<>();
+    private final BlockingQueue<LiveEmojifier.Overlay> mOverlays = new LinkedBlockingQueue<>();
+
+    @After
+    public void stopEmojifier() {
+        if (mEmojifier != null) {
+            mEmojifier.stop();
+        }
+    }
+
+    @Test
+    public void recordedSequence_emojiOnlyChangesOnceTheExpressionIsStable() throws Exception {
+        List<DetectedFace[]> recording = Arrays.asList(
+                faces(face(1, SMILING)),
+                faces(face(1, FROWNING)),
+                faces(face(1, SMILING)),
+                faces(face(1, FROWNING), face(2, FROWNING)),
+                faces(face(1, FROWNING), face(2, FROWNING)),
+                faces(face(1, FROWNING)),
+                faces(face(1, FROWNING)),
+                faces(),
+                faces(face(1, SMILING)));
+        start(new RecordedDetector(recording, 0));
+
+        List<List<Emojifier.Emoji>> emojis = new ArrayList<>();
+        for (int i = 0; i < recording.size(); i++) {
+            feedFrame(i);
+            emojis.add(emojisOf(nextOverlay()));
+        }
+
+        Emojifier.Emoji smile = Emojifier.Emoji.SMILE;
+        Emojifier.Emoji frown = Emojifier.Emoji.FROWN;
+        assertEquals(Arrays.asList(
+                // a single frowning frame does not change the emoji
+                Arrays.asList(smile),
+                Arrays.asList(smile),
+                Arrays.asList(smile),
+                // a new face starts with its own expression
+                Arrays.asList(smile, frown),
+                Arrays.asList(smile, frown),
+                // frowning for long enough does
+                Arrays.asList(smile),
+                Arrays.asList(frown),
+                Arrays.<Emojifier.Emoji>asList(),
+                // a face coming back starts over
+                Arrays.asList(smile)), emojis);
+        assertEquals(0, mEmojifier.getDroppedFrames());
+        assertEquals(1, mEmojifier.getResultCache().getReusedResults());
+    }
+
+    @Test
+    public void framesArrivingWhileBusy_onlyTheLatestIsProcessed() throws Exception {
+        CountDownLatch firstFrameStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstFrame = new CountDownLatch(1);
+        List<DetectedFace[]> recording = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            recording.add(faces(face(1, SMILING)));
+        }
+        RecordedDetector detector = new RecordedDetector(recording, 0);
+        detector.blockFirstFrame(firstFrameStarted, releaseFirstFrame);
+        start(detector);
+
+        feedFrame(0);
+        assertTrue(firstFrameStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i < recording.size(); i++) {
+            feedFrame(i);
+        }
+        releaseFirstFrame.countDown();
+
+        nextOverlay();
+        nextOverlay();
+        assertEquals(Arrays.asList(0, 9), detector.getProcessedFrames());
+        assertEquals(8, mEmojifier.getDroppedFrames());
+
+        // every buffer went back to the camera
+        waitForCameraBuffers(LiveEmojifier.FRAME_BUFFER_COUNT);
+    }
+
+    @Test
+    public void slowDetectorAtThirtyFps_latencyStaysBounded() throws Exception {
+        int frameCount = 60;
+        long frameIntervalMillis = 33;
+        long detectionMillis = 50;
+        List<DetectedFace[]> recording = new ArrayList<>();
+        for (int i = 0; i < frameCount; i++) {
+            recording.add(faces(face(1, SMILING)));
+        }
+        start(new RecordedDetector(recording, detectionMillis));
+
+        for (int i = 0; i < frameCount; i++) {
+            feedFrame(i);
+            Thread.sleep(frameIntervalMillis);
+        }
+        waitForCameraBuffers(LiveEmojifier.FRAME_BUFFER_COUNT);
+
+        // a queue would fall further behind on every frame, dropping stale frames waits for
+        // at most the frame being processed
+        assertTrue("Max latency " + mEmojifier.getMaxLatencyMillis() + " ms",
+                mEmojifier.getMaxLatencyMillis() < 5 * detectionMillis);
+        assertTrue(mEmojifier.getDroppedFrames() > 0);
+        assertEquals(frameCount, mEmojifier.getProcessedFrames() + mEmojifier.getDroppedFrames());
+    }
+
+    private void start(FaceDetectionBackend backend) {
+        mEmojifier = new LiveEmojifier(backend, WIDTH, HEIGHT, 0, new LiveEmojifier.Listener() {
+            @Override
+            public void onFrameBufferAvailable(byte[] buffer) {
+                mCameraBuffers.add(buffer);
+            }
+
+            @Override
+            public void onFrameEmojified(LiveEmojifier.Overlay overlay) {
+                mOverlays.add(overlay);
+            }
+        });
+        mEmojifier.start();
+    }
+
+    /**
+     * writes the index of the recorded frame into a free buffer, as the camera would
+     */
+    private void feedFrame(int index) throws InterruptedException {
+        byte[] buffer = mCameraBuffers.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No free frame buffer", buffer);
+        ByteBuffer.wrap(buffer).putInt(0, index);
+        mEmojifier.onFrame(buffer);
+    }
+
+    private LiveEmojifier.Overlay nextOverlay() throws InterruptedException {
+        LiveEmojifier.Overlay overlay = mOverlays.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No emojified frame", overlay);
+        return overlay;
+    }
+
+    private void waitForCameraBuffers(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mCameraBuffers.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mCameraBuffers.size());
+    }
+
+    private static List<Emojifier.Emoji> emojisOf(LiveEmojifier.Overlay overlay) {
+        List<Emojifier.Emoji> emojis = new ArrayList<>();
+        for (int i = 0; i < overlay.getFaceCount(); i++) {
+            emojis.add(overlay.getEmoji(i));
+        }
+        return emojis;
+    }
+
+    private static DetectedFace[] faces(DetectedFace... faces) {
+        return faces;
+    }
+
+    private static DetectedFace face(int id, float smilingProb) {
+        return new DetectedFace(id, 0, 0, 2, 2, smilingProb, 1, 1);
+    }
+
+    /**
+     * replays the faces recorded for each frame, the frame index is read from the frame itself
+     */
+    private static class RecordedDetector implements FaceDetectionBackend {
+
+        private final List<DetectedFace[]> mRecording;
+        private final long mDetectionMillis;
+        private final List<Integer> mProcessedFrames = new ArrayList<>();
+        private CountDownLatch mFirstFrameStarted;
+        private CountDownLatch mReleaseFirstFrame;
+
+        RecordedDetector(List<DetectedFace[]> recording, long detectionMillis) {
+            mRecording = recording;
+            mDetectionMillis = detectionMillis;
+        }
+
+        void blockFirstFrame(CountDownLatch started, CountDownLatch release) {
+            mFirstFrameStarted = started;
+            mReleaseFirstFrame = release;
+        }
+
+        synchronized List<Integer> getProcessedFrames() {
+            return new ArrayList<>(mProcessedFrames);
+        }
+
+        @Override
+        public List<DetectedFace> detect(Bitmap bitmap) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void detectFrame(byte[] frame, int width, int height, int rotation, int frameId,
+                                long timestampNanos, List<DetectedFace> faces) {
+            int index = ByteBuffer.wrap(frame).getInt(0);
+            synchronized (this) {
+                mProcessedFrames.add(index);
+            }
+            try {
+                if (frameId == 0 && mFirstFrameStarted != null) {
+                    mFirstFrameStarted.countDown();
+                    mReleaseFirstFrame.await();
+                }
+                Thread.sleep(mDetectionMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            faces.addAll(Arrays.asList(mRecording.get(index)));
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.anu.emojifyme.utils;
+
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the int[] compositor against a floating point source over reference of the canvas path.
+ */
+public class PixelCompositorTest {
+
+    private static final int TOLERANCE = 2;
+
+    @Test
+    public void blend_matchesSourceOver() throws Exception {
+        Random random = new Random(42);
+        int[] sprite = new int[256];
+        int[] background = new int[sprite.length];
+        for (int i = 0; i < sprite.length; i++) {
+            sprite[i] = random.nextInt();
+            background[i] = i % 2 == 0 ? random.nextInt() | 0xff000000 : random.nextInt();
+        }
+        int[] premultiplied = sprite.clone();
+        PixelCompositor.premultiply(premultiplied);
+        int[] identity = new int[16];
+        for (int i = 0; i < identity.length; i++) {
+            identity[i] = i;
+        }
+
+        int[] blended = background.clone();
+        PixelCompositor.blend(blended, 0, 16, premultiplied, 16, identity, identity, 0, 16);
+
+        for (int i = 0; i < sprite.length; i++) {
+            assertPixel(sourceOver(sprite[i], background[i]), blended[i]);
+        }
+    }
+
+    @Test
+    public void overlappingEmojis_shareARegion() throws Exception {
+        Bitmap sprite = mockBitmap(10, 10, false);
+        List<PixelCompositor.Layer> layers = Arrays.asList(
+                PixelCompositor.Layer.create(sprite, 0, 0, 10, 10, 100, 100),
+                PixelCompositor.Layer.create(sprite, 50, 50, 60, 60, 100, 100),
+                PixelCompositor.Layer.create(sprite, 8, 8, 20, 20, 100, 100),
+                // overlaps neither emoji, but the region the first and third grew into
+                PixelCompositor.Layer.create(sprite, 15, 0, 25, 5, 100, 100));
+
+        List<PixelCompositor.Region> regions = PixelCompositor.getRegions(layers);
+
+        assertEquals(2, regions.size());
+        assertEquals(Arrays.asList(1), regions.get(0).layers);
+        assertEquals(Arrays.asList(0, 2, 3), regions.get(1).layers);
+        assertEquals(25, regions.get(1).right);
+    }
+
+    @Test
+    public void groupPhoto_matchesTheCanvasPath() throws Exception {
+        int width = 400;
+        int height = 300;
+        Random random = new Random(7);
+        int[] background = new int[width * height];
+        for (int i = 0; i < background.length; i++) {
+            background[i] = random.nextInt() | 0xff000000;
+        }
+        int[] pixels = background.clone();
+        Bitmap bitmap = mockBitmap(width, height, true);
+        backWithPixels(bitmap, pixels, width);
+
+        int[] emoji = new int[24 * 24];
+        for (int i = 0; i < emoji.length; i++) {
+            emoji[i] = i % 7 == 0 ? 0 : random.nextInt();
+        }
+        Bitmap sprite = mockBitmap(24, 24, false);
+        backWithPixels(sprite, emoji.clone(), 24);
+
+        // many faces, some overlapping, some tall enough to span several bands, one cut off
+        float[][] faces = new float[20][];
+        for (int i = 0; i < faces.length; i++) {
+            faces[i] = new float[]{random.nextInt(width) - 20, random.nextInt(height) - 20,
+                    20 + random.nextInt(100), 20 + random.nextInt(140)};
+        }
+        PixelCompositor compositor = new PixelCompositor(bitmap);
+        for (float[] face : faces) {
+            compositor.drawEmoji(sprite, face[0], face[1], face[2], face[3]);
+        }
+        assertSame(bitmap, compositor.getResultBitmap());
+
+        int[] expected = background.clone();
+        float[] bounds = new float[4];
+        for (float[] face : faces) {
+            EmojiCompositor.getEmojiBounds(24, 24, face[0], face[1], face[2], face[3], bounds);
+            drawNearest(expected, width, height, emoji, 24, 24, bounds);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            assertPixel(expected[i], pixels[i]);
+        }
+    }
+
+    /**
+     * reference drawing of a sprite with nearest sampling, one pixel at a time
+     */
+    private static void drawNearest(int[] dst, int width, int height, int[] sprite,
+                                    int spriteWidth, int spriteHeight, float[] bounds) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float centerX = x + .5f;
+                float centerY = y + .5f;
+                if (x < Math.round(bounds[0]) || x >= Math.round(bounds[2])
+                        || y < Math.round(bounds[1]) || y >= Math.round(bounds[3])) {
+                    continue;
+                }
+                float scaleX = spriteWidth / (bounds[2] - bounds[0]);
+                float scaleY = spriteHeight / (bounds[3] - bounds[1]);
+                int sx = (int) ((centerX - bounds[0]) * scaleX);
+                int sy = (int) ((centerY - bounds[1]) * scaleY);
+                sx = Math.max(0, Math.min(spriteWidth - 1, sx));
+                sy = Math.max(0, Math.min(spriteHeight - 1, sy));
+                int index = y * width + x;
+                dst[index] = sourceOver(sprite[sy * spriteWidth + sx], dst[index]);
+            }
+        }
+    }
+
+    /**
+     * floating point source over of two unpremultiplied pixels
+     */
+    private static int sourceOver(int source, int destination) {
+        float sa = (source >>> 24) / 255f;
+        float da = (destination >>> 24) / 255f;
+        float alpha = sa + da * (1 - sa);
+        if (alpha == 0) {
+            return 0;
+        }
+        int result = Math.round(alpha * 255) << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            float s = ((source >> shift) & 0xff) * sa;
+            float d = ((destination >> shift) & 0xff) * da * (1 - sa);
+            result |= Math.min(255, Math.round((s + d) / alpha)) << shift;
+        }
+        return result;
+    }
+
+    /**
+     * compares the pixels premultiplied, as bitmaps store them, since the colors of a translucent
+     * pixel only survive to within 255 / alpha
+     */
+    private static void assertPixel(int expected, int actual) {
+        int[] premultiplied = {expected, actual};
+        PixelCompositor.premultiply(premultiplied);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            int difference = Math.abs(((premultiplied[0] >> shift) & 0xff)
+                    - ((premultiplied[1] >> shift) & 0xff));
+            assertTrue(String.format("expected %08x but was %08x", expected, actual),
+                    difference <= TOLERANCE);
+        }
+    }
+
+    private static Bitmap mockBitmap(int width, int height, boolean mutable) {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.getWidth()).thenReturn(width);
+        when(bitmap.getHeight()).thenReturn(height);
+        when(bitmap.isMutable()).thenReturn(mutable);
+        when(bitmap.getConfig()).thenReturn(Bitmap.Config.ARGB_8888);
+        return bitmap;
+    }
+
+    /**
+     * makes getPixels and setPixels copy from and to the given pixels
+     */
+    private static void backWithPixels(Bitmap bitmap, final int[] pixels, final int width) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                copyRect(invocation, pixels, width, true);
+                return null;
+            }
+        }).when(bitmap).getPixels(any(int[].class), anyInt(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                copyRect(invocation, pixels, width, false);
+                return null;
+            }
+        }).when(bitmap).setPixels(any(int[].class), anyInt(), anyInt(), anyInt(), anyInt(),
+                anyInt(), anyInt());
+    }
+
+    private static void copyRect(InvocationOnMock invocation, int[] pixels, int width,
+                                 boolean read) {
+        int[] buffer = invocation.getArgument(0);
+        int offset = invocation.getArgument(1);
+        int stride = invocation.getArgument(2);
+        int x = invocation.getArgument(3);
+        int y = invocation.getArgument(4);
+        int columns = invocation.getArgument(5);
+        int rows = invocation.getArgument(6);
+        for (int row = 0; row < rows; row++) {
+            if (read) {
+                System.arraycopy(pixels, (y + row) * width + x, buffer, offset + row * stride,
+                        columns);
+            } else {
+                System.arraycopy(buffer, offset + row * stride, pixels, (y + row) * width + x,
+                        columns);
+            }
+        }
+    }
+}
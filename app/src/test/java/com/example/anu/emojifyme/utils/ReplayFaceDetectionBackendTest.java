@@ -0,0 +1,66 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReplayFaceDetectionBackendTest {
+
+    private static final List<List<DetectedFace>> RECORDING = Arrays.asList(
+            Arrays.asList(new DetectedFace(1, 10.5f, 20f, 100f, 120f, .9f, .8f, .7f),
+                    new DetectedFace(2, 200f, 40f, 80f, 96f, .05f, .05f, .9f)),
+            Collections.<DetectedFace>emptyList(),
+            Arrays.asList(new DetectedFace(1, 12f, 21f, 101f, 119f, -1f, .1f, .0001f)));
+
+    @After
+    public void resetBackend() {
+        Emojifier.setDetectionBackend(null);
+    }
+
+    @Test
+    public void writtenRecording_readsBackTheSameFaces() throws Exception {
+        StringWriter writer = new StringWriter();
+        ReplayFaceDetectionBackend.writeRecording(RECORDING, writer);
+
+        assertEquals(RECORDING,
+                ReplayFaceDetectionBackend.readRecording(new StringReader(writer.toString())));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedRecording_throws() throws Exception {
+        ReplayFaceDetectionBackend.readRecording(new StringReader("frame\n1 2 3\n"));
+    }
+
+    @Test
+    public void detections_cycleThroughTheRecording() throws Exception {
+        ReplayFaceDetectionBackend backend = new ReplayFaceDetectionBackend(RECORDING);
+
+        List<DetectedFace> faces = new ArrayList<>();
+        for (int i = 0; i < 2 * RECORDING.size(); i++) {
+            faces.clear();
+            backend.detectFrame(new byte[0], 0, 0, 0, i, 0, faces);
+            assertEquals(RECORDING.get(i % RECORDING.size()), faces);
+        }
+        assertEquals(2 * RECORDING.size(), backend.getDetectionCount());
+    }
+
+    @Test
+    public void emojifier_classifiesTheReplayedFaces() throws Exception {
+        Emojifier.setDetectionBackend(new ReplayFaceDetectionBackend(RECORDING));
+
+        List<DetectedFace> faces = Emojifier.detectFaces(null, null);
+
+        assertEquals(RECORDING.get(0), faces);
+        assertEquals(Arrays.asList(Emojifier.Emoji.SMILE, Emojifier.Emoji.LEFT_WINK_FROWN),
+                Arrays.asList(Emojifier.classifyFaces(faces)));
+    }
+}
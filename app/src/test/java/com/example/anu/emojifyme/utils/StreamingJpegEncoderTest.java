@@ -0,0 +1,98 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingJpegEncoderTest {
+
+    @Test
+    public void encodedRows_decodeToTheSameImage() throws Exception {
+        // Sizes that are not multiples of the MCU size, written in uneven bands
+        int width = 203;
+        int height = 117;
+        int[] pixels = createTestImage(width, height);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, 90);
+        int row = 0;
+        int band = 7;
+        while (row < height) {
+            int rowCount = Math.min(band, height - row);
+            encoder.writeRows(pixels, row * width, width, rowCount);
+            row += rowCount;
+            band += 5;
+        }
+        encoder.finish();
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded);
+        assertEquals(width, decoded.getWidth());
+        assertEquals(height, decoded.getHeight());
+        assertTrue("Mean error too high", meanError(pixels, decoded) < 4);
+    }
+
+    @Test
+    public void lowerQuality_givesSmallerFiles() throws Exception {
+        int width = 320;
+        int height = 240;
+        int[] pixels = createTestImage(width, height);
+
+        assertTrue(encodedSize(pixels, width, height, 60) < encodedSize(pixels, width, height, 95));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finish_failsWhenRowsAreMissing() throws Exception {
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(new ByteArrayOutputStream(), 16, 32, 90);
+        encoder.writeRows(new int[16 * 16], 0, 16, 16);
+        encoder.finish();
+    }
+
+    private static int encodedSize(int[] pixels, int width, int height, int quality) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(out, width, height, quality);
+        encoder.writeRows(pixels, 0, width, height);
+        encoder.finish();
+        return out.size();
+    }
+
+    /**
+     * smooth gradients with a soft disc, the kind of content JPEG is meant for
+     */
+    private static int[] createTestImage(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double dx = x - width / 2.0;
+                double dy = y - height / 2.0;
+                double disc = Math.max(0, 1 - Math.sqrt(dx * dx + dy * dy) / (height / 2.0));
+                int r = (int) (255.0 * x / width);
+                int g = (int) (255.0 * y / height);
+                int b = (int) (255.0 * disc);
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pixels;
+    }
+
+    private static double meanError(int[] pixels, BufferedImage decoded) {
+        int width = decoded.getWidth();
+        long error = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int expected = pixels[i];
+            int actual = decoded.getRGB(i % width, i / width);
+            for (int shift = 0; shift <= 16; shift += 8) {
+                error += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+            }
+        }
+        return (double) error / (pixels.length * 3);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.anu.emojifyme.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class StripedFaceDetectionBackendTest {
+
+    @Test
+    public void tiles_overlapByAQuarterOfATile() throws Exception {
+        int[] tiles = StripedFaceDetectionBackend.getTiles(1600, 800, 2, 2);
+
+        // 800x400 tiles overlapping by 100 pixels
+        assertArrayEquals(new int[]{
+                0, 0, 850, 450,
+                750, 0, 1600, 450,
+                0, 350, 850, 800,
+                750, 350, 1600, 800}, tiles);
+    }
+
+    @Test
+    public void smallPicture_isCutIntoFewerTiles() throws Exception {
+        assertArrayEquals(new int[]{0, 0, 300, 300},
+                StripedFaceDetectionBackend.getTiles(300, 300, 4, 4));
+        assertEquals(3 * 4, StripedFaceDetectionBackend.getTiles(640, 480, 8, 1).length);
+    }
+
+    @Test
+    public void facesFoundInTwoTiles_areMergedIntoTheLargest() throws Exception {
+        DetectedFace whole = face(0, 100, 380, 40, 40);
+        DetectedFace cut = face(0, 100, 380, 40, 20);
+        DetectedFace neighbour = face(1, 145, 380, 40, 40);
+        DetectedFace tiny = face(2, 0, 0, 10, 10);
+
+        List<DetectedFace> merged = StripedFaceDetectionBackend.suppressDuplicates(
+                Arrays.asList(cut, tiny, whole, neighbour),
+                StripedFaceDetectionBackend.MAX_OVERLAP);
+
+        assertEquals(Arrays.asList(face(0, 100, 380, 40, 40), face(1, 145, 380, 40, 40),
+                face(2, 0, 0, 10, 10)), merged);
+    }
+
+    @Test
+    public void overlap_isTheIntersectionOverUnion() throws Exception {
+        assertEquals(1f / 3, StripedFaceDetectionBackend.getOverlap(
+                face(0, 0, 0, 20, 10), face(0, 10, 0, 20, 10)), 1e-6f);
+        assertEquals(0f, StripedFaceDetectionBackend.getOverlap(
+                face(0, 0, 0, 10, 10), face(0, 10, 0, 10, 10)), 0f);
+    }
+
+    private static DetectedFace face(int id, float left, float top, float width, float height) {
+        return new DetectedFace(id, left, top, width, height, 0.5f, 0.5f, 0.5f);
+    }
+}